@@ -30,6 +30,7 @@ import v7db.files.mongodb.MongoContentStorage;
 import v7db.files.mongodb.V7File;
 import v7db.files.mongodb.V7GridFS;
 import v7db.files.spi.Content;
+import v7db.files.spi.ContentSHA;
 
 import com.mongodb.MongoException;
 
@@ -44,7 +45,7 @@ class CatCommand {
 		} else {
 			id = Hex.decodeHex(shaPrefix.toCharArray());
 		}
-		if (id.length > 20)
+		if (id.length > 20 && !ContentSHA.isTreeHashId(id))
 			throw new DecoderException("too long");
 		return id;
 	}
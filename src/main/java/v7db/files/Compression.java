@@ -25,6 +25,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
@@ -34,6 +37,7 @@ import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,6 +83,70 @@ public class Compression {
 		}
 	}
 
+	// how much of the data to look at to guess if it can be compressed
+	private static final int PROBE_SIZE = 4 * 1024;
+
+	/**
+	 * A cheap guess if it is worth trying to compress the data: Data that has
+	 * already been compressed (or encrypted) looks random. If the byte values
+	 * at the start of the data are not evenly distributed (low entropy), it
+	 * can be compressed. Otherwise, it could still contain repetitions, so
+	 * the start is compressed (quickly) to see if that helps.
+	 */
+	public static boolean isProbablyCompressible(byte[] data, int off, int len) {
+		int n = Math.min(len, PROBE_SIZE);
+		if (n < 256)
+			return true;
+		int[] counts = new int[256];
+		for (int i = off; i < off + n; i++) {
+			counts[data[i] & 0xFF]++;
+		}
+		double entropy = 0;
+		for (int c : counts) {
+			if (c > 0) {
+				double p = (double) c / n;
+				entropy -= p * Math.log(p);
+			}
+		}
+		// in bits per byte
+		if (entropy / Math.log(2) < 7)
+			return true;
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(data, off, n);
+			deflater.finish();
+			byte[] out = new byte[n];
+			int size = deflater.deflate(out);
+			return deflater.finished() && size < n * 0.95;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static final Set<String> COMPRESSED_CONTENT_TYPES = new HashSet<String>(
+			Arrays.asList("image/jpeg", "image/png", "image/gif",
+					"image/webp", "audio/mpeg", "audio/mp4", "audio/ogg",
+					"audio/aac", "application/zip", "application/gzip",
+					"application/x-gzip", "application/x-bzip2",
+					"application/x-xz", "application/x-7z-compressed",
+					"application/x-rar-compressed", "application/java-archive",
+					"application/epub+zip"));
+
+	/**
+	 * @return true, if the content type is known to be compressed already
+	 *         (so that compressing it again is pointless)
+	 */
+	public static boolean isCompressedContentType(String contentType) {
+		if (contentType == null)
+			return false;
+		contentType = StringUtils.substringBefore(contentType, ";").trim()
+				.toLowerCase();
+		return contentType.startsWith("video/")
+				|| contentType
+						.startsWith("application/vnd.openxmlformats-officedocument.")
+				|| COMPRESSED_CONTENT_TYPES.contains(contentType);
+	}
+
 	/**
 	 * assumes that the result buffer has exactly the needed size
 	 * 
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content-defined chunking: chunk boundaries are placed where a rolling hash
+ * over the data (a "gear" hash, as in FastCDC) matches a bit mask, instead of
+ * at fixed offsets.
+ * <p>
+ * When data is inserted or removed somewhere in a large file, only the chunks
+ * around that position change, all the others are cut the same way as before
+ * (and can be de-duplicated by their SHA).
+ * <p>
+ * Chunks are never shorter than the minimum size (except for the last one),
+ * never longer than the maximum size, and on average about the average size.
+ * Before the average size is reached, a harder mask is used, and after that an
+ * easier one ("normalized chunking"), which keeps the chunk sizes close to
+ * the average.
+ * 
+ */
+
+public class ContentDefinedChunking {
+
+	// the boundaries depend on this table, so it must never change
+	private static final long[] GEAR = new long[256];
+	static {
+		Random r = new Random(0x763766696C6573L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = r.nextLong();
+		}
+	}
+
+	private final int minSize, averageSize, maxSize;
+
+	private final long smallMask, largeMask;
+
+	public ContentDefinedChunking(int minSize, int averageSize, int maxSize) {
+		if (minSize < 1 || averageSize <= minSize || maxSize <= averageSize)
+			throw new IllegalArgumentException(
+					"need 0 < minSize < averageSize < maxSize, not " + minSize
+							+ ", " + averageSize + ", " + maxSize);
+		this.minSize = minSize;
+		this.averageSize = averageSize;
+		this.maxSize = maxSize;
+		int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+		smallMask = highBits(bits + 1);
+		largeMask = highBits(bits - 1);
+	}
+
+	/**
+	 * the "high" bits of the hash depend on the last 64 bytes, the low ones
+	 * only on the last few
+	 */
+	private static long highBits(int count) {
+		if (count <= 0)
+			return 0;
+		return -1L << (64 - count);
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getAverageSize() {
+		return averageSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the length of the first chunk in the given data
+	 */
+	int cutPoint(byte[] data, int offset, int length) {
+		if (length <= minSize)
+			return length;
+		if (length > maxSize)
+			length = maxSize;
+		int normal = Math.min(averageSize, length);
+		long hash = 0;
+		int i = minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+			if ((hash & smallMask) == 0)
+				return i + 1;
+		}
+		for (; i < length; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+			if ((hash & largeMask) == 0)
+				return i + 1;
+		}
+		return length;
+	}
+
+	public Chunker chunker(InputStream data) {
+		return new Chunker(data);
+	}
+
+	/**
+	 * Cuts an InputStream into content-defined chunks.
+	 */
+	public final class Chunker {
+
+		private final InputStream data;
+
+		// data that has been read beyond the last boundary
+		private final byte[] carry = new byte[maxSize];
+
+		private int carryLength = 0;
+
+		private boolean eof = false;
+
+		private Chunker(InputStream data) {
+			this.data = data;
+		}
+
+		/**
+		 * read the next chunk into the buffer (which must be able to hold the
+		 * maximum chunk size)
+		 * 
+		 * @return the length of the chunk, 0 if there is no more data
+		 */
+		public int nextChunk(byte[] buffer) throws IOException {
+			if (buffer.length < maxSize)
+				throw new IllegalArgumentException("buffer too small");
+			System.arraycopy(carry, 0, buffer, 0, carryLength);
+			int length = carryLength;
+			while (!eof && length < maxSize) {
+				int read = data.read(buffer, length, maxSize - length);
+				if (read == -1)
+					eof = true;
+				else
+					length += read;
+			}
+			int cut = cutPoint(buffer, 0, length);
+			carryLength = length - cut;
+			System.arraycopy(buffer, cut, carry, 0, carryLength);
+			return cut;
+		}
+
+		/**
+		 * @return true, if all the data has been returned
+		 */
+		public boolean isAtEnd() {
+			return eof && carryLength == 0;
+		}
+
+	}
+
+}
@@ -32,6 +32,7 @@ import org.bson.types.ObjectId;
 import v7db.files.mongodb.BSONUtils;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentSHA;
 import v7db.files.spi.ContentStorage;
 import v7db.files.spi.InlineContent;
 import v7db.files.spi.ReferenceTracking;
@@ -63,8 +64,15 @@ public class ContentStorageFacade {
 		byte[] sha = (byte[]) metaData.get("sha");
 		if (sha == null)
 			return null;
-		return new StoredContent(sha, BSONUtils.getRequiredLong(metaData,
-				"length"));
+		long length = BSONUtils.getRequiredLong(metaData, "length");
+		// (a BSONObject, or a Map if the metaData was made from a pointer)
+		Map<?, ?> pack = (Map<?, ?>) metaData.get("pack");
+		if (pack != null)
+			return StoredContent.inPack(sha, length, (byte[]) pack.get("sha"),
+					MapUtils.getRequiredLong(pack, "off"));
+		Long offset = BSONUtils.toLong(metaData.get("off"));
+		return new StoredContent(sha, offset == null ? 0 : offset, length,
+				ContentSHA.TREE_HASH.equals(metaData.get("hash")));
 	}
 
 	public Content getContent(byte[] sha) throws IOException {
@@ -99,6 +107,18 @@ public class ContentStorageFacade {
 	public BSONObject insertContentsAndBackRefs(byte[] data, int offset,
 			int len, Object fileId, String filename, String contentType)
 			throws IOException {
+		return insertContentsAndBackRefs(data, offset, len, null, fileId,
+				filename, contentType);
+	}
+
+	/**
+	 * @param previous
+	 *            the content that is being replaced (can be null), the
+	 *            ContentStorage may store only the difference to it
+	 */
+	public BSONObject insertContentsAndBackRefs(byte[] data, int offset,
+			int len, ContentPointer previous, Object fileId, String filename,
+			String contentType) throws IOException {
 
 		if (data == null) {
 			refTracking.updateReferences(fileId);
@@ -107,7 +127,7 @@ public class ContentStorageFacade {
 		}
 
 		ContentPointer p = storage.storeContent(new ByteArrayInputStream(data,
-				offset, len));
+				offset, len), previous, contentType);
 
 		refTracking.updateReferences(fileId, p);
 
@@ -121,12 +141,26 @@ public class ContentStorageFacade {
 	public BSONObject insertContentsAndBackRefs(InputStream data,
 			Object fileId, String filename, String contentType)
 			throws IOException {
+		return insertContentsAndBackRefs(data, null, fileId, filename,
+				contentType);
+	}
+
+	/**
+	 * will close the InputStream before returning
+	 * 
+	 * @param previous
+	 *            the content that is being replaced (can be null), the
+	 *            ContentStorage may store only the difference to it
+	 */
+	public BSONObject insertContentsAndBackRefs(InputStream data,
+			ContentPointer previous, Object fileId, String filename,
+			String contentType) throws IOException {
 
 		if (data == null)
 			return insertContentsAndBackRefs(null, 0, 0, fileId, filename,
 					contentType);
 
-		ContentPointer p = storage.storeContent(data);
+		ContentPointer p = storage.storeContent(data, previous, contentType);
 
 		refTracking.updateReferences(fileId, p);
 
@@ -153,9 +187,22 @@ public class ContentStorageFacade {
 	public BSONObject inlineOrInsertContentsAndBackRefs(int inlineUntil,
 			byte[] data, int offset, int length, Object fileId,
 			String filename, String contentType) throws IOException {
+		return inlineOrInsertContentsAndBackRefs(inlineUntil, data, offset,
+				length, null, fileId, filename, contentType);
+	}
+
+	/**
+	 * @param previous
+	 *            the content that is being replaced (can be null), the
+	 *            ContentStorage may store only the difference to it
+	 */
+	public BSONObject inlineOrInsertContentsAndBackRefs(int inlineUntil,
+			byte[] data, int offset, int length, ContentPointer previous,
+			Object fileId, String filename, String contentType)
+			throws IOException {
 		if (data == null || length > inlineUntil)
-			return insertContentsAndBackRefs(data, offset, length, fileId,
-					filename, contentType);
+			return insertContentsAndBackRefs(data, offset, length, previous,
+					fileId, filename, contentType);
 
 		refTracking.updateReferences(fileId);
 
@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Binary deltas (to store content that is similar to other content) and
+ * similarity sketches (to find such other content).
+ * <p>
+ * A delta is a sequence of operations that produce the target content:
+ * <ul>
+ * <li>COPY: take <code>length</code> bytes from the base content, starting at
+ * <code>offset</code>
+ * <li>INSERT: take the next <code>length</code> bytes (literal data) from the
+ * delta itself
+ * </ul>
+ * Every operation starts with a variable-length integer
+ * <code>length &lt;&lt; 1 | type</code> (type 0 for COPY, 1 for INSERT),
+ * followed by another variable-length integer for the COPY offset, or the
+ * literal data for an INSERT.
+ * 
+ * @see v7db.files.spi.DeltaContent
+ */
+
+public class Delta {
+
+	public static final int COPY = 0;
+
+	public static final int INSERT = 1;
+
+	// matches shorter than this are not found
+	private static final int BLOCK = 16;
+
+	private static final int PRIME = 0x01000193;
+
+	// PRIME ^ (BLOCK-1)
+	private static final int PRIME_POWER;
+	static {
+		int p = 1;
+		for (int i = 1; i < BLOCK; i++) {
+			p *= PRIME;
+		}
+		PRIME_POWER = p;
+	}
+
+	private static int hash(byte[] data, int offset) {
+		int h = 0;
+		for (int i = offset; i < offset + BLOCK; i++) {
+			h = h * PRIME + (data[i] & 0xFF);
+		}
+		return h;
+	}
+
+	private static int roll(int hash, byte out, byte in) {
+		return (hash - (out & 0xFF) * PRIME_POWER) * PRIME + (in & 0xFF);
+	}
+
+	private static int slot(int hash, int shift) {
+		return (hash * 0x9E3779B1) >>> shift;
+	}
+
+	/**
+	 * @return the delta that produces the target from the base
+	 */
+	public static byte[] encode(byte[] base, byte[] target) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(
+				target.length, 64 * 1024));
+		if (base.length < BLOCK || target.length < BLOCK) {
+			writeInsert(out, target, 0, target.length);
+			return out.toByteArray();
+		}
+
+		// index the base content, one entry every BLOCK bytes
+		int bits = Math.max(4, 33 - Integer.numberOfLeadingZeros(base.length
+				/ BLOCK));
+		int shift = 32 - bits;
+		int[] index = new int[1 << bits];
+		Arrays.fill(index, -1);
+		for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+			int s = slot(hash(base, i), shift);
+			if (index[s] == -1)
+				index[s] = i;
+		}
+
+		int literal = 0;
+		int pos = 0;
+		int h = hash(target, 0);
+		while (pos + BLOCK <= target.length) {
+			int candidate = index[slot(h, shift)];
+			if (candidate >= 0
+					&& equals(base, candidate, target, pos, BLOCK)) {
+				// extend backwards (into the pending literal data)
+				int b = candidate, t = pos;
+				while (t > literal && b > 0 && base[b - 1] == target[t - 1]) {
+					b--;
+					t--;
+				}
+				// and forwards
+				int be = candidate + BLOCK, te = pos + BLOCK;
+				while (te < target.length && be < base.length
+						&& base[be] == target[te]) {
+					be++;
+					te++;
+				}
+				writeInsert(out, target, literal, t - literal);
+				writeCopy(out, b, te - t);
+				pos = literal = te;
+				if (pos + BLOCK <= target.length)
+					h = hash(target, pos);
+				continue;
+			}
+			if (pos + BLOCK < target.length)
+				h = roll(h, target[pos], target[pos + BLOCK]);
+			pos++;
+		}
+		writeInsert(out, target, literal, target.length - literal);
+		return out.toByteArray();
+	}
+
+	private static boolean equals(byte[] a, int aOff, byte[] b, int bOff,
+			int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[aOff + i] != b[bOff + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static void writeCopy(ByteArrayOutputStream out, int offset,
+			int length) {
+		writeVarInt(out, ((long) length << 1) | COPY);
+		writeVarInt(out, offset);
+	}
+
+	private static void writeInsert(ByteArrayOutputStream out, byte[] data,
+			int offset, int length) {
+		if (length == 0)
+			return;
+		writeVarInt(out, ((long) length << 1) | INSERT);
+		out.write(data, offset, length);
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, long x) {
+		while ((x & ~0x7FL) != 0) {
+			out.write((int) ((x & 0x7F) | 0x80));
+			x >>>= 7;
+		}
+		out.write((int) x);
+	}
+
+	/**
+	 * @param pos
+	 *            where to start reading, will be updated to point after the
+	 *            number
+	 */
+	public static long readVarInt(byte[] data, int[] pos) {
+		long x = 0;
+		int shift = 0;
+		while (true) {
+			byte b = data[pos[0]++];
+			x |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return x;
+			shift += 7;
+			if (shift > 63)
+				throw new IllegalArgumentException("invalid delta encoding");
+		}
+	}
+
+	// number of min-hash values in a sketch
+	private static final int FEATURES = 8;
+
+	// window size for the min-hash
+	private static final int WINDOW = 32;
+
+	private static final int[] MULTIPLIERS = { 0x6B43A9B5, 0x2F0B3C25,
+			0x4F1BBCDD, 0x1B873593, 0x68E31DA5, 0x7FEB352D, 0x3C6EF373,
+			0x5BD1E995 };
+
+	private static final int[] ADDENDS = { 0x2545F491, 0x0D34A6B7,
+			0x76A45F31, 0x5F356495, 0x1D8E4E27, 0x6C8E9CF5, 0x02E5BE93,
+			0x13198A2E };
+
+	/**
+	 * A similarity sketch: For a number of (fixed) hash functions, the
+	 * minimum over the hashes of every 32-byte window of the data. Two pieces
+	 * of content are likely similar if they share some of these values, and
+	 * the more the more similar.
+	 * 
+	 * @return the feature values (tagged with their hash function in the
+	 *         upper 32 bits, so that they can be stored together), or an
+	 *         empty array for very short data
+	 */
+	public static long[] sketch(byte[] data, int offset, int length) {
+		if (length < WINDOW)
+			return new long[0];
+		int[] min = new int[FEATURES];
+		Arrays.fill(min, Integer.MAX_VALUE);
+		int power = 1;
+		for (int i = 1; i < WINDOW; i++) {
+			power *= PRIME;
+		}
+		int h = 0;
+		for (int i = offset; i < offset + WINDOW; i++) {
+			h = h * PRIME + (data[i] & 0xFF);
+		}
+		int end = offset + length;
+		for (int i = offset + WINDOW;; i++) {
+			for (int f = 0; f < FEATURES; f++) {
+				int x = (h * MULTIPLIERS[f] + ADDENDS[f]) & Integer.MAX_VALUE;
+				if (x < min[f])
+					min[f] = x;
+			}
+			if (i >= end)
+				break;
+			h = (h - (data[i - WINDOW] & 0xFF) * power) * PRIME
+					+ (data[i] & 0xFF);
+		}
+		long[] result = new long[FEATURES];
+		for (int f = 0; f < FEATURES; f++) {
+			result[f] = ((long) f << 32) | min[f];
+		}
+		return result;
+	}
+
+}
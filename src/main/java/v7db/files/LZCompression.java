@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2011-2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77-type compression (in the spirit of LZ4): no entropy coding,
+ * just references to earlier occurrences of the same bytes, found with a hash
+ * table over four-byte sequences.
+ * <p>
+ * The compressed data is a sequence of
+ * <ul>
+ * <li>the number of literal bytes (variable-length integer), followed by the
+ * literal bytes
+ * <li>(unless the data is complete) the length of a match minus 4, and the
+ * distance back to its earlier occurrence (both variable-length integers)
+ * </ul>
+ * The uncompressed length needs to be known to decompress.
+ * 
+ */
+
+public class LZCompression {
+
+	private static final int MIN_MATCH = 4;
+
+	private static final int HASH_BITS = 14;
+
+	private static int hash(byte[] data, int i) {
+		int x = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8
+				| (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+		return (x * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * @return null, if the compressed data would not be smaller
+	 */
+	public static byte[] compress(byte[] data, int offset, int length) {
+		if (length < 16)
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2);
+		int[] table = new int[1 << HASH_BITS];
+		Arrays.fill(table, -1);
+		int end = offset + length;
+		int anchor = offset;
+		int i = offset;
+		while (i + MIN_MATCH <= end) {
+			int h = hash(data, i);
+			int candidate = table[h];
+			table[h] = i;
+			if (candidate < 0 || data[candidate] != data[i]
+					|| data[candidate + 1] != data[i + 1]
+					|| data[candidate + 2] != data[i + 2]
+					|| data[candidate + 3] != data[i + 3]) {
+				i++;
+				continue;
+			}
+			int match = MIN_MATCH;
+			while (i + match < end && data[candidate + match] == data[i + match])
+				match++;
+			writeVarInt(out, i - anchor);
+			out.write(data, anchor, i - anchor);
+			writeVarInt(out, match - MIN_MATCH);
+			writeVarInt(out, i - candidate);
+			i += match;
+			anchor = i;
+			if (out.size() >= length)
+				return null;
+		}
+		writeVarInt(out, end - anchor);
+		out.write(data, anchor, end - anchor);
+		if (out.size() >= length)
+			return null;
+		return out.toByteArray();
+	}
+
+	public static byte[] decompress(byte[] compressed, int length)
+			throws IOException {
+		byte[] out = new byte[length];
+		int o = 0;
+		int[] pos = { 0 };
+		try {
+			while (true) {
+				int literals = readVarInt(compressed, pos);
+				System.arraycopy(compressed, pos[0], out, o, literals);
+				pos[0] += literals;
+				o += literals;
+				if (o == length)
+					return out;
+				int match = readVarInt(compressed, pos) + MIN_MATCH;
+				int distance = readVarInt(compressed, pos);
+				int from = o - distance;
+				if (distance == 0 || from < 0 || o + match > length)
+					throw new IOException("corrupt LZ data");
+				// can overlap, so one byte at a time
+				for (int j = 0; j < match; j++) {
+					out[o++] = out[from++];
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("corrupt LZ data");
+		} catch (IllegalArgumentException e) {
+			// from an invalid variable-length integer
+			throw new IOException("corrupt LZ data");
+		}
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int x) {
+		while ((x & ~0x7F) != 0) {
+			out.write((x & 0x7F) | 0x80);
+			x >>>= 7;
+		}
+		out.write(x);
+	}
+
+	private static int readVarInt(byte[] data, int[] pos) {
+		long x = Delta.readVarInt(data, pos);
+		if (x > Integer.MAX_VALUE)
+			throw new IndexOutOfBoundsException();
+		return (int) x;
+	}
+
+}
@@ -102,13 +102,17 @@ public class MapUtils {
 		}
 	}
 
-	public static void supportedAndRequiredFields(Map<String, ?> o,
-			String... fields) {
+	public static void requiredFields(Map<String, ?> o, String... fields) {
 		for (String f : fields) {
 			if (!o.containsKey(f))
 				throw new UnsupportedOperationException(
 						"missing required field '" + f + "': " + o);
 		}
+	}
+
+	public static void supportedAndRequiredFields(Map<String, ?> o,
+			String... fields) {
+		requiredFields(o, fields);
 		supportedFields(o, fields);
 	}
 
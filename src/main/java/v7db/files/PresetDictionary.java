@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Preset dictionaries for deflate: Small files do not compress well on their
+ * own, because deflate has not seen enough data yet to find repetitions. But
+ * if there are many small files that are similar to each other (JSON
+ * documents, HTML fragments, log snippets), a dictionary of the strings they
+ * have in common can be "preloaded" into the compressor (and decompressor),
+ * and then even the first bytes of a file can refer to it.
+ * <p>
+ * The dictionary is trained from sample content: every 8-byte sequence that
+ * occurs in several samples is part of a common string, and the (maximal)
+ * common strings that cover the most data go into the dictionary, the most
+ * valuable ones at the end (where deflate can refer to them with the shortest
+ * distances).
+ * 
+ * @see v7db.files.spi.DictionaryDeflatedContent
+ */
+
+public class PresetDictionary {
+
+	/**
+	 * deflate cannot refer further back than this, so a longer dictionary
+	 * would not help
+	 */
+	public static final int MAX_SIZE = 32 * 1024;
+
+	private static final int SHINGLE = 8;
+
+	public static byte[] train(List<byte[]> samples, int size) {
+		if (size < 1 || size > MAX_SIZE)
+			throw new IllegalArgumentException("invalid dictionary size "
+					+ size);
+
+		// in how many samples does every 8-byte sequence appear?
+		Map<Long, Integer> frequency = new HashMap<Long, Integer>();
+		for (byte[] sample : samples) {
+			Set<Long> seen = new HashSet<Long>();
+			for (int i = 0; i + SHINGLE <= sample.length; i++) {
+				Long shingle = shingle(sample, i);
+				if (seen.add(shingle)) {
+					Integer f = frequency.get(shingle);
+					frequency.put(shingle, f == null ? 1 : f + 1);
+				}
+			}
+		}
+		int minFrequency = Math.max(2, samples.size() / 20);
+
+		// cut out the (maximal) strings made only of common sequences
+		final Map<ByteBuffer, Integer> strings = new HashMap<ByteBuffer, Integer>();
+		for (byte[] sample : samples) {
+			int start = -1;
+			for (int i = 0; i + SHINGLE <= sample.length + 1; i++) {
+				boolean common = i + SHINGLE <= sample.length
+						&& frequency.get(shingle(sample, i)) >= minFrequency;
+				if (common && start < 0)
+					start = i;
+				if (!common && start >= 0) {
+					int end = Math.min(i - 1 + SHINGLE, start + size);
+					byte[] s = new byte[end - start];
+					System.arraycopy(sample, start, s, 0, s.length);
+					ByteBuffer key = ByteBuffer.wrap(s);
+					Integer f = strings.get(key);
+					strings.put(key, f == null ? 1 : f + 1);
+					start = -1;
+				}
+			}
+		}
+
+		// the ones that cover the most data first
+		List<ByteBuffer> ranked = new ArrayList<ByteBuffer>(strings.keySet());
+		Collections.sort(ranked, new Comparator<ByteBuffer>() {
+			public int compare(ByteBuffer o1, ByteBuffer o2) {
+				long s1 = (long) strings.get(o1) * o1.capacity();
+				long s2 = (long) strings.get(o2) * o2.capacity();
+				return s1 > s2 ? -1 : s1 < s2 ? 1 : 0;
+			}
+		});
+		List<ByteBuffer> selected = new ArrayList<ByteBuffer>();
+		int total = 0;
+		for (ByteBuffer s : ranked) {
+			if (strings.get(s) < 2)
+				continue;
+			if (total + s.capacity() > size)
+				continue;
+			selected.add(s);
+			total += s.capacity();
+		}
+
+		// ... but they go to the end of the dictionary
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(total);
+		for (int i = selected.size() - 1; i >= 0; i--) {
+			dictionary.write(selected.get(i).array(), 0, selected.get(i)
+					.capacity());
+		}
+		return dictionary.toByteArray();
+	}
+
+	private static Long shingle(byte[] data, int offset) {
+		long x = 0;
+		for (int i = offset; i < offset + SHINGLE; i++) {
+			x = (x << 8) | (data[i] & 0xFF);
+		}
+		return x;
+	}
+
+}
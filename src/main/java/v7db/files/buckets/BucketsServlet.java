@@ -19,6 +19,7 @@ package v7db.files.buckets;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -49,6 +50,7 @@ import org.bson.types.ObjectId;
 import v7db.files.ContentStorageFacade;
 import v7db.files.mongodb.BSONUtils;
 import v7db.files.spi.Content;
+import v7db.files.spi.FileContent;
 import v7db.files.spi.InlineContent;
 
 import com.mongodb.BasicDBObject;
@@ -338,6 +340,12 @@ public class BucketsServlet extends HttpServlet {
 
 		response.setContentLength((int) content.getLength());
 
+		if (content instanceof FileContent) {
+			((FileContent) content).transferTo(0, content.getLength(),
+					Channels.newChannel(response.getOutputStream()));
+			return;
+		}
+
 		InputStream in = content.getInputStream();
 		try {
 			IOUtils.copy(in, response.getOutputStream());
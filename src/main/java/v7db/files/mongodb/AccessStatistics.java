@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.QueryOperators;
+
+/**
+ * Records when content (by SHA) was last read or written, so that content
+ * nobody uses any more can be moved to a cheaper storage tier (see
+ * {@link ContentMigrator}).
+ * <p>
+ * The statistics are kept in their own collection (not in the content
+ * documents, which would then have to be rewritten on every read):
+ * 
+ * <pre>
+ * _id: [the content SHA]
+ * t:   [the last access]
+ * n:   [how often it was accessed]
+ * </pre>
+ * 
+ * Accesses are collected in memory, and written out in batches by a
+ * background task (see {@link #start(ScheduledExecutorService, long, TimeUnit)},
+ * which also runs early when enough have been collected), or when
+ * {@link #flush()} is called, so the timestamps are only as exact as the
+ * flush interval. Once started, reading content never waits for the
+ * database. Without the background task, the read that collects one access
+ * too many writes them out itself.
+ */
+
+public class AccessStatistics {
+
+	public final static String DEFAULT_ACCESS_COLLECTION_NAME = "v7files.access";
+
+	private final DBCollection collection;
+
+	private final int flushThreshold;
+
+	// SHA (hex) -> accesses since the last flush
+	private Map<String, Accesses> pending = new HashMap<String, Accesses>();
+
+	// where the background flushes run, null if they have not been started
+	private ScheduledExecutorService executor;
+
+	// set while an early flush is waiting to run
+	private boolean flushQueued;
+
+	private volatile MongoException lastError;
+
+	private static final class Accesses {
+
+		private final byte[] sha;
+
+		private int count;
+
+		private Accesses(byte[] sha) {
+			this.sha = sha;
+		}
+	}
+
+	public AccessStatistics(DB db) {
+		this(db.getCollection(DEFAULT_ACCESS_COLLECTION_NAME), 1000);
+	}
+
+	/**
+	 * @param flushThreshold
+	 *            write out the statistics (in the background) when accesses
+	 *            to this many different SHA have been collected
+	 */
+	public AccessStatistics(DBCollection collection, int flushThreshold) {
+		this.collection = collection;
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * records an access to the content (only in memory, the flush happens in
+	 * the background, or right here if that has not been started and enough
+	 * accesses have been collected)
+	 */
+	void record(byte[] sha) {
+		ScheduledExecutorService flushExecutor;
+		synchronized (this) {
+			add(Hex.encodeHexString(sha), sha, 1);
+			if (flushQueued || pending.size() < flushThreshold)
+				return;
+			flushQueued = true;
+			flushExecutor = executor;
+		}
+		if (flushExecutor == null) {
+			try {
+				tryFlush();
+			} finally {
+				synchronized (this) {
+					flushQueued = false;
+				}
+			}
+			return;
+		}
+		flushExecutor.execute(new Runnable() {
+			public void run() {
+				synchronized (AccessStatistics.this) {
+					flushQueued = false;
+				}
+				tryFlush();
+			}
+		});
+	}
+
+	// (must hold the lock)
+	private void add(String hex, byte[] sha, int count) {
+		Accesses a = pending.get(hex);
+		if (a == null) {
+			a = new Accesses(sha);
+			pending.put(hex, a);
+		}
+		a.count += count;
+	}
+
+	/**
+	 * runs {@link #flush()} periodically in the background, and also as soon
+	 * as accesses to enough different SHA have been collected. A run that
+	 * fails does not stop the next one (see {@link #getLastError()}).
+	 * 
+	 * @return to cancel the periodic flushes
+	 */
+	public ScheduledFuture<?> start(ScheduledExecutorService executor,
+			long period, TimeUnit unit) {
+		synchronized (this) {
+			this.executor = executor;
+		}
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				tryFlush();
+			}
+		}, period, period, unit);
+	}
+
+	private void tryFlush() {
+		try {
+			flush();
+			lastError = null;
+		} catch (MongoException e) {
+			lastError = e;
+		}
+	}
+
+	/**
+	 * @return the reason why the last background flush (or the last one
+	 *         triggered by a read) failed, null if it worked
+	 */
+	public MongoException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * writes out the collected statistics. If that fails, the ones that have
+	 * not been written are kept for the next flush.
+	 */
+	public void flush() {
+		Map<String, Accesses> batch;
+		synchronized (this) {
+			if (pending.isEmpty())
+				return;
+			batch = pending;
+			pending = new HashMap<String, Accesses>();
+		}
+		Date now = new Date();
+		Iterator<Map.Entry<String, Accesses>> i = batch.entrySet().iterator();
+		try {
+			while (i.hasNext()) {
+				Accesses a = i.next().getValue();
+				collection.update(new BasicDBObject(_ID, a.sha),
+						new BasicDBObject("$set", new BasicDBObject("t", now))
+								.append("$inc", new BasicDBObject("n",
+										a.count)), true, false);
+				i.remove();
+			}
+		} finally {
+			if (!batch.isEmpty()) {
+				synchronized (this) {
+					for (Map.Entry<String, Accesses> e : batch.entrySet()) {
+						add(e.getKey(), e.getValue().sha, e.getValue().count);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return when the content was last accessed (as of the last flush), null
+	 *         if that is not known
+	 */
+	public Date getLastAccess(byte[] sha) {
+		DBObject doc = collection.findOne(sha);
+		if (doc == null)
+			return null;
+		return (Date) doc.get("t");
+	}
+
+	/**
+	 * @return the statistics (as of the last flush, with the last access
+	 *         <code>t</code> and the number of accesses <code>n</code>) for
+	 *         all the content that has them, by hex-encoded SHA
+	 */
+	Map<String, DBObject> getStatistics(List<byte[]> shas) {
+		Map<String, DBObject> result = new HashMap<String, DBObject>();
+		if (shas.isEmpty())
+			return result;
+		for (DBObject doc : collection.find(new BasicDBObject(_ID,
+				new BasicDBObject(QueryOperators.IN, new ArrayList<byte[]>(
+						shas))))) {
+			result.put(Hex.encodeHexString((byte[]) doc.get(_ID)), doc);
+		}
+		return result;
+	}
+
+}
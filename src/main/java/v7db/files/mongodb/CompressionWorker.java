@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.spi.CompressionCodec;
+import v7db.files.spi.DictionaryDeflatedContent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Maintenance job that compresses the chunks a MongoContentStorage has
+ * stored uncompressed because compression was deferred (see
+ * {@link MongoContentStorage#setDeferredCompression(DBCollection)}).
+ * <p>
+ * A chunk document is replaced (with a single update) by the compressed
+ * one if that is smaller. The <code>_id</code> and the content stay the same,
+ * so nothing that refers to the chunk has to change, and all of this can run
+ * while the storage is in use.
+ * <p>
+ * The worker can also re-encode existing chunks with a different (better)
+ * codec, see {@link #queueExisting()}.
+ * <p>
+ * To leave enough CPU for the normal work, the worker can be limited to a
+ * fraction of the time of the thread it runs on (see
+ * {@link #setCpuBudget(double)}).
+ */
+
+public class CompressionWorker {
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contentCollection;
+
+	private final DBCollection queue;
+
+	private final CompressionCodec codec;
+
+	private double cpuBudget = 1;
+
+	// time to sleep that has not been slept yet (because it was too short)
+	private long owedNanos;
+
+	// (read by other threads, guarded by this)
+	private long processed, compressed, bytesSaved, compressionNanos;
+
+	private volatile IOException lastError;
+
+	/**
+	 * uses the compression codec of the storage
+	 */
+	public CompressionWorker(MongoContentStorage storage) {
+		this(storage, storage.getCompressionCodec());
+	}
+
+	public CompressionWorker(MongoContentStorage storage,
+			CompressionCodec codec) {
+		if (storage.getCompressionQueue() == null)
+			throw new IllegalArgumentException(
+					"the storage does not defer compression");
+		if (codec == null)
+			throw new IllegalArgumentException("no compression codec");
+		this.storage = storage;
+		this.contentCollection = storage.getContentCollection();
+		this.queue = storage.getCompressionQueue();
+		this.codec = codec;
+	}
+
+	/**
+	 * Limits the time spent on compression to the given fraction of the
+	 * elapsed time (the worker sleeps in between), for example 0.25 to use
+	 * about a quarter of a CPU.
+	 * <p>
+	 * Default is 1 (no limit).
+	 */
+	public void setCpuBudget(double cpuBudget) {
+		if (cpuBudget <= 0 || cpuBudget > 1)
+			throw new IllegalArgumentException(
+					"the CPU budget must be between 0 and 1, not " + cpuBudget);
+		this.cpuBudget = cpuBudget;
+	}
+
+	/**
+	 * @return whether the document contains the chunk data itself (and not a
+	 *         reference to other content), not already encoded with the codec
+	 */
+	private boolean isEligible(DBObject chunk) {
+		String store = BSONUtils.getString(chunk, "store");
+		if (store == null || "raw".equals(store))
+			return chunk.containsField("in");
+		return chunk.containsField("zin") && !codec.getId().equals(store);
+	}
+
+	/**
+	 * puts all the chunks that are stored uncompressed, or compressed with
+	 * another codec, into the queue (to compress or re-encode them)
+	 * 
+	 * @return how many chunks were queued
+	 */
+	public long queueExisting() {
+		long count = 0;
+		DBCursor cursor = contentCollection.find();
+		try {
+			while (cursor.hasNext()) {
+				DBObject chunk = cursor.next();
+				if (isEligible(chunk)) {
+					queue.save(new BasicDBObject(_ID, chunk.get(_ID)));
+					count++;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return count;
+	}
+
+	/**
+	 * compresses all the chunks in the queue (and removes them from it)
+	 * 
+	 * @return how many chunks were compressed
+	 */
+	public long compressQueued() throws IOException {
+		long count = 0;
+		DBCursor cursor = queue.find();
+		try {
+			while (cursor.hasNext()) {
+				byte[] sha = (byte[]) cursor.next().get(_ID);
+				DBObject chunk = contentCollection.findOne(sha);
+				if (chunk != null && compress(sha, chunk))
+					count++;
+				queue.remove(new BasicDBObject(_ID, sha));
+				synchronized (this) {
+					processed++;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return count;
+	}
+
+	/**
+	 * @return true, if the chunk has been replaced by a smaller one
+	 */
+	private boolean compress(byte[] sha, DBObject chunk) throws IOException {
+		if (!isEligible(chunk))
+			return false;
+		// a dictionary cannot be compressed with itself
+		if (codec instanceof DictionaryDeflatedContent
+				&& Arrays.equals(sha, ((DictionaryDeflatedContent) codec)
+						.getDictionary().getSHA()))
+			return false;
+		byte[] stored = (byte[]) chunk.get(chunk.containsField("in") ? "in"
+				: "zin");
+		byte[] data;
+		InputStream in = storage.getContent(chunk).getInputStream();
+		try {
+			data = IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		long started = System.nanoTime();
+		byte[] zin = codec.compress(data, 0, data.length);
+		throttle(System.nanoTime() - started);
+		if (zin == null || zin.length >= stored.length)
+			return false;
+
+		DBObject doc = new BasicDBObject(_ID, sha).append("zin", zin).append(
+				"store", codec.getId()).append("length", data.length);
+		Map<String, Object> fields = codec.getFields();
+		if (fields != null)
+			doc.putAll(fields);
+		contentCollection.update(new BasicDBObject(_ID, sha), doc, false,
+				false, WriteConcern.SAFE);
+		synchronized (this) {
+			compressed++;
+			bytesSaved += stored.length - zin.length;
+		}
+		return true;
+	}
+
+	/**
+	 * sleeps long enough to stay within the CPU budget after some work
+	 */
+	private void throttle(long workNanos) throws InterruptedIOException {
+		synchronized (this) {
+			compressionNanos += workNanos;
+		}
+		if (cpuBudget >= 1)
+			return;
+		owedNanos += (long) (workNanos * (1 - cpuBudget) / cpuBudget);
+		if (owedNanos < TimeUnit.MILLISECONDS.toNanos(1))
+			return;
+		long millis = TimeUnit.NANOSECONDS.toMillis(owedNanos);
+		owedNanos -= TimeUnit.MILLISECONDS.toNanos(millis);
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * runs {@link #compressQueued()} periodically in the background. A run
+	 * that fails does not stop the next one (see {@link #getLastError()}).
+	 * 
+	 * @return to cancel the worker
+	 */
+	public ScheduledFuture<?> start(ScheduledExecutorService executor,
+			long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					compressQueued();
+					lastError = null;
+				} catch (IOException e) {
+					lastError = e;
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * @return the reason why the last background run failed, null if it
+	 *         worked
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return how many chunks are waiting to be compressed
+	 */
+	public long getQueueLength() {
+		return queue.count();
+	}
+
+	/**
+	 * @return how many chunks have been taken from the queue (in total)
+	 */
+	public synchronized long getProcessedChunks() {
+		return processed;
+	}
+
+	/**
+	 * @return how many chunks have been replaced by a compressed version (in
+	 *         total)
+	 */
+	public synchronized long getCompressedChunks() {
+		return compressed;
+	}
+
+	/**
+	 * @return how many bytes of storage that has saved
+	 */
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	/**
+	 * @return how much time has been spent compressing (in nanoseconds)
+	 */
+	public synchronized long getCompressionNanos() {
+		return compressionNanos;
+	}
+
+}
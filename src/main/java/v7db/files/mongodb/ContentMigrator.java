@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.ContentStorage;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Maintenance job that moves chunks nobody has used for a while out of
+ * MongoDB into the cold storage tier of a MongoContentStorage (see
+ * {@link MongoContentStorage#setColdStorage(ContentStorage, boolean)}), using
+ * its {@link AccessStatistics} to decide what is cold.
+ * <p>
+ * Only chunks that contain the data themselves (stored inline or
+ * compressed) are moved, "cat" manifests and deltas stay where they are
+ * (they are small, and they are resolved by the MongoContentStorage, which
+ * finds the moved chunks in the cold storage). A chunk is first stored in
+ * the cold storage and then deleted from MongoDB, so that it can be read at
+ * all times, and nothing that refers to it has to change.
+ * <p>
+ * Content for which there are no statistics at all counts as cold, so the
+ * statistics should have been enabled for at least the configured period
+ * before the first migration. Only reads that reach the MongoContentStorage
+ * are recorded: content that is served from a cache in front of it (such as
+ * {@link v7db.files.spi.CachingContentStorage} or
+ * {@link v7db.files.spi.DiskCachingContentStorage}) can be popular and still
+ * look cold, so a cache should not keep content for longer than that period.
+ */
+
+public class ContentMigrator {
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contentCollection;
+
+	private final ContentStorage coldStorage;
+
+	private final AccessStatistics stats;
+
+	private final long coldAfter;
+
+	// 0 to only look at the last access
+	private long keepAfterAccesses;
+
+	// 0 for no limit
+	private long maxBytesPerSecond;
+
+	private long migratedChunks, migratedBytes;
+
+	private volatile IOException lastError;
+
+	/**
+	 * @param coldAfter
+	 *            how long a chunk must not have been used (in milliseconds)
+	 *            before it is moved
+	 */
+	public ContentMigrator(MongoContentStorage storage, long coldAfter) {
+		if (storage.getColdStorage() == null)
+			throw new IllegalArgumentException(
+					"the storage has no cold storage tier");
+		if (storage.getAccessStatistics() == null)
+			throw new IllegalArgumentException(
+					"the storage does not record access statistics");
+		this.storage = storage;
+		this.contentCollection = storage.getContentCollection();
+		this.coldStorage = storage.getColdStorage();
+		this.stats = storage.getAccessStatistics();
+		this.coldAfter = coldAfter;
+	}
+
+	/**
+	 * Limits how fast chunks are moved (measured in uncompressed bytes), so
+	 * that the migration does not compete too much with the normal work of
+	 * the database.
+	 * 
+	 * @param maxBytesPerSecond
+	 *            0 for no limit
+	 */
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		if (maxBytesPerSecond < 0)
+			throw new IllegalArgumentException("negative rate");
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	/**
+	 * Keeps chunks that have been used often in MongoDB, even if they have
+	 * not been used recently.
+	 * 
+	 * @param accesses
+	 *            how often a chunk must have been used (in total, since the
+	 *            statistics were enabled) to be kept, 0 to only look at the
+	 *            last access
+	 */
+	public void setKeepFrequentlyUsed(long accesses) {
+		if (accesses < 0)
+			throw new IllegalArgumentException("negative count");
+		this.keepAfterAccesses = accesses;
+	}
+
+	/**
+	 * @return whether the document contains the chunk data itself (and not a
+	 *         reference to other content)
+	 */
+	private static boolean isChunk(DBObject doc) {
+		String store = BSONUtils.getString(doc, "store");
+		if (store == null || "raw".equals(store))
+			return doc.containsField("in");
+		return doc.containsField("zin");
+	}
+
+	/**
+	 * moves all chunks that have not been used since the configured period
+	 * (and not frequently, see {@link #setKeepFrequentlyUsed(long)}) to the
+	 * cold storage
+	 * 
+	 * @return the number of chunks that were moved
+	 */
+	public long migrate() throws IOException {
+		// so that the most recent accesses are taken into account
+		stats.flush();
+		Date cutoff = new Date(System.currentTimeMillis() - coldAfter);
+		long started = System.currentTimeMillis();
+		long bytes = 0;
+		long count = 0;
+		List<DBObject> batch = new ArrayList<DBObject>();
+		DBCursor cursor = contentCollection.find();
+		try {
+			while (cursor.hasNext()) {
+				DBObject doc = cursor.next();
+				if (isChunk(doc))
+					batch.add(doc);
+				if (batch.size() == 100 || !cursor.hasNext()) {
+					List<byte[]> shas = new ArrayList<byte[]>(batch.size());
+					for (DBObject chunk : batch) {
+						shas.add((byte[]) chunk.get(_ID));
+					}
+					Map<String, DBObject> statistics = stats
+							.getStatistics(shas);
+					for (DBObject chunk : batch) {
+						if (isHot(statistics.get(Hex
+								.encodeHexString((byte[]) chunk.get(_ID))),
+								cutoff))
+							continue;
+						bytes += migrateChunk(chunk);
+						count++;
+						throttle(bytes, started);
+					}
+					batch.clear();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		migratedChunks += count;
+		migratedBytes += bytes;
+		return count;
+	}
+
+	/**
+	 * @param statistics
+	 *            of the chunk, null if there are none
+	 * @return whether the chunk has been used since the cutoff, or often
+	 *         enough
+	 */
+	private boolean isHot(DBObject statistics, Date cutoff) {
+		if (statistics == null)
+			return false;
+		Date t = (Date) statistics.get("t");
+		if (t != null && !t.before(cutoff))
+			return true;
+		Long n = BSONUtils.getLong(statistics, "n");
+		return keepAfterAccesses > 0 && n != null && n >= keepAfterAccesses;
+	}
+
+	/**
+	 * stores the chunk in the cold storage, and then deletes it from MongoDB
+	 * 
+	 * @return the (uncompressed) length of the chunk
+	 */
+	private long migrateChunk(DBObject chunk) throws IOException {
+		byte[] sha = (byte[]) chunk.get(_ID);
+		byte[] data;
+		InputStream in = storage.getContent(chunk).getInputStream();
+		try {
+			data = IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		ContentSHA stored = coldStorage
+				.storeContent(new ByteArrayInputStream(data));
+		if (!Arrays.equals(sha, stored.getSHA()))
+			throw new IOException("chunk " + Hex.encodeHexString(sha)
+					+ " was stored as " + stored.getDigest());
+		contentCollection.remove(new BasicDBObject(_ID, sha),
+				WriteConcern.SAFE);
+		return data.length;
+	}
+
+	/**
+	 * waits until moving that many bytes since the start is within the limit
+	 */
+	private void throttle(long bytes, long started)
+			throws InterruptedIOException {
+		if (maxBytesPerSecond == 0)
+			return;
+		long wait = started + bytes * 1000 / maxBytesPerSecond
+				- System.currentTimeMillis();
+		if (wait <= 0)
+			return;
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * runs {@link #migrate()} periodically in the background. A run that
+	 * fails does not stop the next one (see {@link #getLastError()}).
+	 * 
+	 * @return to cancel the migration
+	 */
+	public ScheduledFuture<?> start(ScheduledExecutorService executor,
+			long period, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					migrate();
+					lastError = null;
+				} catch (IOException e) {
+					lastError = e;
+				}
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * @return the reason why the last background run failed, null if it
+	 *         worked
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return how many chunks have been moved (in total)
+	 */
+	public long getMigratedChunks() {
+		return migratedChunks;
+	}
+
+	/**
+	 * @return how many (uncompressed) bytes have been moved (in total)
+	 */
+	public long getMigratedBytes() {
+		return migratedBytes;
+	}
+
+}
@@ -0,0 +1,444 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+import static v7db.files.mongodb.UnusedContent.decodeHex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.bson.BSONObject;
+
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.ReferenceTracking;
+import v7db.files.spi.StoredContent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Maintenance job that moves small pieces of content into packs: A pack is
+ * the concatenation of many small pieces of content, stored as content of its
+ * own (and compressed as a whole). The pieces are the content of small files,
+ * and the small chunks of "cat" manifests. The files and manifests keep the
+ * SHA of the piece, and point to its segment of the pack next to it (see
+ * {@link StoredContent}):
+ * 
+ * <pre>
+ * sha:    [the SHA of the piece]
+ * length: [its length]
+ * pack:   { sha: [the pack SHA], off: [the offset in the pack] }
+ * </pre>
+ * 
+ * At the end of a run, the loose content documents of the pieces are
+ * replaced by a redirect to the pack (a "cat" manifest with just the piece),
+ * so that the content can still be found by its SHA, but its data is only
+ * stored once.
+ * <p>
+ * Optionally, the redirects are deleted instead (see
+ * {@link #setDeleteLoose(boolean)}), unless something else still refers to
+ * them: a file (or an older version of one) that has not been moved to the
+ * pack, a manifest of content identified by a tree hash, a delta, a
+ * dictionary, or an owner of references that is not a file (such as a
+ * bucket). This way, millions of small files need only a few thousand content
+ * documents (and <code>_id</code> index entries).
+ * <p>
+ * The files keep their version (the content has not changed), a file that is
+ * updated concurrently is skipped. The references of the files are updated to
+ * the pack.
+ */
+
+public class ContentPacker {
+
+	private final DBCollection files;
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contents;
+
+	private final DBCollection refCollection;
+
+	private final ReferenceTracking refTracking;
+
+	private int packSize;
+
+	// files and chunks moved into a pack in this run
+	private long moved;
+
+	private final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+
+	// (hex) SHA of the pieces in the current pack -> offset and length
+	private final Map<String, long[]> offsets = new LinkedHashMap<String, long[]>();
+
+	// (hex) SHA of the pieces in the packs of this run -> where they are now
+	private final Map<String, StoredContent> packed = new HashMap<String, StoredContent>();
+
+	// waiting for their pack to be stored
+	private final List<PackedFile> pendingFiles = new ArrayList<PackedFile>();
+
+	private final List<PackedChunk> pendingChunks = new ArrayList<PackedChunk>();
+
+	private long packedFiles, packedChunks, packs, redirected, deleted;
+
+	private boolean deleteLoose;
+
+	public ContentPacker(DB db, MongoContentStorage storage) {
+		this(db.getCollection(V7GridFS.COLLECTION_NAME_FILES), storage, db
+				.getCollection(MongoReferenceTracking.DEFAULT_REFERENCE_COLLECTION_NAME));
+	}
+
+	public ContentPacker(DBCollection files, MongoContentStorage storage,
+			DBCollection refCollection) {
+		this.files = files;
+		this.storage = storage;
+		this.contents = storage.getContentCollection();
+		this.refCollection = refCollection;
+		this.refTracking = new MongoReferenceTracking(refCollection);
+	}
+
+	/**
+	 * Deletes the loose content documents of the pieces that nothing refers
+	 * to any more, instead of just replacing them by a redirect to the pack.
+	 * <p>
+	 * Only files and other owners that use reference tracking (see
+	 * {@link MongoReferenceTracking}) are known to refer to content, so this
+	 * must not be enabled if content is also used by its SHA alone (such as
+	 * content stored by the <code>upload</code> command), and it is gone for
+	 * good once deleted. Content stored at the same time that happens to be
+	 * the same as one of the pieces could also lose it, so the storage should
+	 * not be written to while the run finishes.
+	 */
+	public void setDeleteLoose(boolean deleteLoose) {
+		this.deleteLoose = deleteLoose;
+	}
+
+	/**
+	 * a file waiting for its pack to be stored
+	 */
+	private static final class PackedFile {
+
+		private final Object id;
+
+		private final Object version;
+
+		private final byte[] sha;
+
+		private PackedFile(DBObject file) {
+			id = file.get(_ID);
+			version = file.get(Vermongo._VERSION);
+			sha = (byte[]) file.get("sha");
+		}
+
+	}
+
+	/**
+	 * a chunk of a manifest waiting for its pack to be stored
+	 */
+	private static final class PackedChunk {
+
+		private final byte[] manifest;
+
+		private final int index;
+
+		private final byte[] sha;
+
+		private PackedChunk(byte[] manifest, int index, byte[] sha) {
+			this.manifest = manifest;
+			this.index = index;
+			this.sha = sha;
+		}
+
+	}
+
+	/**
+	 * packs the content of all files, and all chunks of manifests, up to
+	 * <code>maxLength</code> (that are not in a pack already) into packs of
+	 * about <code>packSize</code> (which should not be larger than a chunk),
+	 * and replaces the loose content documents by redirects to the pack (or
+	 * deletes them, see {@link #setDeleteLoose(boolean)})
+	 * 
+	 * @return the number of files and chunks that were moved into a pack
+	 */
+	public long pack(int maxLength, int packSize) throws IOException {
+		if (maxLength > packSize)
+			throw new IllegalArgumentException(
+					"packSize must be larger than maxLength");
+		this.packSize = packSize;
+		moved = 0;
+		try {
+			DBCursor cursor = files.find();
+			try {
+				while (cursor.hasNext()) {
+					DBObject file = cursor.next();
+					byte[] sha = (byte[]) file.get("sha");
+					Long length = BSONUtils.getLong(file, "length");
+					if (sha == null || length == null || length > maxLength
+							|| file.containsField("pack")
+							|| file.containsField("off")
+							|| file.containsField("hash"))
+						continue;
+					if (!add(sha, length))
+						continue;
+					pendingFiles.add(new PackedFile(file));
+				}
+			} finally {
+				cursor.close();
+			}
+
+			// (a tree hash would change with the chunks)
+			cursor = contents.find(new BasicDBObject("store", "cat"));
+			try {
+				while (cursor.hasNext()) {
+					DBObject manifest = cursor.next();
+					if (ContentSHA.TREE_HASH.equals(manifest.get("hash")))
+						continue;
+					Object[] base = BSONUtils.values(manifest, "base");
+					for (int i = 0; i < base.length; i++) {
+						BSONObject chunk = (BSONObject) base[i];
+						byte[] sha = (byte[]) chunk.get("sha");
+						Long length = BSONUtils.getLong(chunk, "length");
+						// (repeated chunks are inline, without a SHA)
+						if (sha == null || length == null
+								|| length > maxLength
+								|| chunk.containsField("pack")
+								|| chunk.containsField("off"))
+							continue;
+						if (!add(sha, length))
+							continue;
+						pendingChunks.add(new PackedChunk((byte[]) manifest
+								.get(_ID), i, sha));
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			storePack();
+			redirectLoose();
+			if (deleteLoose)
+				deleteLoose();
+		} finally {
+			pack.reset();
+			offsets.clear();
+			packed.clear();
+			pendingFiles.clear();
+			pendingChunks.clear();
+		}
+		return moved;
+	}
+
+	/**
+	 * adds the content to the current pack, unless it is in one already
+	 * (stores the current pack first if it is full)
+	 * 
+	 * @return false if the content was not found
+	 */
+	private boolean add(byte[] sha, long length) throws IOException {
+		String digest = Hex.encodeHexString(sha);
+		if (offsets.containsKey(digest) || packed.containsKey(digest))
+			return true;
+		Content content = storage.getContent(sha);
+		if (content == null || content.getLength() != length)
+			return false;
+		if (pack.size() + length > packSize)
+			storePack();
+		offsets.put(digest, new long[] { pack.size(), length });
+		InputStream in = content.getInputStream();
+		try {
+			IOUtils.copy(in, pack);
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * stores the pack, and points the files and manifests that are waiting
+	 * for it (or for a pack stored before) to it
+	 */
+	private void storePack() throws IOException {
+		try {
+			// a pack for just one piece of content saves nothing
+			if (offsets.size() > 1) {
+				ContentSHA packSHA = storage.storeSingleChunk(pack
+						.toByteArray());
+				packs++;
+				for (Map.Entry<String, long[]> e : offsets.entrySet()) {
+					packed.put(e.getKey(), StoredContent.inPack(decodeHex(e
+							.getKey()), e.getValue()[1], packSHA.getSHA(), e
+							.getValue()[0]));
+				}
+			}
+			moved += repointFiles() + repointChunks();
+		} finally {
+			pack.reset();
+			offsets.clear();
+			pendingFiles.clear();
+			pendingChunks.clear();
+		}
+	}
+
+	private long repointFiles() throws IOException {
+		long count = 0;
+		for (PackedFile f : pendingFiles) {
+			StoredContent pointer = packed.get(Hex.encodeHexString(f.sha));
+			if (pointer == null || f.version == null)
+				continue;
+			if (files.update(
+					new BasicDBObject(_ID, f.id).append(Vermongo._VERSION,
+							f.version).append("sha", f.sha).append("pack",
+							new BasicDBObject("$exists", false)),
+					new BasicDBObject("$set", new BasicDBObject("pack",
+							pointer.serialize().get("pack"))), false, false,
+					WriteConcern.SAFE).getN() == 1) {
+				refTracking.updateReferences(f.id, pointer);
+				packedFiles++;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private long repointChunks() {
+		// by manifest
+		Map<String, List<PackedChunk>> manifests = new LinkedHashMap<String, List<PackedChunk>>();
+		for (PackedChunk c : pendingChunks) {
+			if (!packed.containsKey(Hex.encodeHexString(c.sha)))
+				continue;
+			String key = Hex.encodeHexString(c.manifest);
+			List<PackedChunk> chunks = manifests.get(key);
+			if (chunks == null) {
+				chunks = new ArrayList<PackedChunk>();
+				manifests.put(key, chunks);
+			}
+			chunks.add(c);
+		}
+		long count = 0;
+		for (List<PackedChunk> chunks : manifests.values()) {
+			byte[] sha = chunks.get(0).manifest;
+			DBObject manifest = contents.findOne(new BasicDBObject(_ID, sha),
+					new BasicDBObject("base", true));
+			if (manifest == null)
+				continue;
+			List<Object> base = new ArrayList<Object>(Arrays.asList(BSONUtils
+					.values(manifest, "base")));
+			int changed = 0;
+			for (PackedChunk c : chunks) {
+				BSONObject chunk = (BSONObject) base.get(c.index);
+				// (it may have been re-chunked in the meantime)
+				if (chunk.containsField("pack")
+						|| !Arrays.equals(c.sha, (byte[]) chunk.get("sha")))
+					continue;
+				base.set(c.index, packed.get(Hex.encodeHexString(c.sha))
+						.serialize());
+				changed++;
+			}
+			if (changed == 0)
+				continue;
+			contents.update(new BasicDBObject(_ID, sha), new BasicDBObject(
+					"$set", new BasicDBObject("base", base)), false, false,
+					WriteConcern.SAFE);
+			packedChunks += changed;
+			count += changed;
+		}
+		return count;
+	}
+
+	/**
+	 * replaces the loose content documents of the pieces packed in this run
+	 * by a "cat" manifest that points to the piece in the pack
+	 */
+	private void redirectLoose() {
+		for (Map.Entry<String, StoredContent> e : packed.entrySet()) {
+			byte[] sha = decodeHex(e.getKey());
+			contents.update(new BasicDBObject(_ID, sha), new BasicDBObject(
+					_ID, sha).append("store", "cat").append("base",
+					Collections.singletonList(e.getValue().serialize())),
+					false, false, WriteConcern.SAFE);
+			redirected++;
+		}
+	}
+
+	/**
+	 * deletes the redirects of the pieces packed in this run that nothing
+	 * refers to any more
+	 */
+	private void deleteLoose() {
+		Set<String> unused = new HashSet<String>(packed.keySet());
+		UnusedContent.removeUsed(unused, contents, files, refCollection);
+		for (byte[] sha : decodeHex(unused)) {
+			deleted += contents.remove(new BasicDBObject(_ID, sha),
+					WriteConcern.SAFE).getN();
+		}
+	}
+
+	/**
+	 * @return how many files have been moved into packs (in total)
+	 */
+	public long getPackedFiles() {
+		return packedFiles;
+	}
+
+	/**
+	 * @return how many chunks of manifests have been moved into packs (in
+	 *         total)
+	 */
+	public long getPackedChunks() {
+		return packedChunks;
+	}
+
+	/**
+	 * @return how many packs have been stored (in total)
+	 */
+	public long getPacks() {
+		return packs;
+	}
+
+	/**
+	 * @return how many loose content documents have been replaced by a
+	 *         redirect to their pack (in total)
+	 */
+	public long getRedirected() {
+		return redirected;
+	}
+
+	/**
+	 * @return how many loose content documents have been deleted (in total)
+	 */
+	public long getDeleted() {
+		return deleted;
+	}
+
+}
@@ -0,0 +1,542 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+import static v7db.files.mongodb.UnusedContent.decodeHex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.CountingInputStream;
+
+import v7db.files.spi.ContentSHA;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.gridfs.GridFS;
+
+/**
+ * Maintenance job that rewrites the existing content of a
+ * MongoContentStorage the way it would store new content now, so that
+ * changes to its configuration (such as a better compression codec, or
+ * content-defined chunking) also benefit the content stored before.
+ * <ul>
+ * <li>Chunks (stored inline or compressed) are re-encoded with the current
+ * codec, if that makes them smaller.
+ * <li>Optionally, content stored as a "cat" manifest is read and stored
+ * again, with the current chunking and manifest fanout, and its manifest is
+ * replaced (see {@link #setRechunk(boolean)}). Content identified by a tree
+ * hash is left alone.
+ * </ul>
+ * Content is never changed, only the way it is stored, so the SHA of every
+ * document stays the same, nothing that refers to it has to change, and all
+ * of this can run while the storage is in use.
+ * <p>
+ * At the end of a run, the old chunks of the re-chunked content that no
+ * manifest, delta, dictionary, file (or older version of one) or other owner
+ * of references uses any more are counted (see {@link #getUnusedChunks()}),
+ * and deleted by a later run if that is enabled (see
+ * {@link #setDeleteUnusedChunks(boolean)}).
+ * <p>
+ * The content documents are processed in the order of their SHA, in batches.
+ * After every batch, the progress is saved in a checkpoint collection (under
+ * the name of the job), so that a job that was interrupted continues where it
+ * left off. The checkpoint is removed when the job has finished.
+ */
+
+public class ContentRewriter {
+
+	public final static String DEFAULT_CHECKPOINT_COLLECTION_NAME = "v7files.jobs";
+
+	private static final int BATCH_SIZE = 64;
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contentCollection;
+
+	private final DBCollection checkpoints;
+
+	private final String name;
+
+	private boolean rechunk;
+
+	private boolean deleteUnusedChunks;
+
+	private long gracePeriod = TimeUnit.HOURS.toMillis(1);
+
+	private final DBCollection files;
+
+	private final DBCollection refCollection;
+
+	// (hex) SHA of the old chunks of the content re-chunked in this run
+	private final Set<String> oldChunks = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	// optional, to process the documents of a batch in parallel
+	private ExecutorService executor;
+
+	// 0 for no limit
+	private long maxBytesPerSecond;
+
+	private long throttleStart, throttleBytes;
+
+	// totals (including the runs before the checkpoint)
+	private final AtomicLong processed = new AtomicLong(),
+			reencoded = new AtomicLong(), rechunked = new AtomicLong(),
+			bytesSaved = new AtomicLong(), unusedChunks = new AtomicLong(),
+			unusedBytes = new AtomicLong();
+
+	public ContentRewriter(MongoContentStorage storage, String name) {
+		this(storage, storage.getContentCollection().getDB().getCollection(
+				DEFAULT_CHECKPOINT_COLLECTION_NAME), name);
+	}
+
+	/**
+	 * @param name
+	 *            the name of the checkpoint
+	 */
+	public ContentRewriter(MongoContentStorage storage,
+			DBCollection checkpoints, String name) {
+		this.storage = storage;
+		this.contentCollection = storage.getContentCollection();
+		this.checkpoints = checkpoints;
+		this.name = name;
+		this.files = contentCollection.getDB().getCollection(
+				V7GridFS.COLLECTION_NAME_FILES);
+		this.refCollection = contentCollection.getDB().getCollection(
+				MongoReferenceTracking.DEFAULT_REFERENCE_COLLECTION_NAME);
+	}
+
+	/**
+	 * Enables re-chunking: all content stored as a "cat" manifest is read
+	 * completely, and stored again.
+	 * <p>
+	 * Manifests that are subtrees of a nested manifest are not re-chunked by
+	 * themselves (they are part of their top-level content). They are
+	 * recognized by their length being larger than a chunk can be, which
+	 * might not catch all of them (if chunks were larger before), but
+	 * re-chunking one of them by itself is only wasted work, not wrong.
+	 */
+	public void setRechunk(boolean rechunk) {
+		this.rechunk = rechunk;
+	}
+
+	/**
+	 * Deletes the old chunks of re-chunked content that nothing refers to any
+	 * more. They are not deleted by the run that finds them, but marked (in
+	 * the checkpoint collection), and deleted by a later run that finds them
+	 * still unused after the grace period (see
+	 * {@link #setGracePeriod(long, TimeUnit)}), so that readers that have
+	 * loaded the old manifest before can still finish.
+	 * <p>
+	 * Only files and other owners that use reference tracking (see
+	 * {@link MongoReferenceTracking}) are known to refer to content, so this
+	 * must not be enabled if content is also used by its SHA alone (such as
+	 * content stored by the <code>upload</code> command). Content stored at
+	 * the same time that happens to share one of the chunks could also lose
+	 * it, so the storage should not be written to while the run finishes. A
+	 * deleted chunk is gone for good, nothing can be read from it any more.
+	 */
+	public void setDeleteUnusedChunks(boolean deleteUnusedChunks) {
+		this.deleteUnusedChunks = deleteUnusedChunks;
+	}
+
+	/**
+	 * @param gracePeriod
+	 *            how long an unused old chunk has to stay unused before it is
+	 *            deleted (one hour by default)
+	 */
+	public void setGracePeriod(long gracePeriod, TimeUnit unit) {
+		if (gracePeriod < 0)
+			throw new IllegalArgumentException("negative grace period");
+		this.gracePeriod = unit.toMillis(gracePeriod);
+	}
+
+	/**
+	 * Processes the documents of every batch in parallel on the given
+	 * executor.
+	 * 
+	 * @param executor
+	 *            null to process them on the calling thread
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Limits how fast content is read (measured in uncompressed bytes), so
+	 * that the job does not compete too much with the normal work of the
+	 * database.
+	 * 
+	 * @param maxBytesPerSecond
+	 *            0 for no limit
+	 */
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		if (maxBytesPerSecond < 0)
+			throw new IllegalArgumentException("negative rate");
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	/**
+	 * runs the job (continuing from the checkpoint, if there is one)
+	 * 
+	 * @return how many documents were processed in this run
+	 */
+	public long run() throws IOException {
+		DBObject checkpoint = checkpoints.findOne(name);
+		BasicDBObject query = new BasicDBObject();
+		if (checkpoint != null) {
+			query.append(_ID, new BasicDBObject("$gt", checkpoint.get("last")));
+			processed.set(BSONUtils.getRequiredLong(checkpoint, "processed"));
+			reencoded.set(BSONUtils.getRequiredLong(checkpoint, "reencoded"));
+			rechunked.set(BSONUtils.getRequiredLong(checkpoint, "rechunked"));
+			bytesSaved.set(BSONUtils.getRequiredLong(checkpoint, "bytesSaved"));
+			Long unused = BSONUtils.getLong(checkpoint, "unusedChunks");
+			unusedChunks.set(unused == null ? 0 : unused);
+			unused = BSONUtils.getLong(checkpoint, "unusedBytes");
+			unusedBytes.set(unused == null ? 0 : unused);
+		}
+		oldChunks.clear();
+		Set<String> dictionaries = findDictionaries();
+		Set<String> subtrees = rechunk ? findSubtrees() : new HashSet<String>();
+		synchronized (this) {
+			throttleStart = System.currentTimeMillis();
+			throttleBytes = 0;
+		}
+
+		long count = 0;
+		List<DBObject> batch = new ArrayList<DBObject>(BATCH_SIZE);
+		DBCursor cursor = contentCollection.find(query).sort(
+				new BasicDBObject(_ID, 1));
+		try {
+			while (cursor.hasNext()) {
+				DBObject doc = cursor.next();
+				byte[] sha = (byte[]) doc.get(_ID);
+				String hex = Hex.encodeHexString(sha);
+				boolean skip = dictionaries.contains(hex)
+						|| ("cat".equals(doc.get("store")) && subtrees
+								.contains(hex));
+				if (!skip)
+					batch.add(doc);
+				if (batch.size() == BATCH_SIZE || !cursor.hasNext()) {
+					process(batch);
+					count += batch.size();
+					processed.addAndGet(batch.size());
+					batch.clear();
+					saveCheckpoint(sha);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		sweepOldChunks();
+		checkpoints.remove(new BasicDBObject(_ID, name));
+		return count;
+	}
+
+	/**
+	 * counts the old chunks of the content re-chunked in this run that
+	 * nothing refers to any more (a run that was interrupted does not know
+	 * about the chunks from before its checkpoint). If deletion is enabled,
+	 * marks them, and deletes the ones marked by an earlier run that are
+	 * still unused.
+	 */
+	private void sweepOldChunks() {
+		Set<String> unused;
+		synchronized (oldChunks) {
+			unused = new HashSet<String>(oldChunks);
+			oldChunks.clear();
+		}
+		// (hex) SHA -> when an earlier run found them unused
+		Map<String, Date> marked = new HashMap<String, Date>();
+		for (DBObject mark : checkpoints.find(new BasicDBObject("job", name))) {
+			marked.put(Hex.encodeHexString((byte[]) mark.get("unused")),
+					(Date) mark.get("t"));
+		}
+		Set<String> candidates = new HashSet<String>(unused);
+		candidates.addAll(marked.keySet());
+		UnusedContent.removeUsed(candidates, contentCollection, files,
+				refCollection);
+		// used again
+		for (String hex : marked.keySet()) {
+			if (!candidates.contains(hex))
+				checkpoints.remove(new BasicDBObject(_ID, markId(hex)));
+		}
+
+		long deadline = System.currentTimeMillis() - gracePeriod;
+		for (String hex : candidates) {
+			byte[] sha = decodeHex(hex);
+			DBObject chunk = contentCollection.findOne(new BasicDBObject(_ID,
+					sha), new BasicDBObject("zin", true).append("in", true));
+			Date since = marked.get(hex);
+			if (chunk == null) {
+				if (since != null)
+					checkpoints.remove(new BasicDBObject(_ID, markId(hex)));
+				continue;
+			}
+			byte[] stored = (byte[]) chunk.get(chunk.containsField("zin") ? "zin"
+					: "in");
+			long length = stored == null ? 0 : stored.length;
+			if (unused.contains(hex)) {
+				unusedChunks.incrementAndGet();
+				unusedBytes.addAndGet(length);
+			}
+			if (!deleteUnusedChunks)
+				continue;
+			if (since == null) {
+				checkpoints.save(new BasicDBObject(_ID, markId(hex)).append(
+						"job", name).append("unused", sha).append("t",
+						new Date()), WriteConcern.SAFE);
+			} else if (since.getTime() <= deadline) {
+				contentCollection.remove(new BasicDBObject(_ID, sha),
+						WriteConcern.SAFE);
+				checkpoints.remove(new BasicDBObject(_ID, markId(hex)));
+				bytesSaved.addAndGet(length);
+			}
+		}
+	}
+
+	/**
+	 * @return the <code>_id</code> of the mark of an unused chunk (in the
+	 *         checkpoint collection)
+	 */
+	private String markId(String hex) {
+		return name + ":unused:" + hex;
+	}
+
+	/**
+	 * @return the (hex-encoded) SHA of the dictionaries (which must not be
+	 *         compressed with another dictionary)
+	 */
+	private Set<String> findDictionaries() {
+		Set<String> result = new HashSet<String>();
+		DBCursor cursor = contentCollection.find(
+				new BasicDBObject("store", "dict"), new BasicDBObject("dict",
+						true));
+		try {
+			while (cursor.hasNext()) {
+				result.add(Hex.encodeHexString((byte[]) BSONUtils.get(cursor
+						.next(), "dict.sha")));
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the (hex-encoded) SHA of the subtrees of nested manifests (and
+	 *         maybe some chunks, which is why only manifests are skipped)
+	 */
+	private Set<String> findSubtrees() {
+		Set<String> result = new HashSet<String>();
+		// (fixed-size chunks could be larger than the current maximum)
+		long maxChunkSize = Math.max(storage.getMaxChunkSize(),
+				GridFS.DEFAULT_CHUNKSIZE);
+		DBCursor cursor = contentCollection.find(new BasicDBObject("store",
+				"cat"),
+				new BasicDBObject("base", true));
+		try {
+			while (cursor.hasNext()) {
+				for (Object o : BSONUtils.values(cursor.next(), "base")) {
+					@SuppressWarnings("unchecked")
+					Map<String, Object> base = (Map<String, Object>) o;
+					Long length = BSONUtils.toLong(base.get("length"));
+					// (repeated chunks are inline, without a SHA)
+					if (length != null && length > maxChunkSize
+							&& base.containsKey("sha"))
+						result.add(Hex.encodeHexString((byte[]) base.get("sha")));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	private void saveCheckpoint(byte[] last) {
+		checkpoints.save(new BasicDBObject(_ID, name).append("last", last)
+				.append("processed", processed.get()).append("reencoded",
+						reencoded.get()).append("rechunked", rechunked.get())
+				.append("bytesSaved", bytesSaved.get()).append("unusedChunks",
+						unusedChunks.get()).append("unusedBytes",
+						unusedBytes.get()).append("t", new Date()),
+				WriteConcern.SAFE);
+	}
+
+	private void process(List<DBObject> batch) throws IOException {
+		if (executor == null) {
+			for (DBObject doc : batch) {
+				rewrite(doc);
+			}
+			return;
+		}
+		List<Future<Void>> pending = new ArrayList<Future<Void>>(batch.size());
+		try {
+			for (final DBObject doc : batch) {
+				pending.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						rewrite(doc);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : pending) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			for (Future<Void> f : pending) {
+				f.cancel(false);
+			}
+		}
+	}
+
+	private void rewrite(DBObject doc) throws IOException {
+		String store = BSONUtils.getString(doc, "store");
+		if (doc.containsField("zin")
+				|| ((store == null || "raw".equals(store)) && doc
+						.containsField("in"))) {
+			Long length = BSONUtils.getLong(doc, "length");
+			if (length == null) {
+				// (inline, or an old gzip chunk that does not record its
+				// length: count the stored bytes instead)
+				byte[] stored = (byte[]) doc.get(doc.containsField("zin") ? "zin"
+						: "in");
+				length = Long.valueOf(stored == null ? 0 : stored.length);
+			}
+			long saved = storage.reencodeChunk(doc);
+			if (saved > 0) {
+				reencoded.incrementAndGet();
+				bytesSaved.addAndGet(saved);
+			}
+			throttle(length);
+			return;
+		}
+		// (a tree hash would change with the chunks)
+		if (rechunk && "cat".equals(store)
+				&& !ContentSHA.TREE_HASH.equals(doc.get("hash"))) {
+			byte[] sha = (byte[]) doc.get(_ID);
+			InputStream in = storage.getContent(doc).getInputStream();
+			CountingInputStream counter = new CountingInputStream(in);
+			try {
+				oldChunks.addAll(storage.rechunk(sha, counter));
+			} finally {
+				in.close();
+			}
+			rechunked.incrementAndGet();
+			throttle(counter.getByteCount());
+		}
+	}
+
+	/**
+	 * waits until reading that many more bytes is within the limit
+	 */
+	private synchronized void throttle(long bytes)
+			throws InterruptedIOException {
+		if (maxBytesPerSecond == 0)
+			return;
+		throttleBytes += bytes;
+		long wait = throttleStart + throttleBytes * 1000 / maxBytesPerSecond
+				- System.currentTimeMillis();
+		if (wait <= 0)
+			return;
+		try {
+			// holding the lock, so that the other workers wait as well
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * @return how many documents have been processed (in total)
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return how many chunks have been re-encoded (in total)
+	 */
+	public long getReencodedChunks() {
+		return reencoded.get();
+	}
+
+	/**
+	 * @return how many pieces of content have been re-chunked (in total)
+	 */
+	public long getRechunked() {
+		return rechunked.get();
+	}
+
+	/**
+	 * @return how many bytes of storage re-encoding the chunks and deleting
+	 *         the unused old chunks has saved (in total, not counting the new
+	 *         chunks of re-chunked content)
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/**
+	 * @return how many old chunks of re-chunked content nothing refers to any
+	 *         more (in total, whether they were deleted or not)
+	 */
+	public long getUnusedChunks() {
+		return unusedChunks.get();
+	}
+
+	/**
+	 * @return the stored bytes of the unused old chunks (in total)
+	 */
+	public long getUnusedBytes() {
+		return unusedBytes.get();
+	}
+
+}
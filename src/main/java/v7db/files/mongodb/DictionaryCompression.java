@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.PresetDictionary;
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.DictionaryDeflatedContent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Maintenance job to compress the small chunks in a MongoContentStorage with
+ * a preset dictionary (one per storage, i.e. per tenant database), see
+ * {@link DictionaryDeflatedContent}.
+ * <ol>
+ * <li>{@link #trainDictionary(int, int)} samples existing chunks, trains a
+ * dictionary from them, and stores it (as uncompressed content).
+ * <li>{@link MongoContentStorage#setCompressionCodec} with the resulting
+ * codec makes new chunks use the dictionary (this needs to be done again
+ * every time the storage is set up, by loading the dictionary content).
+ * <li>{@link #recompress(DictionaryDeflatedContent)} re-encodes the existing
+ * chunks, if they get smaller that way.
+ * </ol>
+ * The content itself (and its SHA) never changes, only the way it is stored,
+ * so all of this can run while the storage is in use.
+ * <p>
+ * Dictionaries are referenced by the chunks that use them, and must not be
+ * deleted while that is the case.
+ */
+
+public class DictionaryCompression {
+
+	private final MongoContentStorage storage;
+
+	private final DBCollection contentCollection;
+
+	private final int maxLength;
+
+	private long recompressed, bytesSaved;
+
+	/**
+	 * @param maxLength
+	 *            only chunks up to this length are sampled and re-encoded
+	 *            (larger ones compress well enough without a dictionary)
+	 */
+	public DictionaryCompression(MongoContentStorage storage, int maxLength) {
+		this.storage = storage;
+		this.contentCollection = storage.getContentCollection();
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @return whether the chunk is of a kind and size that can be
+	 *         re-encoded (stored inline or compressed by itself, not a
+	 *         concatenation or delta or reference into a zip file)
+	 */
+	private boolean isEligible(DBObject chunk) {
+		String store = BSONUtils.getString(chunk, "store");
+		boolean inline = store == null || "raw".equals(store);
+		byte[] data = (byte[]) chunk.get(inline ? "in" : "zin");
+		if (data == null)
+			return false;
+		if (inline)
+			return data.length <= maxLength;
+		if (!Arrays.asList("gz", "deflate", "lz", "dict").contains(store))
+			return false;
+		Long length = BSONUtils.getLong(chunk, "length");
+		return length != null && length <= maxLength;
+	}
+
+	private static int storedSize(DBObject chunk) {
+		byte[] data = (byte[]) chunk.get("in");
+		if (data == null)
+			data = (byte[]) chunk.get("zin");
+		return data.length;
+	}
+
+	private byte[] decode(DBObject chunk) throws IOException {
+		Content content = storage.getContent(chunk);
+		InputStream in = content.getInputStream();
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * samples existing chunks (up to <code>maxLength</code>), trains a
+	 * dictionary from them, and stores it.
+	 * 
+	 * @return a codec that compresses with the new dictionary, null if there
+	 *         was nothing to learn from the samples
+	 */
+	public DictionaryDeflatedContent trainDictionary(int samples,
+			int dictionarySize) throws IOException {
+		List<byte[]> data = new ArrayList<byte[]>(samples);
+		DBCursor cursor = contentCollection.find();
+		try {
+			while (data.size() < samples && cursor.hasNext()) {
+				DBObject chunk = cursor.next();
+				if (isEligible(chunk))
+					data.add(decode(chunk));
+			}
+		} finally {
+			cursor.close();
+		}
+		byte[] dictionary = PresetDictionary.train(data, dictionarySize);
+		if (dictionary.length == 0)
+			return null;
+
+		// stored as-is (not through the storage, which might want to compress
+		// it with another dictionary)
+		ContentSHA sha = ContentSHA.calculate(dictionary);
+		if (contentCollection.count(new BasicDBObject(_ID, sha.getSHA())) == 0) {
+			try {
+				contentCollection.insert(new BasicDBObject(_ID, sha.getSHA())
+						.append("in", dictionary), WriteConcern.SAFE);
+			} catch (MongoException.DuplicateKey e) {
+				// the same dictionary has just been stored by someone else
+			}
+		}
+		return new DictionaryDeflatedContent(dictionary);
+	}
+
+	/**
+	 * re-encodes all eligible chunks with the dictionary of the given codec,
+	 * if that makes them smaller
+	 * 
+	 * @return the number of chunks that were re-encoded
+	 */
+	public long recompress(DictionaryDeflatedContent codec) throws IOException {
+		String dict = codec.getDictionary().getDigest();
+		// never compress a dictionary (with itself or another one)
+		Set<String> dictionaries = new HashSet<String>();
+		dictionaries.add(dict);
+		DBCursor cursor = contentCollection.find(new BasicDBObject("store",
+				"dict"), new BasicDBObject("dict", true));
+		try {
+			while (cursor.hasNext()) {
+				dictionaries.add(Hex.encodeHexString((byte[]) BSONUtils.get(
+						cursor.next(), "dict.sha")));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		long count = 0;
+		cursor = contentCollection.find();
+		try {
+			while (cursor.hasNext()) {
+				DBObject chunk = cursor.next();
+				byte[] sha = (byte[]) chunk.get(_ID);
+				if (!isEligible(chunk)
+						|| dictionaries.contains(Hex.encodeHexString(sha)))
+					continue;
+				if ("dict".equals(chunk.get("store"))
+						&& dict.equals(Hex.encodeHexString((byte[]) BSONUtils
+								.get(chunk, "dict.sha"))))
+					continue;
+				int before = storedSize(chunk);
+				byte[] data = decode(chunk);
+				byte[] compressed = codec.compress(data, 0, data.length);
+				if (compressed == null || compressed.length >= before)
+					continue;
+				DBObject doc = new BasicDBObject(_ID, sha).append("zin",
+						compressed).append("store", codec.getId()).append(
+						"length", data.length);
+				doc.putAll(codec.getFields());
+				contentCollection.update(new BasicDBObject(_ID, sha), doc,
+						false, false, WriteConcern.SAFE);
+				count++;
+				bytesSaved += before - compressed.length;
+			}
+		} finally {
+			cursor.close();
+		}
+		recompressed += count;
+		return count;
+	}
+
+	/**
+	 * @return how many chunks have been re-encoded (in total)
+	 */
+	public long getRecompressedChunks() {
+		return recompressed;
+	}
+
+	/**
+	 * @return how many bytes of storage that has saved
+	 */
+	public long getBytesSaved() {
+		return bytesSaved;
+	}
+
+}
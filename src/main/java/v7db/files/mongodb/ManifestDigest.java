@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import v7db.files.spi.ContentSHA;
+
+/**
+ * Calculates the SHA of the complete content, and of every subtree of a
+ * nested "cat" manifest, while the chunks are being read (one call to
+ * {@link #update(byte[], int, int)} per chunk).
+ * <p>
+ * A subtree on level <code>n</code> covers <code>fanout^n</code> chunks (the
+ * last one on each level maybe less). Subtrees are content like any other,
+ * their _id is the SHA of the data they cover.
+ * <p>
+ * The first subtree on every level starts with the content itself, so its
+ * SHA can be taken from (a copy of) the complete digest. Only the subtrees
+ * after that need their own digest, and only one per level at a time.
+ */
+
+final class ManifestDigest {
+
+	private final int fanout;
+
+	private final MessageDigest complete;
+
+	private long length;
+
+	private long chunks;
+
+	// the digests of the current subtree on every level (starting at level 1),
+	// null as long as that is the first subtree
+	private final List<MessageDigest> current = new ArrayList<MessageDigest>();
+
+	private final List<Long> currentLength = new ArrayList<Long>();
+
+	// the finished subtrees on every level (starting at level 1)
+	private final List<List<ContentSHA>> subtrees = new ArrayList<List<ContentSHA>>();
+
+	ManifestDigest(int fanout) {
+		this.fanout = fanout;
+		complete = newDigest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * adds the next chunk
+	 */
+	void update(byte[] chunk, int offset, int len) {
+		complete.update(chunk, offset, len);
+		length += len;
+		for (int i = 0; i < current.size(); i++) {
+			MessageDigest d = current.get(i);
+			if (d != null) {
+				d.update(chunk, offset, len);
+				currentLength.set(i, currentLength.get(i) + len);
+			}
+		}
+		chunks++;
+
+		long size = 1;
+		for (int level = 1;; level++) {
+			size *= fanout;
+			if (chunks % size != 0)
+				break;
+			// the current subtree on this level is complete
+			if (subtrees.size() < level) {
+				subtrees.add(new ArrayList<ContentSHA>());
+				current.add(null);
+				currentLength.add(0L);
+			}
+			MessageDigest d = current.get(level - 1);
+			if (d == null) {
+				try {
+					d = (MessageDigest) complete.clone();
+				} catch (CloneNotSupportedException e) {
+					throw new RuntimeException(e);
+				}
+				subtrees.get(level - 1).add(
+						ContentSHA.forDigestAndLength(d.digest(), length));
+			} else {
+				subtrees.get(level - 1).add(
+						ContentSHA.forDigestAndLength(d.digest(), currentLength
+								.get(level - 1)));
+			}
+			current.set(level - 1, newDigest());
+			currentLength.set(level - 1, 0L);
+		}
+	}
+
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the SHA of the complete content (can only be called once)
+	 */
+	ContentSHA getContentSHA() {
+		return ContentSHA.forDigestAndLength(complete.digest(), length);
+	}
+
+	/**
+	 * @return all subtrees on the given level, including the last incomplete
+	 *         one (can only be called once per level, and only for levels
+	 *         where the first subtree is complete)
+	 */
+	List<ContentSHA> getSubtrees(int level) {
+		List<ContentSHA> result = subtrees.get(level - 1);
+		long rest = currentLength.get(level - 1);
+		if (rest > 0)
+			result.add(ContentSHA.forDigestAndLength(current.get(level - 1)
+					.digest(), rest));
+		return result;
+	}
+
+	int getFanout() {
+		return fanout;
+	}
+
+}
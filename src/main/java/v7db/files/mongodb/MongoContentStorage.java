@@ -19,15 +19,29 @@ package v7db.files.mongodb;
 
 import static v7db.files.mongodb.QueryUtils._ID;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -36,6 +50,8 @@ import org.apache.commons.lang3.ArrayUtils;
 import org.bson.BSONObject;
 
 import v7db.files.Compression;
+import v7db.files.ContentDefinedChunking;
+import v7db.files.Delta;
 import v7db.files.MapUtils;
 import v7db.files.ZipFile;
 import v7db.files.spi.Content;
@@ -43,9 +59,15 @@ import v7db.files.spi.ContentConcatenation;
 import v7db.files.spi.ContentPointer;
 import v7db.files.spi.ContentSHA;
 import v7db.files.spi.ContentStorage;
+import v7db.files.spi.CompressionCodec;
+import v7db.files.spi.DeflatedContent;
+import v7db.files.spi.DeltaContent;
+import v7db.files.spi.DictionaryDeflatedContent;
 import v7db.files.spi.GzippedContent;
 import v7db.files.spi.InlineContent;
+import v7db.files.spi.LZContent;
 import v7db.files.spi.OffsetAndLength;
+import v7db.files.spi.ReadAhead;
 import v7db.files.spi.StorageScheme;
 import v7db.files.spi.StoredContent;
 
@@ -53,6 +75,8 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.QueryOperators;
 import com.mongodb.WriteConcern;
 import com.mongodb.gridfs.GridFS;
 
@@ -61,18 +85,28 @@ import com.mongodb.gridfs.GridFS;
  * 
  * <ul>
  * <li>The <code>_id</code> field is the content SHA-1 digest (20 bytes of
- * binary data)
+ * binary data), or a tree hash for large content if that is enabled (see
+ * {@link #setTreeHashIdentity(boolean)})
  * <li>"Small" content (that does not need to be chunked) is stored in the
  * binary field <code>in</code>.
  * <li>If the data can be compressed using gzip, it will be stored in compressed
  * form as <code>zin</code>. This mode is indicated by setting the value
  * <code>gz</code> for the <code>store</code> field. The uncompressed length is
- * given in the <code>length</code> field.
+ * given in the <code>length</code> field. Other compression codecs (
+ * <code>deflate</code>, <code>lz</code>, <code>dict</code> for deflate with a
+ * preset dictionary) can be configured instead, they are indicated by their
+ * own <code>store</code> value.
  * <li>"Large" content is stored as the concatenation of chunks stored
  * out-of-band (in other documents). For very large documents this can also
- * become nested.
+ * become nested (a manifest of manifests, see
+ * {@link #setManifestFanout(int)}).
+ * <li>If delta storage is enabled, content that is similar to other content
+ * can be stored as the difference to that other content (
+ * <code>store: delta</code>).
  * <li>Other types of "out-of-band" storage schemes are possible and can be
  * provided by extension code.
+ * <li>Chunks that are no longer used can be moved to a cheaper storage tier
+ * (see {@link #setColdStorage(ContentStorage, boolean)}).
  * </ul>
  * 
  * @see https://github.com/thiloplanz/v7files/wiki/StorageFormat
@@ -90,74 +124,504 @@ public class MongoContentStorage implements ContentStorage {
 
 	public final static String DEFAULT_CONTENT_COLLECTION_NAME = "v7files.content";
 
+	// optional, for pipelined ingest
+	private ExecutorService ingestExecutor;
+
+	private int ingestBuffers;
+
+	// how many chunks to check and insert with a single round-trip
+	private int chunkBatchSize = 1;
+
+	// how chunks are compressed (if at all)
+	private CompressionCodec codec = new GzippedContent();
+
+	// how often compression was tried and worked, tried and did not work,
+	// and not even tried
+	private final AtomicLong compressedChunks = new AtomicLong(),
+			compressionFailed = new AtomicLong(),
+			skippedByProbe = new AtomicLong(),
+			skippedByContentType = new AtomicLong(),
+			deferredChunks = new AtomicLong();
+
+	// optional, to compress chunks later (see CompressionWorker)
+	private DBCollection compressionQueue;
+
+	// optional, instead of fixed-size chunks
+	private ContentDefinedChunking contentDefinedChunking;
+
+	// optional, for delta storage of similar content
+	private DBCollection sketchCollection;
+
+	private int deltaUntilLength;
+
+	// how many deltas may have to be applied to read content
+	private int maxDeltaChain = 4;
+
+	// at most this many chunks per "cat" manifest
+	private int manifestFanout = 1024;
+
+	// chunks that repeat a pattern of up to this many bytes are put into the
+	// manifest as inline content (0 to store them like all other chunks)
+	private int maxRepeatPeriod;
+
+	// shorter chunks are always stored
+	private static final int MIN_REPEAT_LENGTH = 1024;
+
+	private final AtomicLong repeatedChunks = new AtomicLong();
+
+	// identify chunked content by a hash over its chunks
+	private boolean treeHashIdentity;
+
+	// hex SHA -> the insert in progress (in this process)
+	private final ConcurrentMap<String, PendingInsert> pendingInserts = new ConcurrentHashMap<String, PendingInsert>();
+
+	private final AtomicLong coalescedInserts = new AtomicLong();
+
+	public final static String DEFAULT_SKETCH_COLLECTION_NAME = "v7files.sketches";
+
+	/**
+	 * the longest content (and base) that can be used for delta storage
+	 * (both are held in memory while the delta is calculated)
+	 */
+	public final static int MAX_DELTA_LENGTH = 4 * 1024 * 1024;
+
+	// how many candidates with a common feature are compared to the sketch
+	private final static int MAX_DELTA_CANDIDATES = 100;
+
+	public final static String DEFAULT_COMPRESSION_QUEUE_NAME = "v7files.compress";
+
+	// optional, for content that has been moved out of MongoDB
+	private ContentStorage coldStorage;
+
+	private boolean promoteColdContent;
+
+	// optional, to find out what can be moved to the cold storage
+	private AccessStatistics accessStatistics;
+
 	public MongoContentStorage(DB db) {
 		this(db.getCollection(DEFAULT_CONTENT_COLLECTION_NAME));
 	}
 
 	public MongoContentStorage(DBCollection contentCollection) {
 		this.contentCollection = contentCollection;
-		storageSchemes.put("gz", new GzippedContent());
+		storageSchemes.put("gz", codec);
+		storageSchemes.put("deflate", new DeflatedContent());
+		storageSchemes.put("lz", new LZContent());
 		storageSchemes.put("cat", new ContentConcatenation());
 		storageSchemes.put("zip", new ZipFile.ContentFromZipFile());
+		storageSchemes.put("delta", new DeltaContent());
+		storageSchemes.put("dict", new DictionaryDeflatedContent());
+	}
+
+	/**
+	 * Sets how chunks are compressed (if that makes them smaller). The
+	 * default is gzip. The codec is also registered as a StorageScheme, so
+	 * that the chunks can be read again (all codecs that come with v7files
+	 * are registered anyway).
+	 * 
+	 * @param codec
+	 *            null to store chunks uncompressed
+	 */
+	public void setCompressionCodec(CompressionCodec codec) {
+		this.codec = codec;
+		if (codec != null)
+			storageSchemes.put(codec.getId(), codec);
+	}
+
+	/**
+	 * Defers compression: New chunks are stored uncompressed, and their SHA
+	 * is put into a queue collection, from which a {@link CompressionWorker}
+	 * picks them up later. This makes ingest faster, at the cost of
+	 * (temporarily) using more space. Chunks that would not be compressed
+	 * anyway (because of their content type or their sample) are not queued.
+	 * 
+	 * @param queue
+	 *            null to compress chunks right away
+	 */
+	public void setDeferredCompression(DBCollection queue) {
+		this.compressionQueue = queue;
+	}
+
+	DBCollection getCompressionQueue() {
+		return compressionQueue;
+	}
+
+	CompressionCodec getCompressionCodec() {
+		return codec;
+	}
+
+	DBCollection getContentCollection() {
+		return contentCollection;
+	}
+
+	/**
+	 * @return how many chunks have been stored compressed
+	 */
+	public long getCompressedChunks() {
+		return compressedChunks.get();
+	}
+
+	/**
+	 * @return how many chunks have been compressed in vain (because they did
+	 *         not get smaller)
+	 */
+	public long getCompressionFailures() {
+		return compressionFailed.get();
+	}
+
+	/**
+	 * @return how many chunks have not been compressed because a sample
+	 *         showed that it would not work
+	 */
+	public long getCompressionSkippedByProbe() {
+		return skippedByProbe.get();
+	}
+
+	/**
+	 * @return how many pieces of content have not been compressed because of
+	 *         their content type
+	 */
+	public long getCompressionSkippedByContentType() {
+		return skippedByContentType.get();
+	}
+
+	/**
+	 * @return how many chunks have been stored uncompressed and queued for
+	 *         deferred compression
+	 */
+	public long getDeferredChunks() {
+		return deferredChunks.get();
+	}
+
+	/**
+	 * @return how many chunks have been put into manifests as repetitions of
+	 *         a short pattern (instead of being stored)
+	 */
+	public long getRepeatedChunks() {
+		return repeatedChunks.get();
+	}
+
+	/**
+	 * @return how often content was not written because another thread was
+	 *         writing the same content at the same time
+	 */
+	public long getCoalescedInserts() {
+		return coalescedInserts.get();
+	}
+
+	/**
+	 * Enables read-ahead for large content: When it is read sequentially, the
+	 * next few chunks are retrieved with a single query, instead of a query
+	 * for every chunk when it is needed.
+	 * 
+	 * @param readAhead
+	 *            null to disable
+	 */
+	public void setReadAhead(ReadAhead readAhead) {
+		storageSchemes.put("cat", new ContentConcatenation(readAhead));
+	}
+
+	/**
+	 * Enables pipelined ingest for large content: While the calling thread
+	 * reads ahead (into a ring of at most <code>buffers</code> chunk buffers),
+	 * the chunks are hashed, compressed and inserted on the given executor, so
+	 * that several chunk inserts can be in flight at the same time.
+	 * <p>
+	 * The resulting chunks (and the "cat" document) are exactly the same as
+	 * with sequential ingest.
+	 * 
+	 * @param executor
+	 *            null to go back to sequential ingest
+	 */
+	public void setIngestExecutor(ExecutorService executor, int buffers) {
+		if (executor != null && buffers < 1)
+			throw new IllegalArgumentException("need at least one buffer");
+		this.ingestExecutor = executor;
+		this.ingestBuffers = buffers;
+	}
+
+	/**
+	 * Enables batched ingest for large content: The existence of up to
+	 * <code>chunks</code> chunks is checked with a single query, and the
+	 * missing ones are written with a single (multi-document) insert.
+	 * <p>
+	 * This needs a buffer for every chunk in the batch.
+	 */
+	public void setChunkBatchSize(int chunks) {
+		if (chunks < 1)
+			throw new IllegalArgumentException("batch size must be positive");
+		this.chunkBatchSize = chunks;
+	}
+
+	/**
+	 * Sets how many chunks (or subtrees) a single "cat" manifest can refer
+	 * to. Content with more chunks than that gets a nested manifest: The
+	 * top-level manifest refers to subtrees (with their SHA and length),
+	 * which are manifests themselves. This keeps the documents small (about
+	 * 50 bytes per entry), and reading a part of the content only has to load
+	 * the subtrees that cover it.
+	 * <p>
+	 * The default is 1024 (so nesting starts at 256 MB with the default chunk
+	 * size).
+	 */
+	public void setManifestFanout(int fanout) {
+		if (fanout < 2)
+			throw new IllegalArgumentException("fanout must be at least 2");
+		this.manifestFanout = fanout;
+	}
+
+	/**
+	 * Enables the detection of repeated runs: chunks that consist of nothing
+	 * but repetitions of a byte pattern of up to <code>maxPeriod</code> bytes
+	 * (such as the zeros in disk images or preallocated files) are not stored
+	 * at all, they are put into the "cat" manifest as inline content instead,
+	 * so that neither storing nor reading them needs a round-trip to the
+	 * database.
+	 * <p>
+	 * Only chunks of at least 1 KB are checked. A pattern of 64 bytes or so
+	 * should catch most runs, and the check gives up quickly on other data.
+	 * 
+	 * @param maxPeriod
+	 *            0 to store all chunks (the default)
+	 */
+	public void setMaxRepeatPeriod(int maxPeriod) {
+		if (maxPeriod < 0)
+			throw new IllegalArgumentException("negative period");
+		this.maxRepeatPeriod = maxPeriod;
+	}
+
+	/**
+	 * Enables tree hashes as the identity of new content that is stored as
+	 * more than one chunk: Instead of the SHA-1 of all the data (which has
+	 * to be calculated in addition to the SHA-1 of every chunk, on the thread
+	 * that reads the data), its <code>_id</code> is calculated from the SHA
+	 * of the chunks (see {@link ContentSHA#calculateTreeHash(List)}). This
+	 * way every byte is hashed only once, and with pipelined ingest (see
+	 * {@link #setIngestExecutor(ExecutorService, int)}) that happens on the
+	 * worker threads.
+	 * <p>
+	 * The ContentSHA returned for such content is marked as a tree hash (as
+	 * are the "cat" manifests stored for it), and it is only found again
+	 * under that tree hash, not under its SHA-1. The tree hash depends on the
+	 * chunking, so the same data stored with other chunk boundaries is stored
+	 * again (but its chunks are still de-duplicated). Content with just one
+	 * chunk, and content that is stored as a delta, is still identified by
+	 * its SHA-1.
+	 * <p>
+	 * Storages in front of this one that check the SHA-1 of the content
+	 * (such as the {@link v7db.files.spi.WriteBehindContentStorage}) cannot
+	 * be used together with tree hashes.
+	 */
+	public void setTreeHashIdentity(boolean treeHash) {
+		this.treeHashIdentity = treeHash;
+	}
+
+	/**
+	 * Enables content-defined chunking: chunk boundaries for large content are
+	 * determined by a rolling hash over the data, instead of at fixed offsets.
+	 * This way, inserting or removing some bytes only affects the chunks
+	 * around that position, and all others can still be de-duplicated.
+	 * <p>
+	 * The result is still stored as a normal concatenation of chunks.
+	 * 
+	 * @param cdc
+	 *            null to go back to fixed-size chunks
+	 */
+	public void setContentDefinedChunking(ContentDefinedChunking cdc) {
+		this.contentDefinedChunking = cdc;
+	}
+
+	/**
+	 * Enables delta storage: New content up to the given length is compared
+	 * to content stored before, and if something similar is found, only the
+	 * difference to it is stored ("store: delta").
+	 * <p>
+	 * Similar content is found using sketches (a few min-hash values for every
+	 * piece of content), which are kept in a separate collection, and from the
+	 * hint given to {@link #storeContent(InputStream, ContentPointer)} (such
+	 * as the previous version of an updated file).
+	 * 
+	 * @param sketchCollection
+	 *            null to only use the hints
+	 * @param maxLength
+	 *            the content (and its base) will be held in memory up to this
+	 *            length (at most {@link #MAX_DELTA_LENGTH}), 0 to disable
+	 *            delta storage
+	 */
+	public void setDeltaStorage(DBCollection sketchCollection, int maxLength) {
+		if (maxLength < 0 || maxLength > MAX_DELTA_LENGTH)
+			throw new IllegalArgumentException("maxLength must be between 0 and "
+					+ MAX_DELTA_LENGTH + ", not " + maxLength);
+		this.sketchCollection = sketchCollection;
+		this.deltaUntilLength = maxLength;
+		if (sketchCollection != null)
+			sketchCollection.ensureIndex(new BasicDBObject("f", 1));
+	}
+
+	/**
+	 * Limits how many deltas may have to be applied (and how many bases have
+	 * to be loaded) to read content stored as a delta. Content that would
+	 * exceed this is stored as a delta against something else, or in full.
+	 * <p>
+	 * Default is 4.
+	 */
+	public void setMaxDeltaChain(int maxDeltaChain) {
+		if (maxDeltaChain < 1)
+			throw new IllegalArgumentException(
+					"maxDeltaChain must be at least 1, not " + maxDeltaChain);
+		this.maxDeltaChain = maxDeltaChain;
+	}
+
+	/**
+	 * Adds a second ("cold") storage tier: Content (usually chunks, see
+	 * {@link ContentMigrator}) that is not found in MongoDB is looked for
+	 * there. Since content is identified by its SHA, the documents that refer
+	 * to it (files and "cat" manifests) do not have to change when it is
+	 * moved.
+	 * 
+	 * @param coldStorage
+	 *            null to only use MongoDB
+	 * @param promote
+	 *            whether chunks that are read from the cold storage should be
+	 *            copied back to MongoDB (where they stay until the migrator
+	 *            finds them unused again)
+	 */
+	public void setColdStorage(ContentStorage coldStorage, boolean promote) {
+		this.coldStorage = coldStorage;
+		this.promoteColdContent = promote;
+	}
+
+	ContentStorage getColdStorage() {
+		return coldStorage;
+	}
+
+	/**
+	 * Enables access statistics: reads and writes of stored content are
+	 * recorded, so that a {@link ContentMigrator} can find out what has not
+	 * been used for a while.
+	 * 
+	 * @param stats
+	 *            null to disable
+	 */
+	public void setAccessStatistics(AccessStatistics stats) {
+		this.accessStatistics = stats;
+	}
+
+	AccessStatistics getAccessStatistics() {
+		return accessStatistics;
+	}
+
+	private void recordAccess(byte[] sha) {
+		if (accessStatistics != null)
+			accessStatistics.record(sha);
 	}
 
 	public Content getContent(byte[] sha) throws IOException {
-		return getContent(contentCollection.findOne(sha));
+		DBObject doc = contentCollection.findOne(sha);
+		if (doc == null)
+			return getColdContent(sha);
+		recordAccess(sha);
+		return getContent(doc);
+	}
+
+	/**
+	 * @return the content from the cold storage (copied back into MongoDB if
+	 *         promotion is enabled and it fits into a single chunk), null if
+	 *         there is no cold storage or the content is not there either
+	 */
+	private Content getColdContent(byte[] sha) throws IOException {
+		if (coldStorage == null)
+			return null;
+		Content content = coldStorage.getContent(sha);
+		if (content == null || !promoteColdContent
+				|| content.getLength() > chunkSize)
+			return content;
+		byte[] data;
+		InputStream in = content.getInputStream();
+		try {
+			data = IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		storeContentChunk(data, 0, data.length, true);
+		return new InlineContent(data);
 	}
 
+	/**
+	 * @param shaPrefix
+	 *            the beginning of a SHA-1 or of the id of a tree hash
+	 */
 	public ContentSHA findContentPointerByPrefix(byte[] shaPrefix)
 			throws IOException {
-		if (shaPrefix.length == 20) {
-			DBObject file = contentCollection.findOne(shaPrefix);
-			if (file == null)
-				return null;
-			Content c = getContent(file);
-			return ContentSHA.forDigestAndLength(shaPrefix, c.getLength());
-		}
+		DBObject file = findOneByPrefix(shaPrefix);
+		if (file == null)
+			return null;
+		byte[] sha = (byte[]) file.get(_ID);
+		Content c = getContent(file);
+		if (ContentSHA.TREE_HASH.equals(file.get("hash")))
+			return ContentSHA.forTreeHash(sha, c.getLength());
+		return ContentSHA.forDigestAndLength(sha, c.getLength());
+	}
+
+	/**
+	 * @param shaPrefix
+	 *            the beginning of a SHA-1 or of the id of a tree hash
+	 */
+	public Content findContentByPrefix(byte[] shaPrefix) throws IOException {
+		if (isCompleteId(shaPrefix))
+			return getContent(shaPrefix);
+		DBObject file = findOneByPrefix(shaPrefix);
+		if (file == null)
+			return null;
+		return getContent(file);
+	}
 
+	private static boolean isCompleteId(byte[] sha) {
+		return sha.length == 20 || ContentSHA.isTreeHashId(sha);
+	}
+
+	/**
+	 * @return the only content whose id starts with the prefix, null if
+	 *         there is none
+	 * @throws IllegalArgumentException
+	 *             if there is more than one
+	 */
+	private DBObject findOneByPrefix(byte[] shaPrefix) {
+		if (isCompleteId(shaPrefix))
+			return contentCollection.findOne(shaPrefix);
 		if (shaPrefix.length > 20)
 			throw new IllegalArgumentException();
 
-		byte[] lower = Arrays.copyOf(shaPrefix, 20); // 0-padded
-		byte[] higher = Arrays.copyOf(shaPrefix, 20); // FF-padded
-		for (int i = shaPrefix.length; i < higher.length; i++) {
-			higher[i] = (byte) 0xFF;
-		}
-		List<DBObject> files = contentCollection.find(
-				QueryUtils.between(_ID, lower, higher), new BasicDBObject())
-				.limit(2).toArray();
+		List<DBObject> files = findByPrefix(shaPrefix, 20);
+		// the ids of tree hashes are one byte longer
+		if (shaPrefix.length == 0 || shaPrefix[0] == ContentSHA.TREE_HASH_ID)
+			files.addAll(findByPrefix(shaPrefix, 21));
 		if (files.isEmpty())
 			return null;
-		if (files.size() == 1) {
-			Content c = getContent(files.get(0));
-			return ContentSHA.forDigestAndLength(
-					(byte[]) files.get(0).get(_ID), c.getLength());
-		}
+		if (files.size() == 1)
+			return files.get(0);
 		throw new IllegalArgumentException(Hex.encodeHexString(shaPrefix)
 				+ " is not a unique SHA prefix");
 	}
 
-	public Content findContentByPrefix(byte[] shaPrefix) throws IOException {
-		if (shaPrefix.length == 20)
-			return getContent(shaPrefix);
-		if (shaPrefix.length > 20)
-			throw new IllegalArgumentException();
-
-		byte[] lower = Arrays.copyOf(shaPrefix, 20); // 0-padded
-		byte[] higher = Arrays.copyOf(shaPrefix, 20); // FF-padded
+	/**
+	 * @return up to two documents with an id of the given length that starts
+	 *         with the prefix
+	 */
+	private List<DBObject> findByPrefix(byte[] shaPrefix, int idLength) {
+		byte[] lower = Arrays.copyOf(shaPrefix, idLength); // 0-padded
+		byte[] higher = Arrays.copyOf(shaPrefix, idLength); // FF-padded
 		for (int i = shaPrefix.length; i < higher.length; i++) {
 			higher[i] = (byte) 0xFF;
 		}
-
-		List<DBObject> files = contentCollection.find(
+		List<DBObject> result = new ArrayList<DBObject>(2);
+		for (DBObject file : contentCollection.find(
 				QueryUtils.between(_ID, lower, higher), new BasicDBObject())
-				.limit(2).toArray();
-		if (files.isEmpty())
-			return null;
-		if (files.size() == 1)
-			return getContent(files.get(0));
-		throw new IllegalArgumentException(Hex.encodeHexString(shaPrefix)
-				+ " is not a unique SHA prefix");
+				.limit(2)) {
+			if (((byte[]) file.get(_ID)).length == idLength)
+				result.add(file);
+		}
+		return result;
 	}
 
 	public Content getContent(ContentPointer pointer) throws IOException {
@@ -188,8 +652,8 @@ public class MongoContentStorage implements ContentStorage {
 				throw new IllegalArgumentException("base SHA not found: "
 						+ Hex.encodeHexString(sha));
 
-			if (p.getLength() != base.getLength()) {
-				return new OffsetAndLength(base, 0, p.getLength());
+			if (p.getOffset() != 0 || p.getLength() != base.getLength()) {
+				return new OffsetAndLength(base, p.getOffset(), p.getLength());
 			}
 
 			return base;
@@ -199,8 +663,55 @@ public class MongoContentStorage implements ContentStorage {
 
 	}
 
+	/**
+	 * retrieves all the stored content with a single query
+	 */
+	public List<Content> getContents(List<? extends ContentPointer> pointers)
+			throws IOException {
+		List<byte[]> shas = new ArrayList<byte[]>(pointers.size());
+		for (ContentPointer p : pointers) {
+			byte[] sha = storedSHA(p);
+			if (sha != null)
+				shas.add(sha);
+		}
+		Map<String, DBObject> found = new HashMap<String, DBObject>();
+		if (!shas.isEmpty()) {
+			for (DBObject doc : contentCollection.find(new BasicDBObject(_ID,
+					new BasicDBObject(QueryOperators.IN, shas)))) {
+				found.put(Hex.encodeHexString((byte[]) doc.get(_ID)), doc);
+			}
+		}
+		List<Content> result = new ArrayList<Content>(pointers.size());
+		for (ContentPointer p : pointers) {
+			if (p instanceof InlineContent) {
+				result.add((Content) p);
+				continue;
+			}
+			byte[] sha = storedSHA(p);
+			DBObject doc = sha == null ? null : found.get(Hex
+					.encodeHexString(sha));
+			Content base;
+			if (doc != null) {
+				recordAccess(sha);
+				base = getContent((BSONObject) doc);
+			} else {
+				base = sha == null ? null : getColdContent(sha);
+			}
+			if (base == null) {
+				result.add(null);
+				continue;
+			}
+			long offset = p instanceof StoredContent ? ((StoredContent) p)
+					.getOffset() : 0;
+			if (offset != 0 || p.getLength() != base.getLength())
+				base = new OffsetAndLength(base, offset, p.getLength());
+			result.add(base);
+		}
+		return result;
+	}
+
 	@SuppressWarnings("unchecked")
-	private Content getContent(BSONObject data) throws IOException {
+	Content getContent(BSONObject data) throws IOException {
 		if (data == null)
 			return null;
 		data.removeField("_id");
@@ -236,76 +747,933 @@ public class MongoContentStorage implements ContentStorage {
 		return read;
 	}
 
+	private int bufferSize() {
+		if (contentDefinedChunking == null)
+			return chunkSize;
+		return contentDefinedChunking.getMaxSize();
+	}
+
+	/**
+	 * read the next chunk, either fixed-size or content-defined (if a chunker
+	 * is given)
+	 * 
+	 * @return the length of the chunk, which could be 0 (not -1)
+	 */
+	private static int readChunk(InputStream data,
+			ContentDefinedChunking.Chunker chunker, byte[] buffer)
+			throws IOException {
+		if (chunker == null)
+			return readFully(data, buffer);
+		return chunker.nextChunk(buffer);
+	}
+
+	/**
+	 * @return true, if there are no more chunks after the one just read
+	 */
+	private static boolean isLastChunk(ContentDefinedChunking.Chunker chunker,
+			int length) {
+		if (chunker == null)
+			return length < chunkSize;
+		return chunker.isAtEnd();
+	}
+
+	/**
+	 * read the next batch of chunks, allocating buffers as needed
+	 * 
+	 * @return the number of chunks read, which could be 0
+	 */
+	private int readBatch(InputStream data,
+			ContentDefinedChunking.Chunker chunker, byte[][] batch,
+			int[] lengths) throws IOException {
+		for (int i = 0; i < batch.length; i++) {
+			if (batch[i] == null)
+				batch[i] = new byte[bufferSize()];
+			int read = readChunk(data, chunker, batch[i]);
+			if (read == 0)
+				return i;
+			lengths[i] = read;
+			if (isLastChunk(chunker, read))
+				return i + 1;
+		}
+		return batch.length;
+	}
+
+	private ContentDefinedChunking.Chunker chunker(InputStream data) {
+		if (contentDefinedChunking == null)
+			return null;
+		return contentDefinedChunking.chunker(data);
+	}
+
 	public ContentSHA storeContent(InputStream data) throws IOException {
+		return storeContent(data, null, null);
+	}
+
+	public ContentSHA storeContent(InputStream data, ContentPointer similar)
+			throws IOException {
+		return storeContent(data, similar, null);
+	}
+
+	/**
+	 * Content with a content type that is known to be compressed already is
+	 * not compressed again. For other content, a small sample of every chunk
+	 * is checked first (see {@link Compression#isProbablyCompressible}).
+	 */
+	public ContentSHA storeContent(InputStream data, ContentPointer similar,
+			String contentType) throws IOException {
+		boolean compress = !Compression.isCompressedContentType(contentType);
+		if (!compress)
+			skippedByContentType.incrementAndGet();
+		if (deltaUntilLength > 0) {
+			// if the content is small enough, try to store it as a delta
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8 * 1024];
+			int read;
+			while (head.size() <= deltaUntilLength
+					&& -1 != (read = data.read(buffer))) {
+				head.write(buffer, 0, read);
+			}
+			if (head.size() <= deltaUntilLength) {
+				IOUtils.closeQuietly(data);
+				return storeSimilarContent(head.toByteArray(), similar,
+						compress);
+			}
+			data = new SequenceInputStream(new ByteArrayInputStream(head
+					.toByteArray()), data);
+		}
+		return storeChunkedContent(data, compress);
+	}
+
+	/**
+	 * @param compress
+	 *            false if compression is known to be futile
+	 */
+	private ContentSHA storeChunkedContent(InputStream data, boolean compress)
+			throws IOException {
+		return storeChunkedContent(data, compress, treeHashIdentity, null);
+	}
+
+	/**
+	 * @param treeHash
+	 *            to identify the content by a tree hash (if it has more than
+	 *            one chunk)
+	 * @param replace
+	 *            the SHA of the content whose "cat" manifest should be
+	 *            replaced (see {@link #rechunk(byte[], InputStream)}), null to
+	 *            keep existing manifests
+	 */
+	private ContentSHA storeChunkedContent(InputStream data, boolean compress,
+			boolean treeHash, byte[] replace) throws IOException {
+		if (ingestExecutor != null)
+			return storeContentPipelined(data, compress, treeHash, replace);
 		try {
-			MessageDigest completeSHA = MessageDigest.getInstance("SHA");
-			long completeLength = 0;
-			byte[] chunk = new byte[chunkSize];
+			// not needed for tree hashes
+			ManifestDigest digest = treeHash ? null : new ManifestDigest(
+					manifestFanout);
+			ContentDefinedChunking.Chunker chunker = chunker(data);
+			byte[][] batch = new byte[chunkBatchSize][];
+			int[] lengths = new int[chunkBatchSize];
 			int read;
-			List<ContentSHA> chunks = new ArrayList<ContentSHA>();
+			List<ContentPointer> chunks = new ArrayList<ContentPointer>();
 
-			while (0 < (read = readFully(data, chunk))) {
-				completeSHA.update(chunk, 0, read);
-				completeLength += read;
-				chunks.add(storeContentChunk(chunk, 0, read));
+			while (0 < (read = readBatch(data, chunker, batch, lengths))) {
+				for (int i = 0; i < read && digest != null; i++) {
+					digest.update(batch[i], 0, lengths[i]);
+				}
+				chunks.addAll(storeContentChunks(batch, lengths, read,
+						compress, treeHash));
+				if (isLastChunk(chunker, lengths[read - 1]))
+					break;
 			}
-			if (chunks.isEmpty())
-				return storeContentChunk(ArrayUtils.EMPTY_BYTE_ARRAY, 0, 0);
+			return storeConcatenation(chunks, digest, replace);
+		} finally {
+			IOUtils.closeQuietly(data);
+		}
 
-			if (chunks.size() == 1)
-				return chunks.get(0);
+	}
 
-			List<Map<String, Object>> bases = new ArrayList<Map<String, Object>>(
-					chunks.size());
-			for (ContentSHA c : chunks) {
-				bases.add(c.serialize());
+	private ContentSHA storeContentPipelined(InputStream data,
+			final boolean compress, final boolean treeHash, byte[] replace)
+			throws IOException {
+		// need enough buffers to fill at least one batch
+		final int ringSize = Math.max(ingestBuffers, chunkBatchSize);
+		final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>(
+				ringSize);
+		List<Future<List<ContentPointer>>> pending = new ArrayList<Future<List<ContentPointer>>>();
+		int allocated = 0;
+		try {
+			ManifestDigest digest = treeHash ? null : new ManifestDigest(
+					manifestFanout);
+			ContentDefinedChunking.Chunker chunker = chunker(data);
+			boolean eof = false;
+			while (!eof) {
+				final byte[][] batch = new byte[chunkBatchSize][];
+				final int[] lengths = new int[chunkBatchSize];
+				int count = 0;
+				while (count < batch.length) {
+					byte[] buffer = freeBuffers.poll();
+					if (buffer == null) {
+						if (allocated < ringSize) {
+							buffer = new byte[bufferSize()];
+							allocated++;
+						} else {
+							// wait until a worker has finished with a batch
+							buffer = freeBuffers.take();
+						}
+					}
+					int read = readChunk(data, chunker, buffer);
+					if (read == 0) {
+						freeBuffers.add(buffer);
+						eof = true;
+						break;
+					}
+					if (digest != null)
+						digest.update(buffer, 0, read);
+					batch[count] = buffer;
+					lengths[count++] = read;
+					if (isLastChunk(chunker, read)) {
+						eof = true;
+						break;
+					}
+				}
+				if (count == 0)
+					break;
+				final int n = count;
+				pending.add(ingestExecutor
+						.submit(new Callable<List<ContentPointer>>() {
+							public List<ContentPointer> call()
+									throws IOException {
+								try {
+									return storeContentChunks(batch, lengths, n,
+											compress, treeHash);
+								} finally {
+									for (int i = 0; i < n; i++) {
+										freeBuffers.add(batch[i]);
+									}
+								}
+							}
+						}));
 			}
-			ContentSHA result = ContentSHA.forDigestAndLength(completeSHA
-					.digest(), completeLength);
-			long existing = contentCollection.count(new BasicDBObject(_ID,
-					result.getSHA()));
-			if (existing == 0) {
-				contentCollection
-						.insert(new BasicDBObject(_ID, result.getSHA()).append(
-								"store", "cat").append("base", bases),
-								WriteConcern.SAFE);
+
+			List<ContentPointer> chunks = new ArrayList<ContentPointer>();
+			for (Future<List<ContentPointer>> f : pending) {
+				chunks.addAll(f.get());
 			}
-			return result;
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+			pending.clear();
+			return storeConcatenation(chunks, digest, replace);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
 		} finally {
+			for (Future<List<ContentPointer>> f : pending) {
+				f.cancel(false);
+			}
 			IOUtils.closeQuietly(data);
 		}
+	}
+
+	/**
+	 * stores the "cat" manifest for the chunks. If there are more chunks than
+	 * fit into one manifest, they are grouped into subtrees (which are
+	 * themselves "cat" manifests), and those again if necessary.
+	 * 
+	 * @param chunks
+	 *            the already stored chunks (or inline repetitions), in order
+	 * @param digest
+	 *            the digest that has been updated with all the data, null to
+	 *            identify the content (and the subtrees) by tree hashes
+	 * @param replace
+	 *            the SHA of the content whose top-level manifest should be
+	 *            replaced, null to keep an existing one
+	 */
+	private ContentSHA storeConcatenation(List<ContentPointer> chunks,
+			ManifestDigest digest, byte[] replace) throws IOException {
+		List<ContentSHA> shas = null;
+		ContentSHA result;
+		if (digest == null) {
+			shas = new ArrayList<ContentSHA>(chunks.size());
+			for (ContentPointer c : chunks) {
+				shas.add(chunkSHA(c));
+			}
+			result = ContentSHA.calculateTreeHash(shas);
+		} else {
+			result = digest.getContentSHA();
+		}
+		if (replace != null && !Arrays.equals(replace, result.getSHA()))
+			throw new IOException("content " + Hex.encodeHexString(replace)
+					+ " was read as " + result.getDigest());
+
+		if (chunks.isEmpty())
+			return storeContentChunk(ArrayUtils.EMPTY_BYTE_ARRAY, 0, 0, false);
+
+		if (chunks.size() == 1 && chunks.get(0) instanceof ContentSHA)
+			return (ContentSHA) chunks.get(0);
+
+		int fanout = digest == null ? manifestFanout : digest.getFanout();
+		List<? extends ContentPointer> nodes = chunks;
+		for (int level = 1; nodes.size() > fanout; level++) {
+			List<ContentSHA> subtrees = digest == null ? treeHashSubtrees(
+					shas, fanout, level) : digest.getSubtrees(level);
+			for (int i = 0; i < subtrees.size(); i++) {
+				List<? extends ContentPointer> children = nodes.subList(i
+						* fanout, Math.min(nodes.size(), (i + 1) * fanout));
+				// a single stored one does not need a manifest of its own
+				if (children.size() > 1
+						|| !(children.get(0) instanceof ContentSHA))
+					storeManifest(subtrees.get(i), children, false);
+			}
+			nodes = subtrees;
+		}
+		storeManifest(result, nodes, replace != null);
+		return result;
+	}
+
+	/**
+	 * @return the SHA of a stored chunk, or of an inline repetition
+	 */
+	private static ContentSHA chunkSHA(ContentPointer chunk) {
+		if (chunk instanceof InlineContent)
+			return ContentSHA.forDigestAndLength(((InlineContent) chunk)
+					.getSHA(), chunk.getLength());
+		return (ContentSHA) chunk;
+	}
+
+	/**
+	 * @return the tree hashes of all subtrees on the given level (as in
+	 *         {@link ManifestDigest#getSubtrees(int)}, every subtree covers
+	 *         <code>fanout^level</code> chunks, the last one maybe less)
+	 */
+	private static List<ContentSHA> treeHashSubtrees(List<ContentSHA> chunks,
+			int fanout, int level) {
+		long size = 1;
+		for (int i = 0; i < level; i++) {
+			size *= fanout;
+		}
+		List<ContentSHA> result = new ArrayList<ContentSHA>();
+		for (long i = 0; i < chunks.size(); i += size) {
+			result.add(ContentSHA.calculateTreeHash(chunks.subList((int) i,
+					(int) Math.min(chunks.size(), i + size))));
+		}
+		return result;
+	}
+
+	private void storeManifest(ContentSHA sha,
+			List<? extends ContentPointer> chunks, boolean replace)
+			throws IOException {
+		PendingInsert insert = null;
+		if (!replace) {
+			insert = claimInsert(sha.getSHA());
+			if (insert == null)
+				return;
+		}
+		List<Map<String, Object>> bases = new ArrayList<Map<String, Object>>(
+				chunks.size());
+		for (ContentPointer c : chunks) {
+			bases.add(c.serialize());
+		}
+		DBObject manifest = new BasicDBObject(_ID, sha.getSHA()).append(
+				"store", "cat").append("base", bases);
+		if (sha.isTreeHash())
+			manifest.put("hash", ContentSHA.TREE_HASH);
+		if (replace) {
+			contentCollection.update(new BasicDBObject(_ID, sha.getSHA()),
+					manifest, true, false, WriteConcern.SAFE);
+			return;
+		}
+		try {
+			insertContent(manifest);
+			insert.inserted = true;
+		} finally {
+			finishInsert(insert);
+		}
+	}
+
+	/**
+	 * Stores the content again, the way new content is stored now (chunk
+	 * boundaries, compression, manifest fanout), and replaces its "cat"
+	 * manifest. The SHA stays the same, so nothing that refers to it has to
+	 * change. The old chunks are not deleted here (they may be shared with
+	 * other content), but returned so that the caller can check that. If the
+	 * content now fits into a single chunk, the old manifest is kept (it is
+	 * still valid).
+	 * <p>
+	 * This only works for content identified by its SHA-1 (a tree hash
+	 * changes with the chunk boundaries).
+	 * 
+	 * @return the (hex-encoded) SHA of the chunks and subtrees that the old
+	 *         manifest used, but the new one does not
+	 * @throws IOException
+	 *             also if the data does not match the SHA
+	 */
+	Set<String> rechunk(byte[] sha, InputStream data) throws IOException {
+		Set<String> old = getManifestParts(sha);
+		storeChunkedContent(data, true, false, sha);
+		old.removeAll(getManifestParts(sha));
+		return old;
+	}
+
+	/**
+	 * @return the (hex-encoded) SHA of the chunks and subtrees that the "cat"
+	 *         manifest refers to, directly or through its subtrees
+	 */
+	private Set<String> getManifestParts(byte[] sha) {
+		Set<String> result = new HashSet<String>();
+		List<byte[]> manifests = new ArrayList<byte[]>();
+		manifests.add(sha);
+		// one query per level of the tree
+		while (!manifests.isEmpty()) {
+			List<byte[]> next = new ArrayList<byte[]>();
+			for (DBObject doc : contentCollection.find(new BasicDBObject(_ID,
+					new BasicDBObject(QueryOperators.IN, manifests)).append(
+					"store", "cat"), new BasicDBObject("base", true))) {
+				for (Object o : BSONUtils.values(doc, "base")) {
+					Object part = ((BSONObject) o).get("sha");
+					// (repeated chunks are inline, without a SHA)
+					if (part != null
+							&& result.add(Hex.encodeHexString((byte[]) part)))
+						next.add((byte[]) part);
+				}
+			}
+			manifests = next;
+		}
+		return result;
+	}
+
+	/**
+	 * Re-encodes a chunk (stored inline or compressed) the way a new chunk
+	 * is stored now, if that makes it smaller.
+	 * 
+	 * @return how many bytes that saved (0 if the chunk was left alone)
+	 */
+	long reencodeChunk(DBObject chunk) throws IOException {
+		byte[] sha = (byte[]) chunk.get(_ID);
+		byte[] stored = (byte[]) chunk.get(chunk.containsField("zin") ? "zin"
+				: "in");
+		if (stored == null)
+			return 0;
+		byte[] data;
+		InputStream in = getContent(chunk).getInputStream();
+		try {
+			data = IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		DBObject doc = chunkDocument(sha, data, 0, data.length, true, null);
+		byte[] encoded = (byte[]) doc.get(doc.containsField("zin") ? "zin"
+				: "in");
+		if (encoded.length >= stored.length)
+			return 0;
+		contentCollection.update(new BasicDBObject(_ID, sha), doc, false,
+				false, WriteConcern.SAFE);
+		return stored.length - encoded.length;
+	}
+
+	/**
+	 * @return the largest chunk that is stored now
+	 */
+	int getMaxChunkSize() {
+		return bufferSize();
+	}
+
+	/**
+	 * stores the content as a delta to similar content stored before (if
+	 * there is such content, and the delta is small enough), and records its
+	 * sketch so that it can itself be found as similar content later.
+	 * <p>
+	 * The hint (if any) is tried first, then the most similar content as per
+	 * the sketch.
+	 */
+	private ContentSHA storeSimilarContent(byte[] data,
+			ContentPointer similar, boolean compress) throws IOException {
+		ContentSHA sha = ContentSHA.calculate(data);
+		if (contentCollection.count(new BasicDBObject(_ID, sha.getSHA())) > 0)
+			return sha;
+		List<Long> sketch = new ArrayList<Long>();
+		if (sketchCollection != null) {
+			for (long f : Delta.sketch(data, 0, data.length)) {
+				sketch.add(f);
+			}
+		}
+		int depth = 0;
+		byte[] hint = storedSHA(similar);
+		if (hint != null)
+			depth = storeDelta(sha, data, hint);
+		if (depth == 0 && !sketch.isEmpty()) {
+			byte[] base = findSimilarContent(sketch, data.length);
+			if (base != null)
+				depth = storeDelta(sha, data, base);
+		}
+		if (depth == 0)
+			storeChunkedContent(new ByteArrayInputStream(data), compress,
+					false, null);
+		if (!sketch.isEmpty())
+			sketchCollection.save(new BasicDBObject(_ID, sha.getSHA()).append(
+					"f", sketch).append("length", data.length).append("depth",
+					depth));
+		return sha;
+	}
+
+	/**
+	 * @return the SHA of the stored content the pointer refers to, or null
+	 *         for inline content (which is too short to be worth a delta)
+	 */
+	private static byte[] storedSHA(ContentPointer pointer) {
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getBaseSHA();
+		if (pointer instanceof ContentSHA)
+			return ((ContentSHA) pointer).getSHA();
+		return null;
+	}
+
+	/**
+	 * @return the SHA of the most similar content (as per the sketch) that
+	 *         can be used as a base, or null if there is none: the one with
+	 *         the most features in common, and of those, the one closest in
+	 *         length
+	 */
+	private byte[] findSimilarContent(List<Long> features, int length) {
+		DBObject best = null;
+		int bestScore = 0;
+		long bestDistance = 0;
+		for (DBObject candidate : sketchCollection.find(
+				new BasicDBObject("f", new BasicDBObject(QueryOperators.IN,
+						features)),
+				new BasicDBObject("f", 1).append("length", 1).append("depth",
+						1)).limit(MAX_DELTA_CANDIDATES)) {
+			Integer depth = BSONUtils.getInteger(candidate, "depth");
+			if (depth != null && depth >= maxDeltaChain)
+				continue;
+			long candidateLength = BSONUtils.getRequiredLong(candidate,
+					"length");
+			if (candidateLength > deltaUntilLength)
+				continue;
+			int score = 0;
+			for (Object f : BSONUtils.values(candidate, "f")) {
+				if (features.contains(BSONUtils.toLong(f)))
+					score++;
+			}
+			long distance = Math.abs(candidateLength - length);
+			if (score > bestScore
+					|| (score == bestScore && distance < bestDistance)) {
+				best = candidate;
+				bestScore = score;
+				bestDistance = distance;
+			}
+		}
+		if (best == null)
+			return null;
+		return (byte[]) best.get(_ID);
+	}
+
+	/**
+	 * stores the data as a delta to the given base content, unless the base
+	 * is too long (it is only loaded up to the maximum delta length), already
+	 * at the end of a maximum-length delta chain, or the delta would not be
+	 * much smaller than the data.
+	 * 
+	 * @return the length of the resulting delta chain, 0 if nothing was stored
+	 */
+	private int storeDelta(ContentSHA sha, byte[] data, byte[] baseSHA)
+			throws IOException {
+		if (Arrays.equals(sha.getSHA(), baseSHA))
+			return 0;
+		int baseDepth = deltaDepth(baseSHA);
+		if (baseDepth < 0 || baseDepth >= maxDeltaChain)
+			return 0;
+		Content base = getContent(baseSHA);
+		if (base == null || base.getLength() > deltaUntilLength)
+			return 0;
+		byte[] delta = Delta.encode(IOUtils.toByteArray(base.getInputStream()),
+				data);
+		if (delta.length > data.length / 2)
+			return 0;
+		insertContent(new BasicDBObject(_ID, sha.getSHA()).append("store",
+				"delta").append(
+				"base",
+				new BasicDBObject("sha", baseSHA).append("length", base
+						.getLength())).append("delta", delta).append("length",
+				data.length));
+		return baseDepth + 1;
+	}
+
+	/**
+	 * @return how many deltas have to be applied to read the content (0 if it
+	 *         is not stored as a delta), or -1 if it was not found
+	 */
+	private int deltaDepth(byte[] sha) {
+		int depth = 0;
+		while (depth <= maxDeltaChain) {
+			DBObject doc = contentCollection.findOne(new BasicDBObject(_ID,
+					sha), new BasicDBObject("store", 1).append("base", 1));
+			if (doc == null)
+				return -1;
+			if (!"delta".equals(doc.get("store")))
+				return depth;
+			sha = (byte[]) BSONUtils.get(doc, "base.sha");
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * the document to store a chunk, compressed if that makes it smaller
+	 * 
+	 * @param deferred
+	 *            if not null, the chunk is not compressed now, but its SHA is
+	 *            added to this list (if it should be compressed later)
+	 */
+	private DBObject chunkDocument(byte[] sha, byte[] bytes, int offset,
+			int length, boolean compress, List<byte[]> deferred) {
+		byte[] compressed = null;
+		if (codec != null && compress && length > 0) {
+			if (!Compression.isProbablyCompressible(bytes, offset, length)) {
+				skippedByProbe.incrementAndGet();
+			} else if (deferred != null) {
+				deferred.add(sha);
+				deferredChunks.incrementAndGet();
+			} else {
+				compressed = codec.compress(bytes, offset, length);
+				if (compressed != null && compressed.length >= length)
+					compressed = null;
+				if (compressed == null)
+					compressionFailed.incrementAndGet();
+				else
+					compressedChunks.incrementAndGet();
+			}
+		}
+		if (compressed != null) {
+			DBObject doc = new BasicDBObject(_ID, sha).append("zin",
+					compressed).append("store", codec.getId()).append(
+					"length", length);
+			Map<String, Object> fields = codec.getFields();
+			if (fields != null)
+				doc.putAll(fields);
+			return doc;
+		}
+		if (offset > 0 || bytes.length != length) {
+			bytes = ArrayUtils.subarray(bytes, offset, offset + length);
+		}
+		return new BasicDBObject(_ID, sha).append("in", bytes);
+	}
+
+	/**
+	 * @return a list to collect the chunks to compress later, null if chunks
+	 *         are compressed right away
+	 */
+	private List<byte[]> deferredList() {
+		if (compressionQueue == null)
+			return null;
+		return new ArrayList<byte[]>();
+	}
+
+	/**
+	 * puts the (already stored) chunks into the queue for the
+	 * CompressionWorker
+	 */
+	private void queueForCompression(List<byte[]> deferred) {
+		if (deferred == null)
+			return;
+		for (byte[] sha : deferred) {
+			compressionQueue.save(new BasicDBObject(_ID, sha));
+		}
+	}
 
+	/**
+	 * inserts the document, unless there already is one with the same
+	 * <code>_id</code> (which has the same content)
+	 */
+	private void insertContent(DBObject doc) {
+		try {
+			contentCollection.insert(doc, WriteConcern.SAFE);
+		} catch (MongoException.DuplicateKey e) {
+			// someone else (maybe another worker on the same upload, or
+			// another process) has just stored the same content, which is
+			// fine
+		}
+	}
+
+	/**
+	 * An insert in progress, so that other threads of this process that
+	 * want to store the same content can wait for it, instead of doing the
+	 * same work (and sending the same data) again.
+	 */
+	private static final class PendingInsert {
+
+		private final String key;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile boolean inserted;
+
+		private PendingInsert(String key) {
+			this.key = key;
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+	}
+
+	/**
+	 * Claims the insert of the content with the given SHA, after waiting for
+	 * another thread that is inserting it. The caller must not hold any
+	 * other claims (or they could wait for each other).
+	 * 
+	 * @return the claim (which must be passed to
+	 *         {@link #finishInsert(PendingInsert)}), or null if the content
+	 *         already exists
+	 */
+	private PendingInsert claimInsert(byte[] sha) throws IOException {
+		String key = Hex.encodeHexString(sha);
+		while (true) {
+			PendingInsert mine = new PendingInsert(key);
+			PendingInsert other = pendingInserts.putIfAbsent(key, mine);
+			if (other == null) {
+				boolean exists;
+				try {
+					exists = contentExists(sha);
+				} catch (IOException e) {
+					finishInsert(mine);
+					throw e;
+				}
+				if (exists) {
+					mine.inserted = true;
+					finishInsert(mine);
+					return null;
+				}
+				return mine;
+			}
+			other.await();
+			if (other.inserted) {
+				coalescedInserts.incrementAndGet();
+				return null;
+			}
+			// it did not work, try again
+		}
+	}
+
+	/**
+	 * @return true if there already is content with that id, after checking
+	 *         that it is the same kind of content (the ids of SHA-1 and tree
+	 *         hashes cannot be equal, but content stored before they were
+	 *         kept apart may still have them mixed up)
+	 * @throws IOException
+	 *             if it is the other kind
+	 */
+	private boolean contentExists(byte[] sha) throws IOException {
+		DBObject doc = contentCollection.findOne(new BasicDBObject(_ID, sha),
+				new BasicDBObject("hash", true));
+		if (doc == null)
+			return false;
+		if (ContentSHA.isTreeHashId(sha) != ContentSHA.TREE_HASH.equals(doc
+				.get("hash")))
+			throw new IOException("content " + Hex.encodeHexString(sha)
+					+ " is stored with another kind of hash");
+		return true;
+	}
+
+	/**
+	 * releases the claim (set <code>inserted</code> first if that worked)
+	 */
+	private void finishInsert(PendingInsert insert) {
+		pendingInserts.remove(insert.key, insert);
+		insert.done.countDown();
+	}
+
+	/**
+	 * @return the length of the shortest pattern (of up to maxRepeatPeriod
+	 *         bytes) that the chunk is a repetition of, 0 if there is none
+	 */
+	private int repeatPeriod(byte[] bytes, int offset, int length) {
+		if (length < MIN_REPEAT_LENGTH)
+			return 0;
+		int end = offset + length;
+		for (int p = 1; p <= maxRepeatPeriod && 2 * p <= length; p++) {
+			// check the end first, so that a repeated beginning (such as the
+			// zeros at the start of a chunk) does not have to be scanned for
+			// every period
+			if (repeats(bytes, Math.max(offset + p, end - 2
+					* maxRepeatPeriod), end, p)
+					&& repeats(bytes, offset + p, end, p))
+				return p;
+		}
+		return 0;
+	}
+
+	private static boolean repeats(byte[] bytes, int from, int end, int period) {
+		for (int i = from; i < end; i++) {
+			if (bytes[i] != bytes[i - period])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the chunk as inline content, if it is a repetition of a short
+	 *         pattern, null otherwise
+	 */
+	private InlineContent repetition(byte[] bytes, int offset, int length) {
+		int period = repeatPeriod(bytes, offset, length);
+		if (period == 0)
+			return null;
+		repeatedChunks.incrementAndGet();
+		return new InlineContent(ArrayUtils.subarray(bytes, offset, offset
+				+ period), 0, length);
+	}
+
+	/**
+	 * stores the data as a single chunk, without (content-defined) chunking,
+	 * for packs of small content (see {@link ContentPacker}): chunking them
+	 * again would just find the same chunks that were packed
+	 */
+	ContentSHA storeSingleChunk(byte[] bytes) throws IOException {
+		return storeContentChunk(bytes, 0, bytes.length, true);
 	}
 
 	private ContentSHA storeContentChunk(byte[] bytes, final int offset,
-			final int length) throws IOException {
+			final int length, boolean compress) throws IOException {
 		ContentSHA _sha = ContentSHA.calculate(bytes, offset, length);
 		byte[] sha = _sha.getSHA();
 
-		long existing = contentCollection.count(new BasicDBObject(_ID, sha));
-		if (existing == 0) {
-			byte[] gzipped = Compression.gzip(bytes, offset, length);
-			if (gzipped != null && gzipped.length > chunkSize)
-				gzipped = null;
-			if (gzipped != null) {
-				bytes = null;
-				contentCollection.insert(new BasicDBObject(_ID, sha).append(
-						"zin", gzipped).append("store", "gz"),
-						WriteConcern.SAFE);
-				gzipped = null;
-			} else {
-				if (offset > 0 || bytes.length != length) {
-					bytes = ArrayUtils.subarray(bytes, offset, offset + length);
-				}
-				contentCollection.insert(new BasicDBObject(_ID, sha).append(
-						"in", bytes), WriteConcern.SAFE);
+		PendingInsert insert = claimInsert(sha);
+		if (insert != null) {
+			try {
+				List<byte[]> deferred = deferredList();
+				insertContent(chunkDocument(sha, bytes, offset, length,
+						compress, deferred));
+				queueForCompression(deferred);
+				insert.inserted = true;
+			} finally {
+				finishInsert(insert);
 			}
 		}
+		recordAccess(sha);
 		return _sha;
 	}
 
+	/**
+	 * stores a batch of chunks, using a single query to check which of them
+	 * already exist, and a single (multi-document) insert for the missing
+	 * ones. Chunks that repeat a short pattern are not stored.
+	 * 
+	 * @param count
+	 *            how many of the chunks to store
+	 * @param treeHash
+	 *            to calculate the SHA of the repeated ones as well
+	 * @return the stored chunks, and inline content for the repeated ones
+	 */
+	private List<ContentPointer> storeContentChunks(byte[][] chunks,
+			int[] lengths, int count, boolean compress, boolean treeHash)
+			throws IOException {
+		List<ContentPointer> result = new ArrayList<ContentPointer>(count);
+		List<byte[]> shas = new ArrayList<byte[]>(count);
+		// the positions of the chunks to store
+		List<Integer> stored = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			InlineContent repeated = repetition(chunks[i], 0, lengths[i]);
+			if (repeated != null) {
+				// (it keeps it, and this may be on an ingest worker)
+				if (treeHash)
+					repeated.getSHA();
+				result.add(repeated);
+				continue;
+			}
+			if (count == 1) {
+				result.add(storeContentChunk(chunks[i], 0, lengths[i],
+						compress));
+				return result;
+			}
+			ContentSHA sha = ContentSHA.calculate(chunks[i], 0, lengths[i]);
+			result.add(sha);
+			shas.add(sha.getSHA());
+			stored.add(i);
+			recordAccess(sha.getSHA());
+		}
+		if (shas.isEmpty())
+			return result;
+
+		Set<String> existing = new HashSet<String>();
+		for (DBObject x : contentCollection.find(
+				new BasicDBObject(_ID, new BasicDBObject(QueryOperators.IN,
+						shas)), new BasicDBObject(_ID, 1).append("hash", 1))) {
+			String key = Hex.encodeHexString((byte[]) x.get(_ID));
+			// (see contentExists)
+			if (x.containsField("hash"))
+				throw new IOException("content " + key
+						+ " is stored with another kind of hash");
+			existing.add(key);
+		}
+
+		List<DBObject> missing = new ArrayList<DBObject>();
+		List<PendingInsert> claimed = new ArrayList<PendingInsert>();
+		// the chunks that other threads are inserting right now
+		Map<Integer, PendingInsert> others = new HashMap<Integer, PendingInsert>();
+		List<byte[]> deferred = deferredList();
+		try {
+			for (int j = 0; j < shas.size(); j++) {
+				int i = stored.get(j);
+				String key = Hex.encodeHexString(shas.get(j));
+				// also takes care of duplicates within the batch
+				if (!existing.add(key))
+					continue;
+				// (not waiting for the others while holding claims)
+				PendingInsert mine = new PendingInsert(key);
+				PendingInsert other = pendingInserts.putIfAbsent(key, mine);
+				if (other != null) {
+					others.put(i, other);
+					continue;
+				}
+				claimed.add(mine);
+				missing.add(chunkDocument(shas.get(j), chunks[i], 0,
+						lengths[i], compress, deferred));
+			}
+
+			if (!missing.isEmpty()) {
+				try {
+					contentCollection.insert(missing, WriteConcern.SAFE);
+				} catch (MongoException.DuplicateKey e) {
+					// a concurrent upload got in the way, the insert stopped
+					// at the first duplicate: do the rest one by one
+					for (DBObject chunk : missing) {
+						insertContent(chunk);
+					}
+				}
+			}
+			queueForCompression(deferred);
+			for (PendingInsert insert : claimed) {
+				insert.inserted = true;
+			}
+		} finally {
+			for (PendingInsert insert : claimed) {
+				finishInsert(insert);
+			}
+		}
+
+		for (Map.Entry<Integer, PendingInsert> e : others.entrySet()) {
+			e.getValue().await();
+			if (e.getValue().inserted) {
+				coalescedInserts.incrementAndGet();
+			} else {
+				// it did not work for the other thread, try again
+				int i = e.getKey();
+				storeContentChunk(chunks[i], 0, lengths[i], compress);
+			}
+		}
+		return result;
+	}
+
 	public ContentPointer storeContent(Map<String, Object> storageScheme)
 			throws IOException {
 		StorageScheme s = storageSchemes.get(storageScheme.get("store"));
@@ -320,10 +1688,15 @@ public class MongoContentStorage implements ContentStorage {
 		byte[] sha = DigestUtils.sha(s.getContent(this, storageScheme)
 				.getInputStream());
 
-		long existing = contentCollection.count(new BasicDBObject(_ID, sha));
-		if (existing == 0) {
-			x.put(_ID, sha);
-			contentCollection.insert(x, WriteConcern.SAFE);
+		PendingInsert insert = claimInsert(sha);
+		if (insert != null) {
+			try {
+				x.put(_ID, sha);
+				insertContent(x);
+				insert.inserted = true;
+			} finally {
+				finishInsert(insert);
+			}
 		}
 		return new StoredContent(sha, length);
 	}
@@ -350,11 +1723,9 @@ public class MongoContentStorage implements ContentStorage {
 		if (store == null || "raw".equals(store)) {
 			if (data.containsKey("in"))
 				return InlineContent.deserialize(data);
-			if (data.containsKey("sha")) {
-				return new StoredContent((byte[]) data.get("sha"), MapUtils
-						.getRequiredLong(data, "length")).loadOrLazyLoad(this,
+			if (data.containsKey("sha"))
+				return StoredContent.deserialize(data).loadOrLazyLoad(this,
 						8 * 1024);
-			}
 			throw new UnsupportedOperationException(data.toString());
 		}
 
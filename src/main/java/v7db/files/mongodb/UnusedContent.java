@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import static v7db.files.mongodb.QueryUtils._ID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.bson.BSONObject;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+
+/**
+ * Finds out which content documents are still used, for the maintenance jobs
+ * that delete the ones that are not (see {@link ContentPacker} and
+ * {@link ContentRewriter}).
+ * <p>
+ * Only files and other owners that use reference tracking (see
+ * {@link MongoReferenceTracking}) are known to refer to content. Content that
+ * is used by its SHA alone is not found.
+ */
+
+class UnusedContent {
+
+	/**
+	 * removes the (hex-encoded) SHA of the content that is still used from
+	 * the set: by a manifest, a delta or a dictionary, by a file or an older
+	 * version of one, or by an owner of references that is not a file (such
+	 * as a bucket). Pointers to a pack (see
+	 * {@link v7db.files.spi.StoredContent}) do not count, they are read from
+	 * the pack.
+	 */
+	static void removeUsed(Set<String> unused, DBCollection contents,
+			DBCollection files, DBCollection refCollection) {
+		if (unused.isEmpty())
+			return;
+		// manifests, deltas (a single base) and dictionaries
+		DBCursor cursor = contents.find(new BasicDBObject(),
+				new BasicDBObject("base", true).append("dict", true));
+		try {
+			while (cursor.hasNext()) {
+				DBObject doc = cursor.next();
+				for (Object o : BSONUtils.values(doc, "base")) {
+					// (repeated chunks are inline)
+					if (!(o instanceof BSONObject))
+						continue;
+					BSONObject base = (BSONObject) o;
+					Object sha = base.get("sha");
+					if (sha != null && !base.containsField("pack"))
+						unused.remove(Hex.encodeHexString((byte[]) sha));
+				}
+				Object dict = BSONUtils.get(doc, "dict.sha");
+				if (dict != null)
+					unused.remove(Hex.encodeHexString((byte[]) dict));
+			}
+		} finally {
+			cursor.close();
+		}
+		if (unused.isEmpty())
+			return;
+
+		// files and their older versions
+		List<byte[]> shas = decodeHex(unused);
+		for (DBCollection c : new DBCollection[] { files,
+				Vermongo.getShadowCollection(files) }) {
+			for (DBObject file : c.find(new BasicDBObject("sha",
+					new BasicDBObject(QueryOperators.IN, shas)),
+					new BasicDBObject("sha", true).append("pack", true))) {
+				if (!file.containsField("pack"))
+					unused.remove(Hex.encodeHexString((byte[]) file.get("sha")));
+			}
+		}
+		if (unused.isEmpty())
+			return;
+
+		// owners other than files
+		shas = decodeHex(unused);
+		for (DBObject refs : refCollection.find(new BasicDBObject(
+				"refHistory", new BasicDBObject(QueryOperators.IN, shas)),
+				new BasicDBObject("refHistory", true))) {
+			if (files.count(new BasicDBObject(_ID, refs.get(_ID))) > 0)
+				continue;
+			for (Object sha : BSONUtils.values(refs, "refHistory")) {
+				unused.remove(Hex.encodeHexString((byte[]) sha));
+			}
+		}
+	}
+
+	static byte[] decodeHex(String hex) {
+		try {
+			return Hex.decodeHex(hex.toCharArray());
+		} catch (DecoderException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static List<byte[]> decodeHex(Set<String> hex) {
+		List<byte[]> result = new ArrayList<byte[]>(hex.size());
+		for (String h : hex) {
+			result.add(decodeHex(h));
+		}
+		return result;
+	}
+
+}
@@ -30,6 +30,7 @@ import org.bson.types.ObjectId;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
 import v7db.files.spi.ContentSHA;
+import v7db.files.spi.GzippedContent;
 import v7db.files.spi.InlineContent;
 
 import com.mongodb.BasicDBObject;
@@ -40,6 +41,14 @@ public class V7File {
 	// lazy-loaded
 	private Content gridFile;
 
+	// the gzipped form of gridFile, if it is stored like that
+	private Content gzipFile;
+
+	private boolean gzipChecked;
+
+	// up to 4 MB (uncompressed) can be sent gzipped
+	private static final int MAX_GZIP_CHUNKS = 16;
+
 	private final V7GridFS gridFS;
 
 	private final DBObject metaData;
@@ -103,23 +112,31 @@ public class V7File {
 	 */
 
 	public InputStream getInputStreamWithGzipContents() throws IOException {
-		// loadGridFile();
-		// String store = (String) gridFile.get("store");
-		// if ("gz".equals(store))
-		// return gridFile.getInputStream();
-		return null;
+		loadGzipFile();
+		if (gzipFile == null)
+			return null;
+		return gzipFile.getInputStream();
 	}
 
 	/**
 	 * 
 	 * @return null, if the file is not stored using gzip
 	 */
-	public Long getGZipLength() {
-		// loadGridFile();
-		// String store = (String) gridFile.get("store");
-		// if ("gz".equals(store))
-		// return gridFile.getLength();
-		return null;
+	public Long getGZipLength() throws IOException {
+		loadGzipFile();
+		if (gzipFile == null)
+			return null;
+		return gzipFile.getLength();
+	}
+
+	private void loadGzipFile() throws IOException {
+		if (gzipChecked)
+			return;
+		loadGridFile();
+		if (gridFile != null)
+			gzipFile = GzippedContent.getGzippedContent(gridFile,
+					MAX_GZIP_CHUNKS);
+		gzipChecked = true;
 	}
 
 	/**
@@ -31,6 +31,7 @@ import org.bson.types.ObjectId;
 import v7db.files.ContentStorageFacade;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
+import v7db.files.spi.ContentStorage;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
@@ -48,8 +49,17 @@ public class V7GridFS {
 	public static final String COLLECTION_NAME_FILES = "v7files.files";
 
 	public V7GridFS(DB db) {
+		this(db, new MongoContentStorage(db));
+	}
+
+	/**
+	 * @param contentStorage
+	 *            to use a differently configured ContentStorage (for example
+	 *            with delta storage enabled)
+	 */
+	public V7GridFS(DB db, ContentStorage contentStorage) {
 		files = db.getCollection(COLLECTION_NAME_FILES);
-		storage = new ContentStorageFacade(new MongoContentStorage(db),
+		storage = new ContentStorageFacade(contentStorage,
 				new MongoReferenceTracking(db));
 	}
 
@@ -226,8 +236,11 @@ public class V7GridFS {
 				filename, contentType);
 
 		metaData.removeField("sha");
+		metaData.removeField("off");
+		metaData.removeField("pack");
 		metaData.removeField("length");
 		metaData.removeField("in");
+		metaData.removeField("hash");
 
 		metaData.putAll(newContent);
 
@@ -246,8 +259,11 @@ public class V7GridFS {
 					filename, contentType);
 
 			metaData.removeField("sha");
+			metaData.removeField("off");
+			metaData.removeField("pack");
 			metaData.removeField("length");
 			metaData.removeField("in");
+			metaData.removeField("hash");
 
 			metaData.putAll(newContent);
 		}
@@ -300,8 +316,9 @@ public class V7GridFS {
 		String filename = (String) metaData.get("filename");
 		String contentType = (String) metaData.get("contentType");
 
+		// the old contents are a good base for a delta
 		BSONObject newContent = storage.insertContentsAndBackRefs(contents,
-				fileId, filename, contentType);
+				oldContents, fileId, filename, contentType);
 
 		// check if it has changed
 		ContentPointer newContents = getContentPointer(newContent);
@@ -309,8 +326,11 @@ public class V7GridFS {
 			return;
 
 		metaData.removeField("sha");
+		metaData.removeField("off");
+		metaData.removeField("pack");
 		metaData.removeField("length");
 		metaData.removeField("in");
+		metaData.removeField("hash");
 
 		metaData.putAll(newContent);
 
@@ -330,7 +350,8 @@ public class V7GridFS {
 		// 20 (SHA-1) + 1 (sha - in) + 6 (length) + 4 (int32) + 2*12
 		// (ObjectId back-references)
 		BSONObject newContent = storage.inlineOrInsertContentsAndBackRefs(55,
-				contents, offset, len, fileId, filename, contentType);
+				contents, offset, len, oldContents, fileId, filename,
+				contentType);
 
 		// check if it has changed
 		ContentPointer newContents = getContentPointer(newContent);
@@ -338,8 +359,11 @@ public class V7GridFS {
 			return;
 
 		metaData.removeField("sha");
+		metaData.removeField("off");
+		metaData.removeField("pack");
 		metaData.removeField("length");
 		metaData.removeField("in");
+		metaData.removeField("hash");
 
 		metaData.putAll(newContent);
 
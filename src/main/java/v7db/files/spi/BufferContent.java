@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Content in a ByteBuffer (on or off the heap, or memory-mapped), shared by
+ * all readers.
+ */
+
+final class BufferContent implements Content {
+
+	private final ByteBuffer buffer;
+
+	BufferContent(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public long getLength() {
+		return buffer.capacity();
+	}
+
+	public InputStream getInputStream() {
+		return getInputStream(0, getLength());
+	}
+
+	public InputStream getInputStream(long offset, long length) {
+		if (offset < 0 || offset + length > getLength())
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ ", length " + length + " is out of bounds");
+		final ByteBuffer b = buffer.duplicate();
+		b.position((int) offset).limit((int) (offset + length));
+		return new InputStream() {
+
+			@Override
+			public int read() {
+				return b.hasRemaining() ? b.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] bytes, int off, int len) {
+				if (len == 0)
+					return 0;
+				if (!b.hasRemaining())
+					return -1;
+				len = Math.min(len, b.remaining());
+				b.get(bytes, off, len);
+				return len;
+			}
+
+			@Override
+			public long skip(long n) {
+				n = Math.max(0, Math.min(n, b.remaining()));
+				b.position(b.position() + (int) n);
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return b.remaining();
+			}
+
+		};
+	}
+}
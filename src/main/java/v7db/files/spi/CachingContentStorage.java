@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * ContentStorage decorator that caches the (decoded) bytes of small pieces of
+ * content, such as the chunks of large content. Since content is addressed by
+ * its SHA, it never changes, and there is nothing to invalidate.
+ * <p>
+ * There are two tiers, both with a limit on the total number of bytes and
+ * least-recently-used eviction: the Java heap, and (optionally) direct
+ * ByteBuffers outside of the heap. Content evicted from the heap moves to the
+ * off-heap tier.
+ * <p>
+ * For content that is made of chunks, the chunks are loaded through this
+ * cache.
+ * 
+ */
+
+public class CachingContentStorage implements ContentStorage {
+
+	private final ContentStorage storage;
+
+	private final int maxEntryLength;
+
+	private final long maxHeapBytes, maxOffHeapBytes;
+
+	private final LinkedHashMap<String, byte[]> heap = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+
+	private final LinkedHashMap<String, ByteBuffer> offHeap = new LinkedHashMap<String, ByteBuffer>(
+			16, 0.75f, true);
+
+	private long heapBytes, offHeapBytes;
+
+	private long hits, offHeapHits, misses, evictions;
+
+	/**
+	 * @param maxEntryLength
+	 *            only content up to this length is cached
+	 * @param maxHeapBytes
+	 *            the size of the on-heap tier
+	 * @param maxOffHeapBytes
+	 *            the size of the off-heap tier, 0 to disable it
+	 */
+	public CachingContentStorage(ContentStorage storage, int maxEntryLength,
+			long maxHeapBytes, long maxOffHeapBytes) {
+		this.storage = storage;
+		this.maxEntryLength = maxEntryLength;
+		this.maxHeapBytes = maxHeapBytes;
+		this.maxOffHeapBytes = maxOffHeapBytes;
+	}
+
+	public ContentSHA storeContent(InputStream data) throws IOException {
+		return storage.storeContent(data);
+	}
+
+	public ContentSHA storeContent(InputStream data, ContentPointer similar,
+			String contentType) throws IOException {
+		return storage.storeContent(data, similar, contentType);
+	}
+
+	public ContentPointer storeContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return storage.storeContent(storageScheme);
+	}
+
+	public Content getContent(byte[] sha) throws IOException {
+		String key = Hex.encodeHexString(sha);
+		Content cached = getCached(key);
+		if (cached != null)
+			return cached;
+		return cache(key, storage.getContent(sha));
+	}
+
+	public Content getContent(ContentPointer pointer) throws IOException {
+		if (pointer == null)
+			return null;
+		if (pointer instanceof InlineContent)
+			return (Content) pointer;
+		byte[] sha = sha(pointer);
+		if (sha == null)
+			return storage.getContent(pointer);
+		Content content = getContent(sha);
+		if (content == null)
+			throw new IllegalArgumentException("base SHA not found: "
+					+ Hex.encodeHexString(sha));
+		return withLength(content, pointer);
+	}
+
+	public List<Content> getContents(List<? extends ContentPointer> pointers)
+			throws IOException {
+		List<Content> result = new ArrayList<Content>(pointers.size());
+		List<ContentPointer> missing = new ArrayList<ContentPointer>();
+		for (ContentPointer p : pointers) {
+			Content c = null;
+			if (p instanceof InlineContent)
+				c = (Content) p;
+			else if (sha(p) != null)
+				c = getCached(Hex.encodeHexString(sha(p)));
+			if (c == null && p != null)
+				missing.add(p);
+			result.add(c == null ? null : withLength(c, p));
+		}
+		if (missing.isEmpty())
+			return result;
+
+		Iterator<Content> loaded = storage.getContents(missing).iterator();
+		for (int i = 0; i < result.size(); i++) {
+			ContentPointer p = pointers.get(i);
+			if (result.get(i) != null || p == null)
+				continue;
+			Content c = loaded.next();
+			if (c != null && offset(p) == 0 && p.getLength() == c.getLength()
+					&& sha(p) != null)
+				c = cache(Hex.encodeHexString(sha(p)), c);
+			result.set(i, c);
+		}
+		return result;
+	}
+
+	public Content getContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return storage.getContent(storageScheme);
+	}
+
+	private static byte[] sha(ContentPointer pointer) {
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getBaseSHA();
+		if (pointer instanceof ContentSHA)
+			return ((ContentSHA) pointer).getSHA();
+		return null;
+	}
+
+	private static long offset(ContentPointer pointer) {
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getOffset();
+		return 0;
+	}
+
+	private static Content withLength(Content content, ContentPointer pointer) {
+		long offset = offset(pointer);
+		if (offset != 0 || pointer.getLength() != content.getLength())
+			return new OffsetAndLength(content, offset, pointer.getLength());
+		return content;
+	}
+
+	private synchronized Content getCached(String key) {
+		byte[] bytes = heap.get(key);
+		if (bytes != null) {
+			hits++;
+			return new BufferContent(ByteBuffer.wrap(bytes));
+		}
+		ByteBuffer buffer = offHeap.get(key);
+		if (buffer != null) {
+			offHeapHits++;
+			return new BufferContent(buffer);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * @return the content to use instead of the one that was just loaded
+	 */
+	private Content cache(String key, Content content) throws IOException {
+		if (content == null)
+			return null;
+		if (content.getLength() > maxEntryLength) {
+			// but its chunks can be cached
+			if (content instanceof ChunkedContent)
+				return ((ChunkedContent) content).withStorage(this);
+			return content;
+		}
+		byte[] bytes = IOUtils.toByteArray(content.getInputStream());
+		synchronized (this) {
+			if (!heap.containsKey(key)) {
+				heap.put(key, bytes);
+				heapBytes += bytes.length;
+				evict();
+			}
+		}
+		return new BufferContent(ByteBuffer.wrap(bytes));
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, byte[]>> h = heap.entrySet().iterator();
+		while (heapBytes > maxHeapBytes && h.hasNext()) {
+			Map.Entry<String, byte[]> e = h.next();
+			h.remove();
+			byte[] bytes = e.getValue();
+			heapBytes -= bytes.length;
+			evictions++;
+			if (bytes.length <= maxOffHeapBytes
+					&& !offHeap.containsKey(e.getKey())) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+				buffer.put(bytes).flip();
+				offHeap.put(e.getKey(), buffer);
+				offHeapBytes += bytes.length;
+			}
+		}
+		Iterator<ByteBuffer> o = offHeap.values().iterator();
+		while (offHeapBytes > maxOffHeapBytes && o.hasNext()) {
+			offHeapBytes -= o.next().capacity();
+			o.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * @return how often content was found in the on-heap tier
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return how often content was found in the off-heap tier
+	 */
+	public synchronized long getOffHeapHits() {
+		return offHeapHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return how often content was removed from one of the tiers
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getHeapBytes() {
+		return heapBytes;
+	}
+
+	public synchronized long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+
+}
@@ -16,8 +16,11 @@
  */
 package v7db.files.spi;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.lang3.ArrayUtils;
 
@@ -25,8 +28,69 @@ public final class ChunkedContent implements Content {
 
 	private final Content[] chunks;
 
+	// offsets[i] is where chunks[i] starts, offsets[chunks.length] is the
+	// total length
+	private final long[] offsets;
+
+	private final ReadAhead readAhead;
+
 	ChunkedContent(Content... chunks) {
+		this(null, chunks);
+	}
+
+	ChunkedContent(ReadAhead readAhead, Content... chunks) {
+		this.readAhead = readAhead;
 		this.chunks = ArrayUtils.clone(chunks);
+		offsets = new long[chunks.length + 1];
+		for (int i = 0; i < chunks.length; i++) {
+			offsets[i + 1] = offsets[i] + chunks[i].getLength();
+		}
+	}
+
+	/**
+	 * @return a copy that loads its lazy chunks from the given storage
+	 */
+	ChunkedContent withStorage(ContentStorage storage) {
+		Content[] copy = chunks.clone();
+		for (int i = 0; i < copy.length; i++) {
+			if (copy[i] instanceof LazyContent)
+				copy[i] = new LazyContent(storage, ((LazyContent) copy[i])
+						.getPointer());
+		}
+		return new ChunkedContent(readAhead, copy);
+	}
+
+	/**
+	 * @return the chunks, with the lazily loaded ones retrieved (together),
+	 *         or null if there are more than the given number of chunks
+	 */
+	Content[] loadChunks(int maxChunks) throws IOException {
+		if (chunks.length > maxChunks)
+			return null;
+		Content[] result = chunks.clone();
+		ContentStorage storage = null;
+		List<Integer> positions = new ArrayList<Integer>();
+		List<StoredContent> pointers = new ArrayList<StoredContent>();
+		for (int i = 0; i < result.length; i++) {
+			if (!(result[i] instanceof LazyContent))
+				continue;
+			LazyContent c = (LazyContent) result[i];
+			if (storage == null)
+				storage = c.getStorage();
+			if (c.getStorage() == storage) {
+				positions.add(i);
+				pointers.add(c.getPointer());
+			} else {
+				result[i] = c.getStorage().getContent(c.getPointer());
+			}
+		}
+		if (storage != null) {
+			List<Content> loaded = storage.getContents(pointers);
+			for (int i = 0; i < positions.size(); i++) {
+				result[positions.get(i)] = loaded.get(i);
+			}
+		}
+		return result;
 	}
 
 	public InputStream getInputStream() throws IOException {
@@ -39,11 +103,27 @@ public final class ChunkedContent implements Content {
 	}
 
 	public long getLength() {
-		int length = 0;
-		for (Content c : chunks) {
-			length += c.getLength();
+		return offsets[chunks.length];
+	}
+
+	private long chunkLength(int chunk) {
+		return offsets[chunk + 1] - offsets[chunk];
+	}
+
+	/**
+	 * @return the index of the (last) chunk that starts at or before the
+	 *         given position
+	 */
+	private int chunkIndex(long position) {
+		int low = 0, high = chunks.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (offsets[mid] <= position)
+				low = mid;
+			else
+				high = mid - 1;
 		}
-		return length;
+		return low;
 	}
 
 	class ChunkStream extends InputStream {
@@ -54,61 +134,210 @@ public final class ChunkedContent implements Content {
 
 		private long currentOffset;
 
-		private final long length;
-
 		private InputStream currentStream;
 
+		// set when a chunk has been read to the end, and the next one is
+		// needed
+		private boolean sequential;
+
+		// chunks retrieved ahead of time (starting at chunk prefetchStart),
+		// and the bytes reserved for them
+		private Content[] prefetched;
+
+		private long[] reserved;
+
+		private int prefetchStart;
+
+		private ReadAhead.Reservation reservation;
+
 		ChunkStream(long offset, long length) {
-			this.length = getLength();
-			if (offset < 0 && offset >= this.length)
+			long total = getLength();
+			if (offset < 0 || offset > total)
 				throw new IndexOutOfBoundsException("offset " + offset
 						+ " is out of bounds");
-			if (offset + length > this.length)
+			if (length < 0 || offset + length > total)
 				throw new IndexOutOfBoundsException("length " + length
 						+ " is out of bounds (offset: " + offset + ")");
 
 			remaining = length;
-			currentChunk = 0;
-			currentOffset = 0;
-			while (offset > 0) {
-				Content chunk = chunks[currentChunk];
-				if (chunk.getLength() <= offset) {
-					currentChunk++;
-					offset -= chunk.getLength();
-				} else {
-					currentOffset = offset;
-					offset = 0;
+			seek(offset);
+		}
+
+		private void seek(long position) {
+			if (chunks.length == 0)
+				return;
+			currentChunk = chunkIndex(position);
+			currentOffset = position - offsets[currentChunk];
+		}
+
+		/**
+		 * @return the stream for the current chunk, positioned at
+		 *         currentOffset, or null at the end
+		 */
+		private InputStream currentStream() throws IOException {
+			if (remaining <= 0) {
+				releasePrefetched();
+				return null;
+			}
+			if (currentStream == null) {
+				currentStream = chunk(currentChunk).getInputStream(
+						currentOffset, Math.min(remaining,
+								chunkLength(currentChunk) - currentOffset));
+			}
+			return currentStream;
+		}
+
+		/**
+		 * @return the chunk, from the read-ahead if it is there
+		 */
+		private Content chunk(int index) throws IOException {
+			if (readAhead == null)
+				return chunks[index];
+			if (!isPrefetched(index) && sequential)
+				prefetch(index);
+			if (!isPrefetched(index))
+				return chunks[index];
+			int i = index - prefetchStart;
+			Content c = prefetched[i];
+			prefetched[i] = null;
+			readAhead.release(reservation, reserved[i]);
+			reserved[i] = 0;
+			return c;
+		}
+
+		private boolean isPrefetched(int index) {
+			int i = index - prefetchStart;
+			return prefetched != null && i >= 0 && i < prefetched.length
+					&& prefetched[i] != null;
+		}
+
+		/**
+		 * retrieve the lazily loaded chunks starting at the given one (as
+		 * many as the ReadAhead allows) with a single call to their
+		 * ContentStorage
+		 */
+		private void prefetch(int index) throws IOException {
+			releasePrefetched();
+			if (!(chunks[index] instanceof LazyContent))
+				return;
+			ContentStorage storage = ((LazyContent) chunks[index])
+					.getStorage();
+			int count = Math.min(readAhead.getChunks(), chunks.length - index);
+			if (prefetched == null) {
+				prefetched = new Content[count];
+				reserved = new long[count];
+			}
+			if (reservation == null)
+				reservation = readAhead.reservation(this);
+			prefetchStart = index;
+			List<StoredContent> pointers = new ArrayList<StoredContent>(count);
+			for (int i = 0; i < count; i++) {
+				if (!(chunks[index + i] instanceof LazyContent))
+					break;
+				LazyContent c = (LazyContent) chunks[index + i];
+				if (c.getStorage() != storage
+						|| !readAhead.reserve(reservation, c.getLength()))
+					break;
+				reserved[i] = c.getLength();
+				pointers.add(c.getPointer());
+			}
+			if (pointers.size() < 2) {
+				// not worth it
+				releasePrefetched();
+				return;
+			}
+			List<Content> contents = storage.getContents(pointers);
+			for (int i = 0; i < pointers.size(); i++) {
+				prefetched[i] = contents.get(i);
+				if (prefetched[i] == null) {
+					readAhead.release(reservation, reserved[i]);
+					reserved[i] = 0;
 				}
 			}
 		}
 
+		private void releasePrefetched() {
+			if (prefetched == null)
+				return;
+			for (int i = 0; i < prefetched.length; i++) {
+				prefetched[i] = null;
+				readAhead.release(reservation, reserved[i]);
+				reserved[i] = 0;
+			}
+		}
+
+		private void nextChunk() throws IOException {
+			currentStream.close();
+			currentStream = null;
+			sequential = true;
+			if (currentChunk == chunks.length - 1)
+				throw new EOFException(remaining
+						+ " bytes missing at the end of the content");
+			seek(offsets[currentChunk + 1]);
+		}
+
 		@Override
 		public int read() throws IOException {
-			if (remaining <= 0)
-				return -1;
-			int r = -1;
-			if (currentStream != null)
-				r = currentStream.read();
-			if (r > -1) {
-				remaining--;
-				return r;
+			InputStream in;
+			while ((in = currentStream()) != null) {
+				int r = in.read();
+				if (r > -1) {
+					remaining--;
+					currentOffset++;
+					return r;
+				}
+				nextChunk();
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			InputStream in;
+			while ((in = currentStream()) != null) {
+				int r = in.read(b, off, (int) Math.min(len, remaining));
+				if (r > 0) {
+					remaining -= r;
+					currentOffset += r;
+					return r;
+				}
+				nextChunk();
 			}
+			return -1;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			n = Math.min(n, remaining);
+			if (n <= 0)
+				return 0;
+			if (currentStream != null
+					&& currentOffset + n < chunkLength(currentChunk)) {
+				long s = currentStream.skip(n);
+				remaining -= s;
+				currentOffset += s;
+				return s;
+			}
+			// chunks that are skipped completely are never opened
 			if (currentStream != null) {
 				currentStream.close();
 				currentStream = null;
 			}
+			sequential = false;
+			remaining -= n;
+			seek(offsets[currentChunk] + currentOffset + n);
+			if (!isPrefetched(currentChunk))
+				releasePrefetched();
+			return n;
+		}
 
-			Content chunk = chunks[currentChunk];
-			long len = chunk.getLength();
-			if (len >= remaining + currentOffset) {
-				currentStream = chunk.getInputStream(currentOffset, remaining);
-			} else {
-				currentStream = chunk.getInputStream(currentOffset, len
-						- currentOffset);
-			}
-			currentOffset = 0;
-			currentChunk++;
-			return read();
+		@Override
+		public int available() throws IOException {
+			if (currentStream == null)
+				return 0;
+			return (int) Math.min(currentStream.available(), remaining);
 		}
 
 		@Override
@@ -117,6 +346,12 @@ public final class ChunkedContent implements Content {
 				currentStream.close();
 				currentStream = null;
 			}
+			releasePrefetched();
+			prefetched = null;
+			if (reservation != null) {
+				readAhead.close(reservation);
+				reservation = null;
+			}
 			remaining = 0;
 			super.close();
 		}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.util.Map;
+
+/**
+ * A StorageScheme for compressed data, that can also do the compression.
+ * 
+ * <pre>
+ * store:  [the id of the codec]
+ * zin:    [compressed data]
+ * length: [the uncompressed length]
+ * ...     [whatever else the codec needs]
+ * </pre>
+ * 
+ */
+
+public interface CompressionCodec extends StorageScheme {
+
+	/**
+	 * @return the compressed data, or null, if that would not be smaller
+	 */
+	byte[] compress(byte[] data, int offset, int length);
+
+	/**
+	 * @return the fields (in addition to store, zin and length) that need to
+	 *         be stored with the compressed data, null if there are none
+	 */
+	Map<String, Object> getFields();
+
+}
@@ -27,20 +27,38 @@ import v7db.files.MapUtils;
  * <pre>
  * store:  'cat'
  * base:  one or more chunks
+ * hash:  'tree' (if the _id is a tree hash, see {@link ContentSHA})
  * </pre>
  * 
  * Each chunk is either a byte array (raw binary data), or a Map representing a
- * ContentPointer.
+ * ContentPointer. That content can itself be a concatenation (a nested
+ * manifest for very large content), it is only loaded when it is being read.
  * 
  * 
  */
 
 public class ContentConcatenation implements StorageScheme {
 
+	private final ReadAhead readAhead;
+
+	public ContentConcatenation() {
+		this(null);
+	}
+
+	/**
+	 * @param readAhead
+	 *            for sequential reads of the concatenated content, can be
+	 *            null
+	 */
+	public ContentConcatenation(ReadAhead readAhead) {
+		this.readAhead = readAhead;
+	}
+
 	public Content getContent(ContentStorage storage, Map<String, Object> data)
 			throws IOException {
 
-		MapUtils.supportedAndRequiredFields(data, "base", "store");
+		MapUtils.requiredFields(data, "base", "store");
+		MapUtils.supportedFields(data, "base", "store", "hash");
 
 		List<Content> chunks = new ArrayList<Content>();
 		for (Object chunk : MapUtils.values(data, "base")) {
@@ -55,7 +73,7 @@ public class ContentConcatenation implements StorageScheme {
 		}
 		if (chunks.size() == 1)
 			return chunks.get(0);
-		return new ChunkedContent(chunks.toArray(new Content[0]));
+		return new ChunkedContent(readAhead, chunks.toArray(new Content[0]));
 	}
 
 	public String getId() {
@@ -18,22 +18,62 @@ package v7db.files.spi;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
+/**
+ * Identifies content by the SHA-1 of its data, or (for content made of
+ * several chunks) by a "tree hash" over the SHA of its chunks (see
+ * {@link #calculateTreeHash(List)}). The two kinds of identity are not
+ * interchangeable, a tree hash is serialized with a marker:
+ * 
+ * <pre>
+ * sha:    [SHA]
+ * length: [the length of the content]
+ * hash:   'tree' (omitted for SHA-1)
+ * </pre>
+ * 
+ * They do not share the same ids either: The input of a tree hash is just a
+ * byte string, so some data has a SHA-1 that is equal to it. To keep that
+ * data apart from the content with the tree hash, the id of a tree hash has
+ * 21 bytes (see {@link #TREE_HASH_ID}), and a SHA-1 is always 20 bytes long.
+ */
+
 public final class ContentSHA implements ContentPointer {
 
+	/**
+	 * the value of the "hash" field for tree hashes
+	 */
+	public static final String TREE_HASH = "tree";
+
+	/**
+	 * the first byte of the id of a tree hash, followed by the 20 bytes of
+	 * the hash itself
+	 */
+	public static final byte TREE_HASH_ID = 't';
+
 	private final byte[] sha;
 
 	private final Long length;
 
+	private final boolean treeHash;
+
 	private ContentSHA(byte[] sha, long length) {
+		this(sha, length, false);
+	}
+
+	private ContentSHA(byte[] sha, long length, boolean treeHash) {
 		this.sha = sha;
 		this.length = length;
+		this.treeHash = treeHash;
 	}
 
 	public byte[] getSHA() {
@@ -51,10 +91,75 @@ public final class ContentSHA implements ContentPointer {
 		return length;
 	}
 
+	/**
+	 * @return true, if this is a tree hash (and not the SHA-1 of the data)
+	 */
+	public boolean isTreeHash() {
+		return treeHash;
+	}
+
 	public static ContentSHA forDigestAndLength(byte[] sha, long length) {
 		return new ContentSHA(sha.clone(), length);
 	}
 
+	public static ContentSHA forTreeHash(byte[] sha, long length) {
+		if (!isTreeHashId(sha))
+			throw new IllegalArgumentException("not a tree hash: "
+					+ Hex.encodeHexString(sha));
+		return new ContentSHA(sha.clone(), length, true);
+	}
+
+	/**
+	 * @return true, if this is the id of a tree hash (and not a SHA-1)
+	 */
+	public static boolean isTreeHashId(byte[] sha) {
+		return sha.length == 21 && sha[0] == TREE_HASH_ID;
+	}
+
+	/**
+	 * Calculates the identity of content made of the given chunks from the
+	 * SHA and length of the chunks alone (so the data does not have to be
+	 * hashed a second time, and the chunks can be hashed in parallel): the
+	 * SHA-1 of the marker "tree", followed by the SHA and the length (eight
+	 * bytes, big-endian) of every chunk, in order. Its id is that SHA-1,
+	 * prefixed with {@link #TREE_HASH_ID}.
+	 * <p>
+	 * This depends on where the chunk boundaries are, so the same data
+	 * chunked differently gets a different tree hash. Content with just one
+	 * chunk (or none) is identified by the SHA-1 of its data.
+	 * 
+	 * @param chunks
+	 *            identified by the SHA-1 of their data
+	 */
+	public static ContentSHA calculateTreeHash(List<ContentSHA> chunks) {
+		if (chunks.isEmpty())
+			return calculate(new byte[0]);
+		if (chunks.size() == 1)
+			return chunks.get(0);
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update(TREE_HASH.getBytes());
+		ByteBuffer length = ByteBuffer.allocate(8);
+		long total = 0;
+		for (ContentSHA c : chunks) {
+			if (c.treeHash)
+				throw new IllegalArgumentException(
+						"chunks must be identified by SHA-1: " + c.getDigest());
+			digest.update(c.sha);
+			length.clear();
+			digest.update(length.putLong(c.length).array());
+			total += c.length;
+		}
+		byte[] id = new byte[21];
+		id[0] = TREE_HASH_ID;
+		System.arraycopy(digest.digest(), 0, id, 1, 20);
+		return new ContentSHA(id, total, true);
+	}
+
 	public static ContentSHA calculate(byte[] data) {
 		return new ContentSHA(DigestUtils.sha(data), data.length);
 	}
@@ -73,18 +178,25 @@ public final class ContentSHA implements ContentPointer {
 		result.put("sha", getSHA());
 		if (length != null)
 			result.put("length", length);
+		if (treeHash)
+			result.put("hash", TREE_HASH);
 		return result;
 	}
 
 	public boolean contentEquals(ContentPointer otherContent) {
 		if (otherContent == null || otherContent.getLength() != length)
 			return false;
-		if (otherContent instanceof ContentSHA)
-			return Arrays.equals(sha, ((ContentSHA) otherContent).sha);
+		if (otherContent instanceof ContentSHA) {
+			ContentSHA c = (ContentSHA) otherContent;
+			return treeHash == c.treeHash && Arrays.equals(sha, c.sha);
+		}
 		if (otherContent instanceof StoredContent) {
 			StoredContent s = (StoredContent) otherContent;
-			return s.getOffset() == 0 && Arrays.equals(s.getBaseSHA(), sha);
+			return treeHash == s.isTreeHash()
+					&& Arrays.equals(s.getContentSHA(), sha);
 		}
+		if (treeHash)
+			return false;
 		if (otherContent instanceof InlineContent)
 			try {
 				return Arrays.equals(sha, DigestUtils
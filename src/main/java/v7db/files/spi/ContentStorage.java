@@ -19,6 +19,7 @@ package v7db.files.spi;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -48,6 +49,24 @@ public interface ContentStorage {
 	 */
 	ContentSHA storeContent(InputStream data) throws IOException;
 
+	/**
+	 * store content with hints about it, which implementations may use (or
+	 * ignore):
+	 * <ul>
+	 * <li>content that is likely similar to it (such as the previous version
+	 * of a file that is being replaced), to store only the difference
+	 * <li>the content type, to decide about compression
+	 * </ul>
+	 * will close the InputStream before returning
+	 * 
+	 * @param similar
+	 *            can be null
+	 * @param contentType
+	 *            can be null
+	 */
+	ContentSHA storeContent(InputStream data, ContentPointer similar,
+			String contentType) throws IOException;
+
 	/**
 	 * store "out-of-band" content.
 	 * 
@@ -68,6 +87,16 @@ public interface ContentStorage {
 	 */
 	Content getContent(ContentPointer pointer) throws IOException;
 
+	/**
+	 * retrieve several pieces of content at once (implementations should do
+	 * that with fewer round-trips than retrieving them one by one)
+	 * 
+	 * @return the contents, in the same order as the pointers, null for those
+	 *         that were not stored (or are null)
+	 */
+	List<Content> getContents(List<? extends ContentPointer> pointers)
+			throws IOException;
+
 	/**
 	 * 
 	 * @throws UnsupportedOperationException
@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Content that is decoded from compressed data as it is being read.
+ */
+
+abstract class DecodedContent implements Content {
+
+	final byte[] compressed;
+
+	private final long length;
+
+	DecodedContent(byte[] compressed, long length) {
+		this.compressed = compressed;
+		this.length = length;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public InputStream getInputStream(long offset, long length)
+			throws IOException {
+		if (offset < 0 || offset > this.length)
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ " is out of bounds");
+		if (offset + length > this.length)
+			throw new IndexOutOfBoundsException("length " + length
+					+ " is out of bounds (offset: " + offset + ")");
+		InputStream in = getInputStream();
+		// decode (and throw away) only up to the offset
+		IOUtils.skipFully(in, offset);
+		return new BoundedInputStream(in, length);
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import v7db.files.MapUtils;
+
+/**
+ * <pre>
+ * store:  'deflate'
+ * zin:    [raw deflate data, no header or checksum]
+ * length: [the uncompressed length]
+ * </pre>
+ * 
+ * Like gzip, but without the 18 bytes of gzip framing, and with a
+ * configurable compression level (which only matters for compression, all
+ * levels are read the same way).
+ * 
+ */
+
+public class DeflatedContent implements CompressionCodec {
+
+	private final int level;
+
+	public DeflatedContent() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *            from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9)
+	 */
+	public DeflatedContent(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION
+				&& (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("invalid compression level "
+					+ level);
+		this.level = level;
+	}
+
+	public Content getContent(ContentStorage storage, Map<String, Object> data)
+			throws IOException {
+		MapUtils.supportedAndRequiredFields(data, "store", "zin", "length");
+		return new DecodedContent(MapUtils.getRequiredBytes(data, "zin"),
+				MapUtils.getRequiredLong(data, "length")) {
+
+			public InputStream getInputStream() throws IOException {
+				return new InflaterInputStream(new ByteArrayInputStream(
+						compressed), new Inflater(true));
+			}
+		};
+	}
+
+	public byte[] compress(byte[] data, int offset, int length) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			// only interested if it gets smaller
+			byte[] out = new byte[length];
+			int size = deflater.deflate(out);
+			if (!deflater.finished() || size >= length)
+				return null;
+			byte[] result = new byte[size];
+			System.arraycopy(out, 0, result, 0, size);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public Map<String, Object> getFields() {
+		return null;
+	}
+
+	public String getId() {
+		return "deflate";
+	}
+
+}
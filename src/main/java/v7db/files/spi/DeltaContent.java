@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.ArrayUtils;
+
+import v7db.files.Delta;
+import v7db.files.MapUtils;
+
+/**
+ * <pre>
+ * store:  'delta'
+ * base:   { sha: [base SHA], length: [base length] }
+ * delta:  [binary delta, see {@link Delta}]
+ * length: [the length of the resulting content]
+ * </pre>
+ * 
+ * Content that is stored as the difference to some other content. The
+ * resulting content is streamed from segments of the base content and literal
+ * data, it is never assembled in memory.
+ * 
+ */
+
+public class DeltaContent implements StorageScheme {
+
+	public Content getContent(ContentStorage storage, Map<String, Object> data)
+			throws IOException {
+		MapUtils.supportedAndRequiredFields(data, "store", "base", "delta",
+				"length");
+		byte[] sha = MapUtils.getRequiredBytes(data, "base.sha");
+		long baseLength = MapUtils.getRequiredLong(data, "base.length");
+		long length = MapUtils.getRequiredLong(data, "length");
+		// empty for empty content
+		byte[] delta = (byte[]) data.get("delta");
+		if (delta == null)
+			delta = ArrayUtils.EMPTY_BYTE_ARRAY;
+
+		// load the base once, not for every COPY segment
+		Content base = storage.getContent(new StoredContent(sha, baseLength));
+		if (base == null)
+			throw new IllegalArgumentException("base SHA not found: "
+					+ Hex.encodeHexString(sha));
+
+		List<Content> segments = new ArrayList<Content>();
+		long total = 0;
+		int[] pos = { 0 };
+		while (pos[0] < delta.length) {
+			long op = Delta.readVarInt(delta, pos);
+			long len = op >>> 1;
+			if ((op & 1) == Delta.COPY) {
+				long offset = Delta.readVarInt(delta, pos);
+				if (offset + len > baseLength)
+					throw new IllegalArgumentException(
+							"delta refers beyond the end of its base");
+				segments.add(new OffsetAndLength(base, offset, len));
+			} else {
+				if (len > delta.length - pos[0])
+					throw new IllegalArgumentException(
+							"delta inserts more bytes than it contains");
+				int start = pos[0];
+				pos[0] += (int) len;
+				segments.add(new InlineContent(ArrayUtils.subarray(delta,
+						start, pos[0])));
+			}
+			total += len;
+		}
+		if (total != length)
+			throw new IllegalArgumentException("delta produces " + total
+					+ " bytes instead of " + length);
+
+		if (segments.isEmpty())
+			return new InlineContent(ArrayUtils.EMPTY_BYTE_ARRAY);
+		if (segments.size() == 1)
+			return segments.get(0);
+		return new ChunkedContent(segments.toArray(new Content[0]));
+	}
+
+	public String getId() {
+		return "delta";
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.MapUtils;
+import v7db.files.PresetDictionary;
+
+/**
+ * <pre>
+ * store:  'dict'
+ * dict:   { sha: [dictionary SHA], length: [dictionary length] }
+ * zin:    [raw deflate data, compressed with the dictionary]
+ * length: [the uncompressed length]
+ * </pre>
+ * 
+ * Raw deflate with a preset dictionary (see {@link PresetDictionary}), for
+ * small content that is similar to other small content. The dictionary is
+ * itself stored as content, and referenced by its SHA.
+ * <p>
+ * An instance created without a dictionary can only read (any dictionary),
+ * to compress, it needs to be given the dictionary (and the same dictionary
+ * must have been stored in the ContentStorage as well).
+ * 
+ */
+
+public class DictionaryDeflatedContent implements CompressionCodec {
+
+	private final byte[] dictionary;
+
+	private final ContentSHA dictionarySHA;
+
+	// dictionaries are needed over and over again, but there are only a few
+	private final Map<String, byte[]> dictionaries = Collections
+			.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f,
+					true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, byte[]> eldest) {
+					return size() > 16;
+				}
+			});
+
+	public DictionaryDeflatedContent() {
+		dictionary = null;
+		dictionarySHA = null;
+	}
+
+	public DictionaryDeflatedContent(byte[] dictionary) {
+		if (dictionary.length == 0
+				|| dictionary.length > PresetDictionary.MAX_SIZE)
+			throw new IllegalArgumentException("invalid dictionary length "
+					+ dictionary.length);
+		this.dictionary = dictionary;
+		dictionarySHA = ContentSHA.calculate(dictionary);
+		dictionaries.put(dictionarySHA.getDigest(), dictionary);
+	}
+
+	/**
+	 * @return the dictionary used for compression (which needs to be stored
+	 *         in the ContentStorage), null if this instance only reads
+	 */
+	public ContentSHA getDictionary() {
+		return dictionarySHA;
+	}
+
+	public Content getContent(ContentStorage storage, Map<String, Object> data)
+			throws IOException {
+		MapUtils.supportedAndRequiredFields(data, "store", "dict", "zin",
+				"length");
+		final byte[] dict = loadDictionary(storage, MapUtils.getRequiredBytes(
+				data, "dict.sha"), MapUtils.getRequiredLong(data,
+				"dict.length"));
+		return new DecodedContent(MapUtils.getRequiredBytes(data, "zin"),
+				MapUtils.getRequiredLong(data, "length")) {
+
+			public InputStream getInputStream() throws IOException {
+				Inflater inflater = new Inflater(true);
+				inflater.setDictionary(dict);
+				return new InflaterInputStream(new ByteArrayInputStream(
+						compressed), inflater);
+			}
+		};
+	}
+
+	private byte[] loadDictionary(ContentStorage storage, byte[] sha,
+			long length) throws IOException {
+		String digest = Hex.encodeHexString(sha);
+		byte[] dict = dictionaries.get(digest);
+		if (dict != null)
+			return dict;
+		Content content = storage.getContent(new StoredContent(sha, length));
+		if (content == null)
+			throw new IllegalArgumentException("dictionary SHA not found: "
+					+ digest);
+		InputStream in = content.getInputStream();
+		try {
+			dict = IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		dictionaries.put(digest, dict);
+		return dict;
+	}
+
+	public byte[] compress(byte[] data, int offset, int length) {
+		if (dictionary == null)
+			return null;
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try {
+			deflater.setDictionary(dictionary);
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			// only interested if it gets smaller
+			byte[] out = new byte[length];
+			int size = deflater.deflate(out);
+			if (!deflater.finished() || size >= length)
+				return null;
+			byte[] result = new byte[size];
+			System.arraycopy(out, 0, result, 0, size);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public Map<String, Object> getFields() {
+		if (dictionarySHA == null)
+			return null;
+		return Collections.<String, Object> singletonMap("dict", dictionarySHA
+				.serialize());
+	}
+
+	public String getId() {
+		return "dict";
+	}
+
+}
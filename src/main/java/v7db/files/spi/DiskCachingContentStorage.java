@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * ContentStorage decorator that caches the (decoded) bytes of small pieces of
+ * content, such as the chunks of large content, in files in a local
+ * directory (preferably on an SSD). Unlike {@link CachingContentStorage}, the
+ * cache survives a restart of the process, so that it does not start cold.
+ * <p>
+ * The files are laid out like in a {@link FileSystemContentStorage}, and read
+ * the same way (see {@link FileContent}), so a cache hit goes neither to the
+ * decorated storage nor through the Java heap.
+ * <p>
+ * The total size of the files is limited, the least-recently-used ones are
+ * deleted first. The last use is kept as the modification time of the file
+ * (updated at most once a minute), so that the order is restored after a
+ * restart.
+ * <p>
+ * For content that is made of chunks, the chunks are loaded through this
+ * cache. This can be combined with a CachingContentStorage in front of it.
+ */
+
+public class DiskCachingContentStorage implements ContentStorage {
+
+	// how often the modification time of a cached file is updated
+	private static final long TOUCH_INTERVAL = 60 * 1000;
+
+	private final ContentStorage storage;
+
+	private final FileSystemContentStorage files;
+
+	private final int maxEntryLength;
+
+	private final long maxBytes;
+
+	// hex SHA -> length, in access order
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+
+	private long bytes;
+
+	private long hits, misses, evictions;
+
+	/**
+	 * @param directory
+	 *            where to keep the cached files (existing ones are used)
+	 * @param maxEntryLength
+	 *            only content up to this length is cached
+	 * @param maxBytes
+	 *            the total size of the cached files
+	 */
+	public DiskCachingContentStorage(ContentStorage storage, File directory,
+			int maxEntryLength, long maxBytes) throws IOException {
+		this.storage = storage;
+		this.files = new FileSystemContentStorage(directory);
+		this.maxEntryLength = maxEntryLength;
+		this.maxBytes = maxBytes;
+		FileUtils.cleanDirectory(new File(directory, "tmp"));
+		load();
+	}
+
+	/**
+	 * adds the files that are already in the cache directory to the index,
+	 * least recently used first
+	 */
+	private void load() {
+		List<File> cached = files.listContentFiles();
+		Collections.sort(cached, new Comparator<File>() {
+			public int compare(File o1, File o2) {
+				long a = o1.lastModified(), b = o2.lastModified();
+				return a < b ? -1 : (a == b ? 0 : 1);
+			}
+		});
+		synchronized (this) {
+			for (File f : cached) {
+				long length = f.length();
+				index.put(f.getName(), length);
+				bytes += length;
+			}
+			evict();
+		}
+	}
+
+	public ContentSHA storeContent(InputStream data) throws IOException {
+		return storage.storeContent(data);
+	}
+
+	public ContentSHA storeContent(InputStream data, ContentPointer similar,
+			String contentType) throws IOException {
+		return storage.storeContent(data, similar, contentType);
+	}
+
+	public ContentPointer storeContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return storage.storeContent(storageScheme);
+	}
+
+	public Content getContent(byte[] sha) throws IOException {
+		Content cached = getCached(sha);
+		if (cached != null)
+			return cached;
+		return cache(sha, storage.getContent(sha));
+	}
+
+	public Content getContent(ContentPointer pointer) throws IOException {
+		if (pointer == null)
+			return null;
+		if (pointer instanceof InlineContent)
+			return (Content) pointer;
+		byte[] sha = sha(pointer);
+		if (sha == null)
+			return storage.getContent(pointer);
+		Content content = getContent(sha);
+		if (content == null)
+			throw new IllegalArgumentException("base SHA not found: "
+					+ Hex.encodeHexString(sha));
+		return withLength(content, pointer);
+	}
+
+	public List<Content> getContents(List<? extends ContentPointer> pointers)
+			throws IOException {
+		List<Content> result = new ArrayList<Content>(pointers.size());
+		List<ContentPointer> missing = new ArrayList<ContentPointer>();
+		for (ContentPointer p : pointers) {
+			Content c = null;
+			if (p instanceof InlineContent)
+				c = (Content) p;
+			else if (sha(p) != null)
+				c = getCached(sha(p));
+			if (c == null && p != null)
+				missing.add(p);
+			result.add(c == null ? null : withLength(c, p));
+		}
+		if (missing.isEmpty())
+			return result;
+
+		Iterator<Content> loaded = storage.getContents(missing).iterator();
+		for (int i = 0; i < result.size(); i++) {
+			ContentPointer p = pointers.get(i);
+			if (result.get(i) != null || p == null)
+				continue;
+			Content c = loaded.next();
+			if (c != null && offset(p) == 0 && p.getLength() == c.getLength()
+					&& sha(p) != null)
+				c = cache(sha(p), c);
+			result.set(i, c);
+		}
+		return result;
+	}
+
+	public Content getContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return storage.getContent(storageScheme);
+	}
+
+	private static byte[] sha(ContentPointer pointer) {
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getBaseSHA();
+		if (pointer instanceof ContentSHA)
+			return ((ContentSHA) pointer).getSHA();
+		return null;
+	}
+
+	private static long offset(ContentPointer pointer) {
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getOffset();
+		return 0;
+	}
+
+	private static Content withLength(Content content, ContentPointer pointer) {
+		long offset = offset(pointer);
+		if (offset != 0 || pointer.getLength() != content.getLength())
+			return new OffsetAndLength(content, offset, pointer.getLength());
+		return content;
+	}
+
+	private Content getCached(byte[] sha) {
+		String key = Hex.encodeHexString(sha);
+		Long length;
+		synchronized (this) {
+			length = index.get(key);
+			if (length == null) {
+				misses++;
+				return null;
+			}
+		}
+		File file = files.getFile(key);
+		FileContent content = new FileContent(file);
+		synchronized (this) {
+			// it may just have been evicted (or deleted by someone else)
+			if (content.getLength() != length.longValue()) {
+				if (index.remove(key) != null)
+					bytes -= length;
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		long now = System.currentTimeMillis();
+		if (file.lastModified() < now - TOUCH_INTERVAL)
+			file.setLastModified(now);
+		return new CachedContent(sha, content);
+	}
+
+	/**
+	 * @return the content to use instead of the one that was just loaded
+	 */
+	private Content cache(byte[] sha, Content content) throws IOException {
+		if (content == null)
+			return null;
+		if (content.getLength() > maxEntryLength) {
+			// but its chunks can be cached
+			if (content instanceof ChunkedContent)
+				return ((ChunkedContent) content).withStorage(this);
+			return content;
+		}
+		ContentSHA stored = files.storeContent(content.getInputStream());
+		File file = files.getFile(stored.getSHA());
+		if (!Arrays.equals(sha, stored.getSHA())) {
+			// not what we asked for, do not keep it
+			FileUtils.deleteQuietly(file);
+			return content;
+		}
+		String key = stored.getDigest();
+		synchronized (this) {
+			if (!index.containsKey(key)) {
+				index.put(key, stored.getLength());
+				bytes += stored.getLength();
+				evict();
+			}
+		}
+		return new CachedContent(sha, new FileContent(file));
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator();
+		while (bytes > maxBytes && i.hasNext()) {
+			Map.Entry<String, Long> e = i.next();
+			i.remove();
+			bytes -= e.getValue();
+			evictions++;
+			FileUtils.deleteQuietly(files.getFile(e.getKey()));
+		}
+	}
+
+	/**
+	 * @return how often content was found in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return how often content was removed from the cache
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the total size of the cached files
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * content from a cached file, which is read from the decorated storage
+	 * instead if the file has been evicted before it is opened
+	 */
+	final class CachedContent implements Content {
+
+		private final byte[] sha;
+
+		private final FileContent file;
+
+		private CachedContent(byte[] sha, FileContent file) {
+			this.sha = sha;
+			this.file = file;
+		}
+
+		public long getLength() {
+			return file.getLength();
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return getInputStream(0, getLength());
+		}
+
+		public InputStream getInputStream(long offset, long length)
+				throws IOException {
+			try {
+				return file.getInputStream(offset, length);
+			} catch (FileNotFoundException e) {
+				Content c = storage.getContent(sha);
+				if (c == null)
+					throw new FileNotFoundException(Hex.encodeHexString(sha));
+				return c.getInputStream(offset, length);
+			}
+		}
+
+	}
+
+}
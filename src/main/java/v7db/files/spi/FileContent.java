@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Content stored in a local file (that must not change).
+ * <p>
+ * Larger ranges are read through a memory-mapped buffer, smaller ones with a
+ * normal stream. To send the data somewhere else without copying it through
+ * the Java heap, use {@link #transferTo(long, long, WritableByteChannel)}.
+ */
+
+public final class FileContent implements Content {
+
+	// mapping a file is only worth it for larger reads
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	private final File file;
+
+	private final long length;
+
+	public FileContent(File file) {
+		this.file = file;
+		this.length = file.length();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return getInputStream(0, length);
+	}
+
+	public InputStream getInputStream(long offset, long length)
+			throws IOException {
+		if (offset < 0 || length < 0 || offset + length > this.length)
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ ", length " + length + " is out of bounds");
+		if (length >= MAP_THRESHOLD && length <= Integer.MAX_VALUE) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				// the mapping stays valid after the file is closed
+				return new BufferContent(raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, offset, length))
+						.getInputStream();
+			} finally {
+				raf.close();
+			}
+		}
+		InputStream in = new FileInputStream(file);
+		IOUtils.skipFully(in, offset);
+		return new BoundedInputStream(in, length);
+	}
+
+	/**
+	 * writes a range of the content to the channel (using the operating
+	 * system's zero-copy transfer, if it has one)
+	 */
+	public void transferTo(long offset, long length, WritableByteChannel target)
+			throws IOException {
+		if (offset < 0 || length < 0 || offset + length > this.length)
+			throw new IndexOutOfBoundsException("offset " + offset
+					+ ", length " + length + " is out of bounds");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			while (length > 0) {
+				long sent = channel.transferTo(offset, length, target);
+				offset += sent;
+				length -= sent;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+import v7db.files.MapUtils;
+import v7db.files.ZipFile;
+
+/**
+ * ContentStorage implementation that uses files in a local directory.
+ * 
+ * <ul>
+ * <li>Every piece of content is stored (uncompressed, not chunked) in a file
+ * named by its hex-encoded SHA, in a subdirectory for the first two bytes (
+ * <code>ab/cd/abcdef...</code>), so that no directory gets too large.
+ * <li>Out-of-band content (such as a file in a zip file) is stored as the
+ * BSON-encoded StorageScheme document, with the suffix <code>.bson</code>.
+ * <li>Files are first written to a temporary directory, and then renamed into
+ * place, so that readers never see incomplete content.
+ * <li>Reads are served from the file (see {@link FileContent}).
+ * </ul>
+ * 
+ * Files are never changed after they have been written, so several
+ * processes can share the same directory.
+ */
+
+public class FileSystemContentStorage implements ContentStorage {
+
+	private final File root;
+
+	private final File tmp;
+
+	private final Map<String, StorageScheme> storageSchemes = new HashMap<String, StorageScheme>();
+
+	public FileSystemContentStorage(File root) throws IOException {
+		this.root = root;
+		this.tmp = new File(root, "tmp");
+		FileUtils.forceMkdir(tmp);
+		storageSchemes.put("cat", new ContentConcatenation());
+		storageSchemes.put("zip", new ZipFile.ContentFromZipFile());
+		storageSchemes.put("delta", new DeltaContent());
+		storageSchemes.put("gz", new GzippedContent());
+		storageSchemes.put("deflate", new DeflatedContent());
+		storageSchemes.put("lz", new LZContent());
+		storageSchemes.put("dict", new DictionaryDeflatedContent());
+	}
+
+	File getFile(byte[] sha) {
+		return getFile(Hex.encodeHexString(sha));
+	}
+
+	File getFile(String hex) {
+		return new File(new File(new File(root, hex.substring(0, 2)), hex
+				.substring(2, 4)), hex);
+	}
+
+	/**
+	 * @return the files for all the content that is stored in full (not as a
+	 *         storage scheme document)
+	 */
+	List<File> listContentFiles() {
+		List<File> result = new ArrayList<File>();
+		for (File a : listDirectories(root)) {
+			if (a.getName().length() != 2)
+				continue;
+			for (File b : listDirectories(a)) {
+				File[] files = b.listFiles();
+				if (files == null)
+					continue;
+				for (File f : files) {
+					if (f.isFile() && !f.getName().endsWith(".bson"))
+						result.add(f);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static List<File> listDirectories(File directory) {
+		File[] list = directory.listFiles();
+		if (list == null)
+			return Collections.emptyList();
+		List<File> result = new ArrayList<File>(list.length);
+		for (File f : list) {
+			if (f.isDirectory())
+				result.add(f);
+		}
+		return result;
+	}
+
+	private File getSchemeFile(byte[] sha) {
+		File file = getFile(sha);
+		return new File(file.getParentFile(), file.getName() + ".bson");
+	}
+
+	/**
+	 * moves the temporary file into place (unless the content is already
+	 * there)
+	 */
+	private void commit(File temp, File target) throws IOException {
+		if (target.exists()) {
+			FileUtils.deleteQuietly(temp);
+			return;
+		}
+		FileUtils.forceMkdir(target.getParentFile());
+		if (!temp.renameTo(target)) {
+			FileUtils.deleteQuietly(temp);
+			// someone else may have just stored the same content
+			if (!target.exists())
+				throw new IOException("failed to store " + target);
+		}
+	}
+
+	public ContentSHA storeContent(InputStream data) throws IOException {
+		File temp = File.createTempFile("content", null, tmp);
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA");
+			long length = 0;
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = data.read(buffer)) != -1) {
+					sha.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+					length += read;
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			ContentSHA result = ContentSHA.forDigestAndLength(sha.digest(),
+					length);
+			commit(temp, getFile(result.getSHA()));
+			return result;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} finally {
+			FileUtils.deleteQuietly(temp);
+			IOUtils.closeQuietly(data);
+		}
+	}
+
+	/**
+	 * the hints are ignored
+	 */
+	public ContentSHA storeContent(InputStream data, ContentPointer similar,
+			String contentType) throws IOException {
+		return storeContent(data);
+	}
+
+	public ContentPointer storeContent(Map<String, Object> storageScheme)
+			throws IOException {
+		StorageScheme s = storageSchemes.get(storageScheme.get("store"));
+		if (s == null)
+			throw new UnsupportedOperationException(storageScheme.toString());
+
+		long length = MapUtils.getRequiredLong(storageScheme, "length");
+		InputStream in = s.getContent(this, storageScheme).getInputStream();
+		byte[] sha;
+		try {
+			sha = DigestUtils.sha(in);
+		} finally {
+			in.close();
+		}
+		if (!getFile(sha).exists()) {
+			File temp = File.createTempFile("scheme", null, tmp);
+			try {
+				BSONObject doc = new BasicBSONObject();
+				doc.putAll(storageScheme);
+				FileUtils.writeByteArrayToFile(temp, BSON.encode(doc));
+				commit(temp, getSchemeFile(sha));
+			} finally {
+				FileUtils.deleteQuietly(temp);
+			}
+		}
+		return new StoredContent(sha, length);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Content getContent(byte[] sha) throws IOException {
+		File file = getFile(sha);
+		if (file.exists())
+			return new FileContent(file);
+		File scheme = getSchemeFile(sha);
+		if (scheme.exists())
+			return getContent(BSON.decode(FileUtils.readFileToByteArray(scheme))
+					.toMap());
+		return null;
+	}
+
+	public Content getContent(ContentPointer pointer) throws IOException {
+		if (pointer == null)
+			return null;
+		if (pointer instanceof InlineContent)
+			return (Content) pointer;
+		byte[] sha;
+		long offset = 0;
+		if (pointer instanceof ContentSHA) {
+			sha = ((ContentSHA) pointer).getSHA();
+		} else if (pointer instanceof StoredContent) {
+			sha = ((StoredContent) pointer).getBaseSHA();
+			offset = ((StoredContent) pointer).getOffset();
+		} else {
+			throw new IllegalArgumentException(pointer.getClass().toString());
+		}
+		Content base = getContent(sha);
+		if (base == null)
+			throw new IllegalArgumentException("base SHA not found: "
+					+ Hex.encodeHexString(sha));
+		if (offset != 0 || pointer.getLength() != base.getLength())
+			return new OffsetAndLength(base, offset, pointer.getLength());
+		return base;
+	}
+
+	/**
+	 * there are no round-trips to save, so this is the same as one by one
+	 */
+	public List<Content> getContents(List<? extends ContentPointer> pointers)
+			throws IOException {
+		List<Content> result = new ArrayList<Content>(pointers.size());
+		for (ContentPointer p : pointers) {
+			try {
+				result.add(getContent(p));
+			} catch (IllegalArgumentException e) {
+				// not stored
+				result.add(null);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Supported formats are the same as for
+	 * {@link v7db.files.mongodb.MongoContentStorage#getContent(Map)}
+	 */
+	public Content getContent(Map<String, Object> data) throws IOException {
+		if (data == null)
+			return null;
+		String store = MapUtils.getString(data, "store");
+		if (store == null || "raw".equals(store)) {
+			if (data.containsKey("in"))
+				return InlineContent.deserialize(data);
+			if (data.containsKey("sha"))
+				return getContent(StoredContent.deserialize(data));
+			throw new UnsupportedOperationException(data.toString());
+		}
+
+		StorageScheme s = storageSchemes.get(store);
+		if (s == null)
+			throw new UnsupportedOperationException(store);
+
+		return s.getContent(this, data);
+	}
+
+}
@@ -18,24 +18,99 @@ package v7db.files.spi;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.io.IOUtils;
+import v7db.files.Compression;
+import v7db.files.MapUtils;
 
-public class GzippedContent implements StorageScheme {
+/**
+ * <pre>
+ * store:  'gz'
+ * zin:    [gzipped data]
+ * length: [the uncompressed length, optional]
+ * </pre>
+ * 
+ * The data is inflated as it is being read, never completely in memory. If
+ * the length is not given, it is taken from the gzip trailer.
+ * 
+ */
+
+public class GzippedContent implements CompressionCodec {
 
 	public Content getContent(ContentStorage storage, Map<String, Object> data)
 			throws IOException {
 		byte[] bytes = (byte[]) data.get("zin");
-		GZIPInputStream gz = new GZIPInputStream(
-				new ByteArrayInputStream(bytes));
-		byte[] unzipped = IOUtils.toByteArray(gz);
-		return new InlineContent(unzipped);
+		Long length = MapUtils.getLong(data, "length");
+		if (length == null)
+			length = uncompressedLength(bytes);
+		return new Inflater(bytes, length);
+	}
+
+	/**
+	 * @return the ISIZE field from the gzip trailer (the uncompressed length
+	 *         modulo 2^32, which is plenty for a chunk)
+	 */
+	private static long uncompressedLength(byte[] gzipped) throws IOException {
+		int n = gzipped.length;
+		if (n < 18)
+			throw new IOException("not in gzip format");
+		return (gzipped[n - 4] & 0xFFL) | (gzipped[n - 3] & 0xFFL) << 8
+				| (gzipped[n - 2] & 0xFFL) << 16
+				| (gzipped[n - 1] & 0xFFL) << 24;
+	}
+
+	public Map<String, Object> getFields() {
+		return null;
 	}
 
 	public String getId() {
 		return "gz";
 	}
 
+	/**
+	 * The gzipped form of content that is stored gzipped (in one piece, or in
+	 * gzipped chunks, which are then just concatenated, as gzip allows for
+	 * multiple "members" in a single stream), so that it can be sent to
+	 * clients that accept gzip without inflating it first.
+	 * 
+	 * @param maxChunks
+	 *            how many chunks to look at (they need to be retrieved to find
+	 *            out if they are all gzipped)
+	 * @return null, if the content is not (completely) stored gzipped
+	 */
+	public static Content getGzippedContent(Content content, int maxChunks)
+			throws IOException {
+		if (content instanceof Inflater)
+			return new InlineContent(((Inflater) content).compressed);
+		if (!(content instanceof ChunkedContent))
+			return null;
+		Content[] chunks = ((ChunkedContent) content).loadChunks(maxChunks);
+		if (chunks == null || chunks.length == 0)
+			return null;
+		for (int i = 0; i < chunks.length; i++) {
+			if (!(chunks[i] instanceof Inflater))
+				return null;
+			chunks[i] = new InlineContent(((Inflater) chunks[i]).compressed);
+		}
+		return new ChunkedContent(chunks);
+	}
+
+	public byte[] compress(byte[] data, int offset, int length) {
+		return Compression.gzip(data, offset, length);
+	}
+
+	private static final class Inflater extends DecodedContent {
+
+		Inflater(byte[] gzipped, long length) {
+			super(gzipped, length);
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return new GZIPInputStream(new ByteArrayInputStream(compressed));
+		}
+
+	}
+
 }
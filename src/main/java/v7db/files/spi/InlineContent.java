@@ -120,28 +120,62 @@ public final class InlineContent implements Content, ContentPointer {
 
 		private long remaining;
 
-		private int pos = -1;
+		// index of the next byte in inlineData
+		private int pos;
 
 		RepeatedInputStream() {
-			this.remaining = length;
+			this(0, length);
 		}
 
 		RepeatedInputStream(int offset, long length) {
-			pos = offset - 1;
+			pos = offset % inlineData.length;
 			remaining = length;
 		}
 
 		@Override
 		public int read() throws IOException {
-			if (remaining > 0) {
-				remaining--;
-				pos++;
-				if (pos >= inlineData.length)
-					pos = 0;
+			if (remaining <= 0)
+				return -1;
+			remaining--;
+			int b = inlineData[pos++] & 0xFF;
+			if (pos == inlineData.length)
+				pos = 0;
+			return b;
+		}
 
-				return inlineData[pos];
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining <= 0)
+				return -1;
+			int n = (int) Math.min(len, remaining);
+			int copied = 0;
+			while (copied < n) {
+				int c = Math.min(n - copied, inlineData.length - pos);
+				System.arraycopy(inlineData, pos, b, off + copied, c);
+				copied += c;
+				pos += c;
+				if (pos == inlineData.length)
+					pos = 0;
 			}
-			return -1;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			n = Math.min(n, remaining);
+			if (n <= 0)
+				return 0;
+			pos = (int) ((pos + n) % inlineData.length);
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
 		}
 
 	}
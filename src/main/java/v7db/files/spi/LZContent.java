@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import v7db.files.LZCompression;
+import v7db.files.MapUtils;
+
+/**
+ * <pre>
+ * store:  'lz'
+ * zin:    [data compressed with {@link LZCompression}]
+ * length: [the uncompressed length]
+ * </pre>
+ * 
+ * Much faster than deflate (both ways), but compresses less.
+ * 
+ */
+
+public class LZContent implements CompressionCodec {
+
+	public Content getContent(ContentStorage storage, Map<String, Object> data)
+			throws IOException {
+		MapUtils.supportedAndRequiredFields(data, "store", "zin", "length");
+		final long length = MapUtils.getRequiredLong(data, "length");
+		return new DecodedContent(MapUtils.getRequiredBytes(data, "zin"),
+				length) {
+
+			public InputStream getInputStream() throws IOException {
+				return new ByteArrayInputStream(LZCompression.decompress(
+						compressed, (int) length));
+			}
+		};
+	}
+
+	public byte[] compress(byte[] data, int offset, int length) {
+		return LZCompression.compress(data, offset, length);
+	}
+
+	public Map<String, Object> getFields() {
+		return null;
+	}
+
+	public String getId() {
+		return "lz";
+	}
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content that is only loaded from the ContentStorage when it is being read
+ * (every time it is being read).
+ * 
+ */
+
+final class LazyContent implements Content {
+
+	private final ContentStorage storage;
+
+	private final StoredContent pointer;
+
+	LazyContent(ContentStorage storage, StoredContent pointer) {
+		this.storage = storage;
+		this.pointer = pointer;
+	}
+
+	ContentStorage getStorage() {
+		return storage;
+	}
+
+	StoredContent getPointer() {
+		return pointer;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return storage.getContent(pointer).getInputStream();
+	}
+
+	public InputStream getInputStream(long offset, long length)
+			throws IOException {
+		return storage.getContent(pointer).getInputStream(offset, length);
+	}
+
+	public long getLength() {
+		return pointer.getLength();
+	}
+
+}
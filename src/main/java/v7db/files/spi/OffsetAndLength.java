@@ -59,6 +59,7 @@ public final class OffsetAndLength implements Content {
 
 		private final long oLength;
 
+		// position of the next byte in the original content
 		private long ooff;
 
 		RepeatedInputStream(long offset, long length) {
@@ -67,26 +68,93 @@ public final class OffsetAndLength implements Content {
 			ooff = offset % oLength;
 		}
 
+		/**
+		 * @return the stream to read from, positioned at ooff, null at the
+		 *         end
+		 */
+		private InputStream chunk() throws IOException {
+			if (remaining <= 0)
+				return null;
+			if (ooff == oLength)
+				ooff = 0;
+			if (chunk == null)
+				chunk = original.getInputStream(ooff, oLength - ooff);
+			return chunk;
+		}
+
+		private void closeChunk() throws IOException {
+			if (chunk != null) {
+				chunk.close();
+				chunk = null;
+			}
+		}
+
 		@Override
 		public int read() throws IOException {
-			if (remaining > 0) {
-				if (chunk == null) {
-					chunk = original.getInputStream(ooff, oLength - ooff);
-					ooff = 0;
+			InputStream in;
+			while ((in = chunk()) != null) {
+				int x = in.read();
+				if (x > -1) {
+					remaining--;
+					ooff++;
+					return x;
 				}
+				closeChunk();
+				ooff = 0;
+			}
+			return -1;
+		}
 
-				int x = chunk.read();
-				if (x == -1) {
-					chunk.close();
-					chunk = null;
-					return read();
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			InputStream in;
+			while ((in = chunk()) != null) {
+				int r = in.read(b, off, (int) Math.min(len, remaining));
+				if (r > 0) {
+					remaining -= r;
+					ooff += r;
+					return r;
 				}
-				remaining--;
-				return x;
+				closeChunk();
+				ooff = 0;
 			}
 			return -1;
 		}
 
+		@Override
+		public long skip(long n) throws IOException {
+			n = Math.min(n, remaining);
+			if (n <= 0)
+				return 0;
+			if (chunk != null && ooff + n < oLength) {
+				long s = chunk.skip(n);
+				remaining -= s;
+				ooff += s;
+				return s;
+			}
+			// no need to read through whole repetitions
+			closeChunk();
+			ooff = (ooff + n) % oLength;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (chunk == null)
+				return 0;
+			return (int) Math.min(chunk.available(), remaining);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeChunk();
+			remaining = 0;
+			super.close();
+		}
+
 	}
 
 	public long getLength() {
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Settings for reading ahead when content made of many chunks (that are
+ * stored separately) is being read sequentially: The next few chunks are then
+ * retrieved together (see {@link ContentStorage#getContents(java.util.List)})
+ * instead of one by one, when they are needed.
+ * <p>
+ * Every stream holds at most the given number of chunks, and all streams that
+ * use the same ReadAhead together at most the given number of bytes. The
+ * bytes held by a stream that is neither closed nor read to the end are given
+ * back when the stream has been garbage-collected.
+ * 
+ */
+
+public final class ReadAhead {
+
+	private final int chunks;
+
+	private final long maxBytes;
+
+	private long usedBytes;
+
+	// the reservations of the streams that are still around (or have not yet
+	// been reclaimed)
+	private final Set<Reservation> reservations = new HashSet<Reservation>();
+
+	private final ReferenceQueue<Object> abandoned = new ReferenceQueue<Object>();
+
+	/**
+	 * @param chunks
+	 *            how many chunks to retrieve at once
+	 * @param maxBytes
+	 *            how much (uncompressed) data can be held by all streams
+	 *            together
+	 */
+	public ReadAhead(int chunks, long maxBytes) {
+		if (chunks < 2)
+			throw new IllegalArgumentException(
+					"need to read ahead at least 2 chunks, not " + chunks);
+		this.chunks = chunks;
+		this.maxBytes = maxBytes;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * the bytes held by a single stream, which are reclaimed when the stream
+	 * is garbage-collected
+	 */
+	static final class Reservation extends WeakReference<Object> {
+
+		private long bytes;
+
+		private Reservation(Object stream, ReferenceQueue<Object> queue) {
+			super(stream, queue);
+		}
+
+	}
+
+	synchronized Reservation reservation(Object stream) {
+		reclaim();
+		Reservation r = new Reservation(stream, abandoned);
+		reservations.add(r);
+		return r;
+	}
+
+	synchronized boolean reserve(Reservation r, long bytes) {
+		reclaim();
+		if (usedBytes + bytes > maxBytes)
+			return false;
+		usedBytes += bytes;
+		r.bytes += bytes;
+		return true;
+	}
+
+	synchronized void release(Reservation r, long bytes) {
+		usedBytes -= bytes;
+		r.bytes -= bytes;
+	}
+
+	/**
+	 * gives back everything the stream still holds, and stops tracking it
+	 */
+	synchronized void close(Reservation r) {
+		if (reservations.remove(r)) {
+			usedBytes -= r.bytes;
+			r.bytes = 0;
+			r.clear();
+		}
+	}
+
+	synchronized long getUsedBytes() {
+		reclaim();
+		return usedBytes;
+	}
+
+	private void reclaim() {
+		Object r;
+		while ((r = abandoned.poll()) != null)
+			close((Reservation) r);
+	}
+
+}
@@ -17,22 +17,106 @@
 package v7db.files.spi;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
+import v7db.files.MapUtils;
+
+/**
+ * Points to stored content by its SHA, or to a segment of it.
+ * 
+ * <pre>
+ * sha:    [SHA of the stored content]
+ * off:    [where the segment starts, omitted if 0]
+ * length: [the length of the segment]
+ * hash:   'tree' (if the SHA is a tree hash, see {@link ContentSHA})
+ * </pre>
+ * 
+ * Content that has been moved into a pack (together with other small pieces
+ * of content, see {@link v7db.files.mongodb.ContentPacker}) keeps its own
+ * SHA, and the segment of the pack is stored next to it:
+ * 
+ * <pre>
+ * sha:    [SHA of the content itself]
+ * length: [its length]
+ * pack:   { sha: [SHA of the pack], off: [where the content starts] }
+ * </pre>
+ * 
+ * The base SHA and the offset are those of the pack then.
+ */
+
 public final class StoredContent implements ContentPointer {
 
 	private final byte[] sha;
 
+	private final long offset;
+
 	private final long length;
 
+	private final boolean treeHash;
+
+	// the SHA of the content itself, if it is in a pack (sha is the pack)
+	private final byte[] packedSHA;
+
 	public StoredContent(byte[] sha, long length) {
+		this(sha, 0, length);
+	}
+
+	public StoredContent(byte[] sha, long offset, long length) {
+		this(sha, offset, length, false);
+	}
+
+	/**
+	 * @param treeHash
+	 *            if the SHA is a tree hash (and not the SHA-1 of the data)
+	 */
+	public StoredContent(byte[] sha, long offset, long length,
+			boolean treeHash) {
+		this(sha, offset, length, treeHash, null);
+	}
+
+	private StoredContent(byte[] sha, long offset, long length,
+			boolean treeHash, byte[] packedSHA) {
+		if (offset < 0)
+			throw new IllegalArgumentException("negative offset " + offset);
+		if (treeHash && !ContentSHA.isTreeHashId(sha))
+			throw new IllegalArgumentException("not a tree hash: "
+					+ Hex.encodeHexString(sha));
 		this.sha = sha.clone();
+		this.offset = offset;
 		this.length = length;
+		this.treeHash = treeHash;
+		this.packedSHA = packedSHA == null ? null : packedSHA.clone();
+	}
+
+	/**
+	 * @param sha
+	 *            the SHA of the content itself
+	 * @param packSHA
+	 *            the SHA of the pack that contains it
+	 * @param offset
+	 *            where it starts in the pack
+	 */
+	public static StoredContent inPack(byte[] sha, long length, byte[] packSHA,
+			long offset) {
+		return new StoredContent(packSHA, offset, length, false, sha);
+	}
+
+	public static StoredContent deserialize(Map<String, Object> data) {
+		byte[] sha = (byte[]) data.get("sha");
+		long length = MapUtils.getRequiredLong(data, "length");
+		@SuppressWarnings("unchecked")
+		Map<String, Object> pack = (Map<String, Object>) data.get("pack");
+		if (pack != null)
+			return inPack(sha, length, (byte[]) pack.get("sha"), MapUtils
+					.getRequiredLong(pack, "off"));
+		Long offset = MapUtils.getLong(data, "off");
+		return new StoredContent(sha, offset == null ? 0 : offset, length,
+				ContentSHA.TREE_HASH.equals(data.get("hash")));
 	}
 
 	public byte[] getBaseSHA() {
@@ -44,13 +128,49 @@ public final class StoredContent implements ContentPointer {
 	}
 
 	public long getOffset() {
-		return 0;
+		return offset;
+	}
+
+	public boolean isTreeHash() {
+		return treeHash;
+	}
+
+	/**
+	 * @return if this points to content in a pack
+	 */
+	public boolean isPacked() {
+		return packedSHA != null;
+	}
+
+	/**
+	 * @return the SHA of the content itself (not of the pack it is in), or
+	 *         null if it is only known as a segment of other content
+	 */
+	public byte[] getContentSHA() {
+		if (packedSHA != null)
+			return packedSHA.clone();
+		if (offset == 0)
+			return getBaseSHA();
+		return null;
 	}
 
 	public Map<String, Object> serialize() {
 		Map<String, Object> result = new HashMap<String, Object>();
+		if (packedSHA != null) {
+			Map<String, Object> pack = new HashMap<String, Object>();
+			pack.put("sha", getBaseSHA());
+			pack.put("off", offset);
+			result.put("sha", packedSHA.clone());
+			result.put("length", length);
+			result.put("pack", pack);
+			return result;
+		}
 		result.put("sha", getBaseSHA());
+		if (offset != 0)
+			result.put("off", offset);
 		result.put("length", length);
+		if (treeHash)
+			result.put("hash", ContentSHA.TREE_HASH);
 		return result;
 	}
 
@@ -59,11 +179,22 @@ public final class StoredContent implements ContentPointer {
 			return false;
 		if (otherContent instanceof StoredContent) {
 			StoredContent sc = (StoredContent) otherContent;
-			return getOffset() == sc.getOffset() && Arrays.equals(sha, sc.sha);
+			// (the same content, whether it is in a pack or not)
+			if (isPacked() || sc.isPacked()) {
+				byte[] a = getContentSHA(), b = sc.getContentSHA();
+				return a != null && b != null && treeHash == sc.treeHash
+						&& Arrays.equals(a, b);
+			}
+			return getOffset() == sc.getOffset() && treeHash == sc.treeHash
+					&& Arrays.equals(sha, sc.sha);
 		}
-		if (otherContent instanceof InlineContent)
+		if (otherContent instanceof ContentSHA)
+			return otherContent.contentEquals(this);
+		byte[] contentSHA = getContentSHA();
+		if (otherContent instanceof InlineContent && contentSHA != null
+				&& !treeHash)
 			try {
-				return Arrays.equals(sha, DigestUtils
+				return Arrays.equals(contentSHA, DigestUtils
 						.sha(((InlineContent) otherContent).getInputStream()));
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -77,23 +208,7 @@ public final class StoredContent implements ContentPointer {
 		if (length <= loadAndCacheUntilLength)
 			return storage.getContent(this);
 
-		return new Content() {
-
-			public InputStream getInputStream() throws IOException {
-				return storage.getContent(StoredContent.this).getInputStream();
-			}
-
-			public InputStream getInputStream(long offset, long length)
-					throws IOException {
-				return storage.getContent(StoredContent.this).getInputStream(
-						offset, length);
-			}
-
-			public long getLength() {
-				return length;
-			}
-
-		};
+		return new LazyContent(storage, this);
 
 	}
 }
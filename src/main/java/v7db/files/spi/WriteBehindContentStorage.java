@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * ContentStorage decorator that stores new content in a local journal
+ * directory first, and copies it to the decorated storage (such as MongoDB)
+ * in the background. This way, an upload only has to wait for the local
+ * disk, not for the (replicated) database.
+ * <p>
+ * The content is hashed while it is written to the journal (which is laid
+ * out like a {@link FileSystemContentStorage}), and the file is synced
+ * before its SHA is returned. Until it has been copied, the content is read
+ * from the journal. If the process dies before that, the content is copied
+ * when the journal is opened again.
+ * <p>
+ * The content type and "similar content" hints are passed on to the
+ * decorated storage, but they are not part of the journal, so they are lost
+ * for content that is copied after a restart.
+ * <p>
+ * Content written through this storage is only as durable as the local disk
+ * until it has been copied, so {@link #flush()} should be called before the
+ * journal directory is given up.
+ */
+
+public class WriteBehindContentStorage implements ContentStorage {
+
+	private final ContentStorage storage;
+
+	private final FileSystemContentStorage journal;
+
+	private final ExecutorService executor;
+
+	// hex SHA -> the copy in progress
+	private final ConcurrentMap<String, Future<?>> pending = new ConcurrentHashMap<String, Future<?>>();
+
+	private volatile IOException lastError;
+
+	/**
+	 * Opens the journal directory, and starts to copy what is left in it.
+	 * 
+	 * @param executor
+	 *            where the content is copied to the decorated storage
+	 */
+	public WriteBehindContentStorage(ContentStorage storage, File directory,
+			ExecutorService executor) throws IOException {
+		this.storage = storage;
+		this.journal = new FileSystemContentStorage(directory);
+		this.executor = executor;
+		FileUtils.cleanDirectory(new File(directory, "tmp"));
+		for (File f : journal.listContentFiles()) {
+			copy(f.getName(), null, null);
+		}
+	}
+
+	public ContentSHA storeContent(InputStream data) throws IOException {
+		return storeContent(data, null, null);
+	}
+
+	public ContentSHA storeContent(InputStream data, ContentPointer similar,
+			String contentType) throws IOException {
+		ContentSHA sha = journal.storeContent(data);
+		copy(sha.getDigest(), similar, contentType);
+		return sha;
+	}
+
+	/**
+	 * the storage scheme may refer to content that is still in the journal, so
+	 * everything is copied first
+	 */
+	public ContentPointer storeContent(Map<String, Object> storageScheme)
+			throws IOException {
+		flush();
+		return storage.storeContent(storageScheme);
+	}
+
+	/**
+	 * starts to copy the content from the journal, unless that is already
+	 * happening
+	 * 
+	 * @throws IOException
+	 *             if the executor does not accept the copy (the content
+	 *             stays in the journal)
+	 */
+	private void copy(final String digest, final ContentPointer similar,
+			final String contentType) throws IOException {
+		final File file = journal.getFile(digest);
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() throws IOException {
+				try {
+					ContentSHA sha = storage.storeContent(new FileInputStream(
+							file), similar, contentType);
+					if (!digest.equals(sha.getDigest()))
+						throw new IOException("journal file " + file
+								+ " was stored as " + sha.getDigest());
+					FileUtils.deleteQuietly(file);
+					return null;
+				} catch (IOException e) {
+					lastError = e;
+					throw e;
+				} finally {
+					pending.remove(digest);
+				}
+			}
+		});
+		// registered before it runs, so that it cannot remove itself too
+		// early
+		if (pending.putIfAbsent(digest, task) == null) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				pending.remove(digest, task);
+				IOException error = new IOException("could not copy journal file "
+						+ file, e);
+				lastError = error;
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * waits until everything in the journal has been copied to the decorated
+	 * storage, and retries what has failed before
+	 * 
+	 * @throws IOException
+	 *             if something could not be copied (it stays in the journal)
+	 */
+	public void flush() throws IOException {
+		for (File f : journal.listContentFiles()) {
+			copy(f.getName(), null, null);
+		}
+		IOException error = null;
+		for (Future<?> f : new ArrayList<Future<?>>(pending.values())) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					error = (IOException) cause;
+				else if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				else
+					throw new IOException(cause);
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * @return how many pieces of content are being copied right now
+	 */
+	public int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the reason why the last copy failed, null if none failed
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return the content from the journal, or null if it is not (or no
+	 *         longer) there
+	 */
+	private Content getJournalContent(byte[] sha) {
+		File file = journal.getFile(sha);
+		FileContent content = new FileContent(file);
+		// (the length is 0 if the file does not exist)
+		if (content.getLength() == 0 && !file.isFile())
+			return null;
+		return new JournalContent(sha, content);
+	}
+
+	public Content getContent(byte[] sha) throws IOException {
+		Content c = getJournalContent(sha);
+		if (c != null)
+			return c;
+		return storage.getContent(sha);
+	}
+
+	public Content getContent(ContentPointer pointer) throws IOException {
+		if (pointer == null)
+			return null;
+		if (pointer instanceof InlineContent)
+			return (Content) pointer;
+		byte[] sha = sha(pointer);
+		Content c = sha == null ? null : getJournalContent(sha);
+		if (c == null)
+			return storage.getContent(pointer);
+		return withLength(c, pointer);
+	}
+
+	public List<Content> getContents(List<? extends ContentPointer> pointers)
+			throws IOException {
+		List<Content> result = new ArrayList<Content>(pointers.size());
+		List<ContentPointer> missing = new ArrayList<ContentPointer>();
+		for (ContentPointer p : pointers) {
+			Content c = null;
+			if (p instanceof InlineContent)
+				c = (Content) p;
+			else if (sha(p) != null)
+				c = getJournalContent(sha(p));
+			if (c == null && p != null)
+				missing.add(p);
+			result.add(c == null ? null : withLength(c, p));
+		}
+		if (missing.isEmpty())
+			return result;
+
+		Iterator<Content> loaded = storage.getContents(missing).iterator();
+		for (int i = 0; i < result.size(); i++) {
+			if (result.get(i) == null && pointers.get(i) != null)
+				result.set(i, loaded.next());
+		}
+		return result;
+	}
+
+	public Content getContent(Map<String, Object> storageScheme)
+			throws IOException {
+		return storage.getContent(storageScheme);
+	}
+
+	private static byte[] sha(ContentPointer pointer) {
+		if (pointer instanceof StoredContent)
+			return ((StoredContent) pointer).getBaseSHA();
+		if (pointer instanceof ContentSHA)
+			return ((ContentSHA) pointer).getSHA();
+		return null;
+	}
+
+	private static Content withLength(Content content, ContentPointer pointer) {
+		long offset = pointer instanceof StoredContent ? ((StoredContent) pointer)
+				.getOffset()
+				: 0;
+		if (offset != 0 || pointer.getLength() != content.getLength())
+			return new OffsetAndLength(content, offset, pointer.getLength());
+		return content;
+	}
+
+	/**
+	 * content from the journal, which is read from the decorated storage
+	 * instead if the journal file has been removed in the meantime (because
+	 * it has been copied)
+	 */
+	private final class JournalContent implements Content {
+
+		private final byte[] sha;
+
+		private final FileContent file;
+
+		private JournalContent(byte[] sha, FileContent file) {
+			this.sha = sha;
+			this.file = file;
+		}
+
+		public long getLength() {
+			return file.getLength();
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return getInputStream(0, getLength());
+		}
+
+		public InputStream getInputStream(long offset, long length)
+				throws IOException {
+			try {
+				return file.getInputStream(offset, length);
+			} catch (FileNotFoundException e) {
+				Content c = storage.getContent(sha);
+				if (c == null)
+					throw new FileNotFoundException(Hex.encodeHexString(sha));
+				return c.getInputStream(offset, length);
+			}
+		}
+
+	}
+
+}
@@ -21,10 +21,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.zip.DataFormatException;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+
 public class CompressionTest extends TestCase {
 
 	public void testDeflateBytes() throws DataFormatException {
@@ -65,4 +69,32 @@ public class CompressionTest extends TestCase {
 		}
 	}
 
+	public void testIsProbablyCompressible() {
+		byte[] random = new byte[10000];
+		new Random(12345).nextBytes(random);
+		assertFalse(Compression.isProbablyCompressible(random, 0,
+				random.length));
+		// too short to tell
+		assertTrue(Compression.isProbablyCompressible(random, 0, 100));
+
+		byte[] text = StringUtils.repeat("some text ", 1000).getBytes();
+		assertTrue(Compression.isProbablyCompressible(text, 0, text.length));
+
+		// random bytes, but repeated
+		byte[] repeated = ArrayUtils.addAll(ArrayUtils.subarray(random, 0,
+				1000), ArrayUtils.subarray(random, 0, 1000));
+		repeated = ArrayUtils.addAll(repeated, repeated);
+		assertTrue(Compression.isProbablyCompressible(repeated, 0,
+				repeated.length));
+	}
+
+	public void testIsCompressedContentType() {
+		assertTrue(Compression.isCompressedContentType("image/jpeg"));
+		assertTrue(Compression.isCompressedContentType("video/mp4"));
+		assertTrue(Compression
+				.isCompressedContentType("Application/Zip; charset=binary"));
+		assertFalse(Compression.isCompressedContentType("text/plain"));
+		assertFalse(Compression.isCompressedContentType(null));
+	}
+
 }
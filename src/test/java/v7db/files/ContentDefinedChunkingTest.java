@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.ArrayUtils;
+
+public class ContentDefinedChunkingTest extends TestCase {
+
+	private final ContentDefinedChunking cdc = new ContentDefinedChunking(
+			2 * 1024, 8 * 1024, 32 * 1024);
+
+	private Set<String> chunk(byte[] data) throws IOException {
+		Set<String> chunks = new HashSet<String>();
+		ContentDefinedChunking.Chunker chunker = cdc
+				.chunker(new ByteArrayInputStream(data));
+		ByteArrayOutputStream check = new ByteArrayOutputStream();
+		byte[] buffer = new byte[cdc.getMaxSize()];
+		int read;
+		while (0 < (read = chunker.nextChunk(buffer))) {
+			assertTrue(read <= cdc.getMaxSize());
+			if (!chunker.isAtEnd())
+				assertTrue(read >= cdc.getMinSize());
+			check.write(buffer, 0, read);
+			chunks.add(DigestUtils.shaHex(ArrayUtils.subarray(buffer, 0, read)));
+		}
+		assertTrue(chunker.isAtEnd());
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(check
+				.toByteArray()));
+		return chunks;
+	}
+
+	public void testChunkSizes() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(12345).nextBytes(data);
+		Set<String> chunks = chunk(data);
+		assertTrue(chunks.size() > data.length / cdc.getMaxSize());
+		assertTrue(chunks.size() < data.length / cdc.getMinSize());
+	}
+
+	public void testInsertedByteOnlyChangesNearbyChunks() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(12345).nextBytes(data);
+		byte[] edited = ArrayUtils.add(data, 1000, (byte) 42);
+
+		Set<String> original = chunk(data);
+		Set<String> changed = chunk(edited);
+		int shared = 0;
+		for (String c : changed) {
+			if (original.contains(c))
+				shared++;
+		}
+		assertTrue("only " + shared + " of " + changed.size()
+				+ " chunks are unchanged", shared >= changed.size() - 2);
+	}
+
+	public void testEmptyAndSmallData() throws IOException {
+		assertTrue(chunk(ArrayUtils.EMPTY_BYTE_ARRAY).isEmpty());
+		assertEquals(1, chunk("abc".getBytes()).size());
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
+
+import v7db.files.mongodb.MongoContentStorage;
+import v7db.files.spi.Content;
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.DeltaContent;
+
+public class DeltaTest extends MockMongoTestCaseSupport {
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private Content applyDelta(ContentSHA base, byte[] delta, long length)
+			throws IOException {
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("store", "delta");
+		data.put("base", base.serialize());
+		data.put("delta", delta);
+		data.put("length", length);
+		return new DeltaContent().getContent(storage, data);
+	}
+
+	public void testEncodeAndApply() throws IOException {
+		byte[] base = randomBytes(100000, 1);
+		byte[] target = ArrayUtils.addAll(ArrayUtils.subarray(base, 0, 50000),
+				"some new stuff in the middle".getBytes());
+		target = ArrayUtils.addAll(target, ArrayUtils.subarray(base, 50100,
+				100000));
+
+		byte[] delta = Delta.encode(base, target);
+		assertTrue("delta is too big: " + delta.length, delta.length < 100);
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentSHA b = storage.storeContent(new ByteArrayInputStream(base));
+		Content c = applyDelta(b, delta, target.length);
+		assertEquals(target.length, c.getLength());
+		assertEquals(DigestUtils.shaHex(target), DigestUtils.shaHex(c
+				.getInputStream()));
+		assertEquals(DigestUtils.shaHex(ArrayUtils.subarray(target, 49990,
+				50050)), DigestUtils.shaHex(c.getInputStream(49990, 60)));
+	}
+
+	public void testUnrelatedContent() throws IOException {
+		byte[] base = randomBytes(10000, 1);
+		byte[] target = randomBytes(10000, 2);
+		byte[] delta = Delta.encode(base, target);
+		assertTrue(delta.length > target.length);
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentSHA b = storage.storeContent(new ByteArrayInputStream(base));
+		assertEquals(DigestUtils.shaHex(target), DigestUtils
+				.shaHex(applyDelta(b, delta, target.length).getInputStream()));
+	}
+
+	public void testTruncatedDelta() throws IOException {
+		byte[] base = randomBytes(10000, 1);
+		byte[] target = randomBytes(10000, 2);
+		byte[] delta = Delta.encode(base, target);
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentSHA b = storage.storeContent(new ByteArrayInputStream(base));
+		try {
+			applyDelta(b, ArrayUtils.subarray(delta, 0, delta.length - 100),
+					target.length);
+			fail("truncated delta was accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testShortContent() throws IOException {
+		byte[] base = "abc".getBytes();
+		byte[] target = "abcd".getBytes();
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentSHA b = storage.storeContent(new ByteArrayInputStream(base));
+		assertEquals("abcd", IOUtils.toString(applyDelta(b,
+				Delta.encode(base, target), 4).getInputStream()));
+		assertEquals("", IOUtils.toString(applyDelta(b,
+				Delta.encode(base, new byte[0]), 0).getInputStream()));
+	}
+
+	public void testSketch() {
+		byte[] a = randomBytes(100000, 1);
+		byte[] b = a.clone();
+		b[5000]++;
+		b[60000]++;
+		byte[] c = randomBytes(100000, 2);
+
+		long[] sa = Delta.sketch(a, 0, a.length);
+		long[] sb = Delta.sketch(b, 0, b.length);
+		long[] sc = Delta.sketch(c, 0, c.length);
+		int similar = 0, different = 0;
+		for (int i = 0; i < sa.length; i++) {
+			if (sa[i] == sb[i])
+				similar++;
+			if (sa[i] == sc[i])
+				different++;
+		}
+		assertTrue(similar > sa.length / 2);
+		assertEquals(0, different);
+		assertEquals(0, Delta.sketch(a, 0, 10).length);
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2011-2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.StringUtils;
+
+public class LZCompressionTest extends TestCase {
+
+	public void testRoundTrip() throws IOException {
+		byte[] data = StringUtils.repeat("some text, some more text. ", 100)
+				.getBytes();
+		byte[] compressed = LZCompression.compress(data, 0, data.length);
+		assertTrue(compressed.length < data.length / 10);
+		assertTrue(Arrays.equals(data, LZCompression.decompress(compressed,
+				data.length)));
+	}
+
+	public void testRepeatedByte() throws IOException {
+		// the match overlaps with the data it is copied from
+		byte[] data = new byte[1000];
+		Arrays.fill(data, (byte) 7);
+		byte[] compressed = LZCompression.compress(data, 0, data.length);
+		assertTrue(compressed.length < 10);
+		assertTrue(Arrays.equals(data, LZCompression.decompress(compressed,
+				data.length)));
+	}
+
+	public void testIncompressible() {
+		byte[] data = new byte[1000];
+		new Random(12345).nextBytes(data);
+		assertNull(LZCompression.compress(data, 0, data.length));
+		assertNull(LZCompression.compress(new byte[10], 0, 10));
+	}
+
+	public void testCorruptData() {
+		byte[] data = StringUtils.repeat("abcdefgh", 10).getBytes();
+		byte[] compressed = LZCompression.compress(data, 0, data.length);
+		try {
+			LZCompression.decompress(Arrays.copyOf(compressed,
+					compressed.length - 1), data.length);
+			fail();
+		} catch (IOException e) {
+		}
+		// one literal, then a match with distance 0
+		try {
+			LZCompression.decompress(new byte[] { 1, 'a', 0, 0 }, 100);
+			fail();
+		} catch (IOException e) {
+		}
+		// an invalid variable-length integer
+		byte[] invalid = new byte[12];
+		Arrays.fill(invalid, (byte) 0xFF);
+		try {
+			LZCompression.decompress(invalid, 100);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+}
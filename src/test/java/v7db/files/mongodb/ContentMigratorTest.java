@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.FileSystemContentStorage;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class ContentMigratorTest extends MockMongoTestCaseSupport {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("v7files", "test");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+	public void testMigrate() throws IOException {
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		byte[] big = new byte[600 * 1024];
+		new Random(12345).nextBytes(big);
+		byte[] small = StringUtils.repeat("small content, ", 20).getBytes();
+		ContentSHA bigSHA = storage.storeContent(new ByteArrayInputStream(big));
+		ContentSHA smallSHA = storage.storeContent(new ByteArrayInputStream(
+				small));
+		// manifest and three chunks, and the small one
+		assertEquals(5, getMongo().getDB("test").getCollection(
+				"v7files.content").count());
+
+		FileSystemContentStorage cold = new FileSystemContentStorage(dir);
+		storage.setColdStorage(cold, false);
+		storage.setAccessStatistics(new AccessStatistics(getMongo().getDB(
+				"test")));
+		// only the small one is used after the statistics were enabled
+		assertNotNull(storage.getContent(smallSHA.getSHA()));
+
+		ContentMigrator migrator = new ContentMigrator(storage, 3600 * 1000);
+		migrator.setMaxBytesPerSecond(10 * 1024 * 1024);
+		assertEquals(3, migrator.migrate());
+		assertEquals(big.length, migrator.getMigratedBytes());
+		assertMockMongoContainsDocument("test.v7files.content", bigSHA
+				.getSHA());
+		assertMockMongoContainsDocument("test.v7files.content", smallSHA
+				.getSHA());
+		assertEquals(2, getMongo().getDB("test").getCollection(
+				"v7files.content").count());
+		assertNotNull(storage.getAccessStatistics().getLastAccess(
+				smallSHA.getSHA()));
+
+		// the manifest finds the chunks in the cold storage
+		assertTrue(Arrays.equals(big, IOUtils.toByteArray(storage.getContent(
+				bigSHA).getInputStream())));
+		assertNotNull(cold.getContent(DigestUtils.sha(Arrays.copyOf(big,
+				256 * 1024))));
+
+		// they have just been used, so nothing else to do
+		assertEquals(0, migrator.migrate());
+
+		// promotion copies them back
+		storage.setColdStorage(cold, true);
+		assertTrue(Arrays.equals(big, IOUtils.toByteArray(storage.getContent(
+				bigSHA).getInputStream())));
+		assertEquals(5, getMongo().getDB("test").getCollection(
+				"v7files.content").count());
+	}
+
+	public void testKeepFrequentlyUsed() throws IOException {
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		byte[] a = StringUtils.repeat("content a, ", 20).getBytes();
+		byte[] b = StringUtils.repeat("content b, ", 20).getBytes();
+		storage.storeContent(new ByteArrayInputStream(a));
+		storage.storeContent(new ByteArrayInputStream(b));
+		storage.setColdStorage(new FileSystemContentStorage(dir), false);
+		storage.setAccessStatistics(new AccessStatistics(getMongo().getDB(
+				"test")));
+		// both last used a day ago, but one of them often
+		Date dayAgo = new Date(System.currentTimeMillis() - 24 * 3600 * 1000);
+		DBCollection access = getMongo().getDB("test").getCollection(
+				AccessStatistics.DEFAULT_ACCESS_COLLECTION_NAME);
+		access.insert(new BasicDBObject("_id", DigestUtils.sha(a)).append(
+				"t", dayAgo).append("n", 100));
+		access.insert(new BasicDBObject("_id", DigestUtils.sha(b)).append(
+				"t", dayAgo).append("n", 2));
+
+		ContentMigrator migrator = new ContentMigrator(storage, 3600 * 1000);
+		migrator.setKeepFrequentlyUsed(50);
+		assertEquals(1, migrator.migrate());
+		assertMockMongoContainsDocument("test.v7files.content", DigestUtils
+				.sha(a));
+		assertEquals(1, getMongo().getDB("test").getCollection(
+				"v7files.content").count());
+	}
+
+	public void testAccessStatisticsFlushInBackground()
+			throws InterruptedException {
+		DBCollection collection = getMongo().getDB("test").getCollection(
+				AccessStatistics.DEFAULT_ACCESS_COLLECTION_NAME);
+		AccessStatistics stats = new AccessStatistics(collection, 2);
+		byte[][] shas = new byte[3][];
+		for (int i = 0; i < shas.length; i++)
+			shas[i] = DigestUtils.sha("content " + i);
+
+		// not started: enough accesses are written by the reading thread
+		stats.record(shas[0]);
+		assertEquals(0, collection.count());
+		stats.record(shas[1]);
+		assertEquals(2, collection.count());
+		stats.record(shas[2]);
+		assertEquals(2, collection.count());
+
+		// once started, enough accesses trigger a flush in the background
+		ScheduledExecutorService executor = Executors
+				.newSingleThreadScheduledExecutor();
+		stats.start(executor, 1, TimeUnit.HOURS).cancel(false);
+		stats.record(shas[0]);
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertNull(stats.getLastError());
+		for (byte[] sha : shas)
+			assertNotNull(stats.getLastAccess(sha));
+	}
+
+}
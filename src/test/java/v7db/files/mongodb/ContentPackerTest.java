@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+import v7db.files.ContentDefinedChunking;
+import v7db.files.spi.ContentSHA;
+import v7db.files.spi.StoredContent;
+
+import com.mongodb.DBCollection;
+
+public class ContentPackerTest extends MockMongoTestCaseSupport {
+
+	private V7GridFS gridFS;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		prepareMockData("test.v7files.files",
+				new BasicBSONObject("_id", "root"));
+		gridFS = new V7GridFS(getMongo().getDB("test"));
+	}
+
+	private static byte[] data(int i) {
+		return StringUtils.repeat("file number " + i + ", ", 20).getBytes();
+	}
+
+	public void testPack() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			gridFS.addFile(data(i), "root", "file" + i, "text/plain");
+		}
+		// the same content twice
+		gridFS.addFile(data(0), "root", "copy", "text/plain");
+		// and something too big
+		byte[] big = StringUtils.repeat("big file, ", 1000).getBytes();
+		gridFS.addFile(big, "root", "big", "text/plain");
+
+		DBCollection contents = getMongo().getDB("test").getCollection(
+				"v7files.content");
+		// 20 small ones and the big one
+		assertEquals(21, contents.count());
+
+		ContentPacker packer = new ContentPacker(getMongo().getDB("test"),
+				new MongoContentStorage(getMongo().getDB("test")));
+		packer.setDeleteLoose(true);
+		assertEquals(21, packer.pack(1000, 2000));
+		// about 300 bytes per file, 6 of them per pack
+		assertEquals(4, packer.getPacks());
+		// the loose documents are gone
+		assertEquals(20, packer.getDeleted());
+		assertEquals(1 + 4, contents.count());
+
+		int inside = 0;
+		for (int i = 0; i < 20; i++) {
+			V7File file = gridFS.getFile("root", "file" + i);
+			assertEquals(1, file.getVersion());
+			StoredContent pointer = (StoredContent) file.getContentPointer();
+			assertEquals(data(i).length, pointer.getLength());
+			// the file keeps its own SHA
+			BSONObject doc = assertMockMongoContainsDocument(
+					"test.v7files.files", file.getId());
+			assertEquals(DigestUtils.shaHex(data(i)), Hex
+					.encodeHexString((byte[]) doc.get("sha")));
+			assertTrue(pointer.isPacked());
+			assertTrue(pointer.contentEquals(ContentSHA.calculate(data(i))));
+			assertTrue(Arrays.equals(data(i), IOUtils.toByteArray(file
+					.getInputStream())));
+			if (pointer.getOffset() > 0)
+				inside++;
+			// the references point to the pack
+			BSONObject refs = assertMockMongoContainsDocument(
+					"test.v7files.refs", file.getId());
+			assertEquals(Hex.encodeHexString(pointer.getBaseSHA()), Hex
+					.encodeHexString((byte[]) BSONUtils.values(refs, "refs")[0]));
+		}
+		assertTrue(inside >= 15);
+		V7File copy = gridFS.getFile("root", "copy");
+		assertTrue(Arrays.equals(data(0), IOUtils.toByteArray(copy
+				.getInputStream())));
+		assertFalse(assertMockMongoContainsDocument("test.v7files.files",
+				gridFS.getFile("root", "big").getId()).containsField("pack"));
+
+		// the same content again is not a change
+		V7File first = gridFS.getFile("root", "file0");
+		first.setContent(data(0), "text/plain");
+		assertEquals(1, gridFS.getFile("root", "file0").getVersion());
+
+		// nothing left to do
+		assertEquals(0, packer.pack(1000, 2000));
+
+		// new content replaces the pointer into the pack
+		V7File file = gridFS.getFile("root", "file3");
+		String text = "new content, more than 55 bytes, so that it is not inlined";
+		file.setContent(text.getBytes(), "text/plain");
+		file = gridFS.getFile("root", "file3");
+		assertEquals(0, ((StoredContent) file.getContentPointer()).getOffset());
+		assertEquals(text, IOUtils.toString(file.getInputStream()));
+	}
+
+	public void testRedirect() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			gridFS.addFile(data(i), "root", "file" + i, "text/plain");
+		}
+		DBCollection contents = getMongo().getDB("test").getCollection(
+				"v7files.content");
+		assertEquals(10, contents.count());
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentPacker packer = new ContentPacker(getMongo().getDB("test"),
+				storage);
+		assertEquals(10, packer.pack(1000, 2000));
+		assertEquals(10, packer.getRedirected());
+		assertEquals(0, packer.getDeleted());
+		// the loose documents are still there, but only point to the pack
+		assertEquals(10 + packer.getPacks(), contents.count());
+		for (int i = 0; i < 10; i++) {
+			BSONObject doc = assertMockMongoContainsDocument(
+					"test.v7files.content", DigestUtils.sha(data(i)));
+			assertEquals("cat", doc.get("store"));
+			assertFalse(doc.containsField("in"));
+			// and can still be read by their SHA
+			assertTrue(Arrays.equals(data(i), IOUtils.toByteArray(storage
+					.getContent(DigestUtils.sha(data(i))).getInputStream())));
+		}
+	}
+
+	public void testPackChunks() throws IOException {
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		storage.setCompressionCodec(null);
+		storage.setContentDefinedChunking(new ContentDefinedChunking(100,
+				300, 600));
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("line ").append(i).append(", ");
+		}
+		byte[] data = sb.toString().getBytes();
+		V7GridFS fs = new V7GridFS(getMongo().getDB("test"), storage);
+		fs.addFile(data, "root", "chunked", "text/plain");
+		DBCollection contents = getMongo().getDB("test").getCollection(
+				"v7files.content");
+		long before = contents.count();
+		assertTrue(before > 10);
+
+		ContentPacker packer = new ContentPacker(getMongo().getDB("test"),
+				storage);
+		packer.setDeleteLoose(true);
+		long packed = packer.pack(1000, 4000);
+		assertEquals(packed, packer.getPackedChunks());
+		assertEquals(before - 1, packed);
+		assertTrue(contents.count() < before);
+		assertEquals(1 + packer.getPacks(), contents.count());
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(fs.getFile("root",
+				"chunked").getInputStream())));
+	}
+}
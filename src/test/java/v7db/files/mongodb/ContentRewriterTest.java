@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.mongodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BSONObject;
+
+import v7db.files.Compression;
+import v7db.files.ContentDefinedChunking;
+import v7db.files.spi.ContentSHA;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class ContentRewriterTest extends MockMongoTestCaseSupport {
+
+	private static byte[] text(int lines) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			sb.append("line number ").append(i).append(", ");
+		}
+		return sb.toString().getBytes();
+	}
+
+	public void testRewrite() throws IOException {
+		// the old layout: uncompressed, fixed-size chunks
+		MongoContentStorage old = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		old.setCompressionCodec(null);
+		byte[] big = text(40000);
+		byte[] small = StringUtils.repeat("small text, ", 100).getBytes();
+		ContentSHA bigSHA = old.storeContent(new ByteArrayInputStream(big));
+		ContentSHA smallSHA = old.storeContent(new ByteArrayInputStream(small));
+		assertEquals(3, BSONUtils.values(assertMockMongoContainsDocument(
+				"test.v7files.content", bigSHA.getSHA()), "base").length);
+
+		// the new one
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		storage.setContentDefinedChunking(new ContentDefinedChunking(
+				16 * 1024, 64 * 1024, 128 * 1024));
+		ContentRewriter rewriter = new ContentRewriter(storage, "test");
+		rewriter.setRechunk(true);
+		rewriter.setMaxBytesPerSecond(100 * 1024 * 1024);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			rewriter.setExecutor(executor);
+			assertEquals(5, rewriter.run());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, rewriter.getRechunked());
+		// the small one and the old chunks
+		assertEquals(4, rewriter.getReencodedChunks());
+		assertTrue(rewriter.getBytesSaved() > big.length / 2);
+
+		BSONObject manifest = assertMockMongoContainsDocument(
+				"test.v7files.content", bigSHA.getSHA());
+		assertTrue(BSONUtils.values(manifest, "base").length > 3);
+		assertEquals("gz", assertMockMongoContainsDocument(
+				"test.v7files.content", smallSHA.getSHA()).get("store"));
+		assertTrue(Arrays.equals(big, IOUtils.toByteArray(storage.getContent(
+				bigSHA).getInputStream())));
+		assertTrue(Arrays.equals(small, IOUtils.toByteArray(storage
+				.getContent(smallSHA).getInputStream())));
+		// the old chunks are unused now, but not deleted
+		assertEquals(3, rewriter.getUnusedChunks());
+		assertTrue(rewriter.getUnusedBytes() > 0);
+		assertEquals(5 + BSONUtils.values(manifest, "base").length,
+				getMongo().getDB("test").getCollection("v7files.content")
+						.count());
+		// finished
+		assertEquals(0, getMongo().getDB("test").getCollection("v7files.jobs")
+				.count());
+	}
+
+	public void testResume() throws IOException {
+		MongoContentStorage old = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		old.setCompressionCodec(null);
+		for (int i = 0; i < 10; i++) {
+			old.storeContent(new ByteArrayInputStream(text(10 + i)));
+		}
+		DBCollection contents = getMongo().getDB("test").getCollection(
+				"v7files.content");
+		byte[][] shas = new byte[10][];
+		int i = 0;
+		for (Object doc : contents.find().sort(new BasicDBObject("_id", 1))) {
+			shas[i++] = (byte[]) ((BSONObject) doc).get("_id");
+		}
+
+		// an earlier run got through the first four
+		getMongo().getDB("test").getCollection("v7files.jobs").save(
+				new BasicDBObject("_id", "test").append("last", shas[3])
+						.append("processed", 4).append("reencoded", 4)
+						.append("rechunked", 0).append("bytesSaved", 1000));
+
+		ContentRewriter rewriter = new ContentRewriter(
+				new MongoContentStorage(getMongo().getDB("test")), "test");
+		assertEquals(6, rewriter.run());
+		assertEquals(10, rewriter.getProcessed());
+		assertEquals(10, rewriter.getReencodedChunks());
+		assertNull(assertMockMongoContainsDocument("test.v7files.content",
+				shas[3]).get("store"));
+		assertEquals("gz", assertMockMongoContainsDocument(
+				"test.v7files.content", shas[4]).get("store"));
+	}
+
+	public void testOldGzipChunk() throws IOException {
+		// stored without a length
+		byte[] data = text(100);
+		byte[] sha = DigestUtils.sha(data);
+		getMongo().getDB("test").getCollection("v7files.content").insert(
+				new BasicDBObject("_id", sha).append("zin",
+						Compression.gzip(data, 0, data.length)).append("store",
+						"gz"));
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentRewriter rewriter = new ContentRewriter(storage, "test");
+		rewriter.setMaxBytesPerSecond(100 * 1024 * 1024);
+		assertEquals(1, rewriter.run());
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(storage.getContent(
+				sha).getInputStream())));
+	}
+
+	public void testDeleteUnusedChunks() throws IOException {
+		MongoContentStorage old = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		old.setCompressionCodec(null);
+		byte[] big = text(40000);
+		ContentSHA bigSHA = old.storeContent(new ByteArrayInputStream(big));
+		Object[] oldChunks = BSONUtils.values(assertMockMongoContainsDocument(
+				"test.v7files.content", bigSHA.getSHA()), "base");
+		assertEquals(3, oldChunks.length);
+		// a file uses the first chunk by itself
+		byte[] first = (byte[]) ((BSONObject) oldChunks[0]).get("sha");
+		getMongo().getDB("test").getCollection("v7files.refs").insert(
+				new BasicDBObject("_id", "file").append("refs",
+						Arrays.asList(first)).append("refHistory",
+						Arrays.asList(first)));
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		storage.setContentDefinedChunking(new ContentDefinedChunking(
+				16 * 1024, 64 * 1024, 128 * 1024));
+		ContentRewriter rewriter = new ContentRewriter(storage, "test");
+		rewriter.setRechunk(true);
+		rewriter.setDeleteUnusedChunks(true);
+		rewriter.setGracePeriod(0, TimeUnit.SECONDS);
+		rewriter.run();
+		assertEquals(2, rewriter.getUnusedChunks());
+
+		// only marked for now
+		DBCollection contents = getMongo().getDB("test").getCollection(
+				"v7files.content");
+		Object[] newChunks = BSONUtils.values(assertMockMongoContainsDocument(
+				"test.v7files.content", bigSHA.getSHA()), "base");
+		assertEquals(1 + newChunks.length + 3, contents.count());
+		assertEquals(2, getMongo().getDB("test").getCollection("v7files.jobs")
+				.count());
+
+		// in the meantime, a file starts using the second chunk
+		byte[] second = (byte[]) ((BSONObject) oldChunks[1]).get("sha");
+		getMongo().getDB("test").getCollection("v7files.files").insert(
+				new BasicDBObject("_id", "other").append("sha", second));
+
+		// the next run deletes the one that is still unused
+		rewriter.run();
+		// the manifest, its new chunks, and the two still in use
+		assertEquals(1 + newChunks.length + 2, contents.count());
+		assertMockMongoContainsDocument("test.v7files.content", first);
+		assertMockMongoContainsDocument("test.v7files.content", second);
+		assertEquals(0, getMongo().getDB("test").getCollection("v7files.jobs")
+				.count());
+		assertTrue(Arrays.equals(big, IOUtils.toByteArray(storage.getContent(
+				bigSHA).getInputStream())));
+		assertTrue(Arrays.equals(Arrays.copyOf(big, 256 * 1024), IOUtils
+				.toByteArray(storage.getContent(first).getInputStream())));
+	}
+
+}
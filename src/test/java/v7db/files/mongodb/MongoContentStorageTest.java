@@ -20,8 +20,16 @@ package v7db.files.mongodb;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import jmockmongo.MockMongoTestCaseSupport;
@@ -30,14 +38,26 @@ import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
 
+import v7db.files.ContentDefinedChunking;
+import v7db.files.Delta;
+import v7db.files.spi.CompressionCodec;
 import v7db.files.spi.Content;
 import v7db.files.spi.ContentPointer;
 import v7db.files.spi.ContentSHA;
 import v7db.files.spi.ContentStorage;
-
+import v7db.files.spi.DeflatedContent;
+import v7db.files.spi.DictionaryDeflatedContent;
+import v7db.files.spi.InlineContent;
+import v7db.files.spi.LZContent;
+import v7db.files.spi.ReadAhead;
+import v7db.files.spi.StoredContent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.Mongo;
 import com.mongodb.MongoException;
 
@@ -61,6 +81,28 @@ public class MongoContentStorageTest extends MockMongoTestCaseSupport {
 
 	}
 
+	public void testReadCompressedDataRange() throws IOException {
+		byte[] data = new byte[100 * 1024];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 251);
+		}
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(data));
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", sha.getSHA());
+		assertEquals("gz", doc.get("store"));
+		assertEquals(data.length, doc.get("length"));
+
+		Content check = storage.getContent(sha);
+		assertEquals(data.length, check.getLength());
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, 50000, 50100),
+				IOUtils.toByteArray(check.getInputStream(50000, 100))));
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(check
+				.getInputStream())));
+	}
+
 	public void testReadCompressedData() throws MongoException, IOException {
 
 		byte[] data = "some data we are going to store compressed with gzip"
@@ -167,4 +209,724 @@ public class MongoContentStorageTest extends MockMongoTestCaseSupport {
 
 	}
 
+	public void testSaveAsChunksPipelined() throws IOException {
+
+		byte[] data = new byte[10 * 1024 * 1024 + 1234];
+		new Random(12345).nextBytes(data);
+		// make some chunks compressible
+		Arrays.fill(data, 1024 * 1024, 3 * 1024 * 1024, (byte) 'x');
+		byte[] sha = DigestUtils.sha(data);
+
+		Mongo mongo = getMongo();
+		MongoContentStorage sequential = new MongoContentStorage(mongo
+				.getDB("test").getCollection("sequential"));
+		MongoContentStorage pipelined = new MongoContentStorage(mongo
+				.getDB("test").getCollection("pipelined"));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		pipelined.setIngestExecutor(executor, 6);
+		pipelined.setChunkBatchSize(3);
+		try {
+			ContentSHA expected = sequential
+					.storeContent(new ByteArrayInputStream(data));
+			ContentSHA pointer = pipelined
+					.storeContent(new ByteArrayInputStream(data));
+			assertEquals(Hex.encodeHexString(sha), pointer.getDigest());
+			assertEquals(expected.getDigest(), pointer.getDigest());
+			assertEquals(data.length, pointer.getLength());
+
+			BSONObject s = assertMockMongoContainsDocument(
+					"test.sequential", sha);
+			BSONObject p = assertMockMongoContainsDocument(
+					"test.pipelined", sha);
+			assertEquals("cat", p.get("store"));
+			Object[] sBase = BSONUtils.values(s, "base");
+			Object[] pBase = BSONUtils.values(p, "base");
+			assertEquals(sBase.length, pBase.length);
+			for (int i = 0; i < sBase.length; i++) {
+				BSONObject sChunk = (BSONObject) sBase[i];
+				BSONObject pChunk = (BSONObject) pBase[i];
+				assertEquals(Hex.encodeHexString((byte[]) sChunk.get("sha")),
+						Hex.encodeHexString((byte[]) pChunk.get("sha")));
+				assertEquals(sChunk.get("length"), pChunk.get("length"));
+			}
+
+			assertEquals(Hex.encodeHexString(sha), DigestUtils
+					.shaHex(pipelined.getContent(pointer).getInputStream()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testSaveAsChunksBatched() throws IOException {
+
+		byte[] data = new byte[5 * 1024 * 1024 + 1234];
+		new Random(12345).nextBytes(data);
+		// identical chunks within the same batch
+		Arrays.fill(data, 0, 2 * 1024 * 1024, (byte) 'x');
+		byte[] sha = DigestUtils.sha(data);
+
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setChunkBatchSize(8);
+
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertEquals(Hex.encodeHexString(sha), pointer.getDigest());
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", sha);
+		assertEquals("cat", doc.get("store"));
+		assertEquals(21, BSONUtils.values(doc, "base").length);
+		assertEquals(Hex.encodeHexString(sha), DigestUtils.shaHex(storage
+				.getContent(pointer).getInputStream()));
+
+		// with some of the chunks already present
+		byte[] more = Arrays.copyOf(data, data.length + 1);
+		ContentSHA again = storage.storeContent(new ByteArrayInputStream(more));
+		assertEquals(DigestUtils.shaHex(more), again.getDigest());
+		assertEquals(DigestUtils.shaHex(more), DigestUtils.shaHex(storage
+				.getContent(again).getInputStream()));
+
+	}
+
+	public void testNestedManifest() throws IOException {
+		// 21 chunks
+		byte[] data = new byte[5 * 1024 * 1024 + 1234];
+		new Random(12345).nextBytes(data);
+		byte[] sha = DigestUtils.sha(data);
+		int chunk = 256 * 1024;
+
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setManifestFanout(4);
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertEquals(Hex.encodeHexString(sha), pointer.getDigest());
+
+		// 21 chunks -> 6 subtrees -> 2 subtrees
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", sha);
+		assertEquals("cat", doc.get("store"));
+		Object[] top = BSONUtils.values(doc, "base");
+		assertEquals(2, top.length);
+		assertEquals(16L * chunk, ((BSONObject) top[0]).get("length"));
+
+		// every subtree is content of its own
+		BSONObject subtree = assertMockMongoContainsDocument(
+				"test.v7files.content", DigestUtils.sha(ArrayUtils.subarray(
+						data, 16 * chunk, data.length)));
+		assertEquals("cat", subtree.get("store"));
+		assertEquals(2, BSONUtils.values(subtree, "base").length);
+		assertMockMongoContainsDocument("test.v7files.content", DigestUtils
+				.sha(ArrayUtils.subarray(data, 4 * chunk, 8 * chunk)));
+		// except single chunks
+		assertEquals(DigestUtils.shaHex(ArrayUtils.subarray(data, 20 * chunk,
+				data.length)), Hex.encodeHexString((byte[]) ((BSONObject) BSONUtils
+				.values(subtree, "base")[1]).get("sha")));
+
+		Content content = storage.getContent(pointer);
+		assertEquals(data.length, content.getLength());
+		assertEquals(Hex.encodeHexString(sha), DigestUtils.shaHex(content
+				.getInputStream()));
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, 17 * chunk - 10,
+				19 * chunk + 10), IOUtils.toByteArray(content.getInputStream(
+				17 * chunk - 10, 2 * chunk + 20))));
+
+		// the same with pipelined ingest
+		MongoContentStorage pipelined = new MongoContentStorage(mongo
+				.getDB("test").getCollection("pipelined"));
+		pipelined.setManifestFanout(4);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		pipelined.setIngestExecutor(executor, 4);
+		try {
+			pointer = pipelined.storeContent(new ByteArrayInputStream(data));
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(Hex.encodeHexString(sha), pointer.getDigest());
+		assertEquals(2, BSONUtils.values(assertMockMongoContainsDocument(
+				"test.pipelined", sha), "base").length);
+		assertEquals(Hex.encodeHexString(sha), DigestUtils.shaHex(pipelined
+				.getContent(pointer).getInputStream()));
+	}
+
+	public void testConcurrentStores() throws Exception {
+		final byte[] data = new byte[1024 * 1024];
+		new Random(12345).nextBytes(data);
+		Mongo mongo = getMongo();
+		// two "processes" with four threads each
+		final MongoContentStorage[] storages = {
+				new MongoContentStorage(mongo.getDB("test")),
+				new MongoContentStorage(mongo.getDB("test")) };
+		storages[1].setChunkBatchSize(4);
+		final CyclicBarrier start = new CyclicBarrier(8);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<ContentSHA>> results = new ArrayList<Future<ContentSHA>>();
+		try {
+			for (int i = 0; i < 8; i++) {
+				final MongoContentStorage storage = storages[i % 2];
+				results.add(executor.submit(new Callable<ContentSHA>() {
+					public ContentSHA call() throws Exception {
+						start.await();
+						return storage.storeContent(new ByteArrayInputStream(
+								data));
+					}
+				}));
+			}
+			for (Future<ContentSHA> f : results) {
+				// none of them failed
+				assertEquals(DigestUtils.shaHex(data), f.get().getDigest());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// four chunks and the manifest
+		assertEquals(5, mongo.getDB("test").getCollection("v7files.content")
+				.count());
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storages[0]
+				.getContent(DigestUtils.sha(data)).getInputStream()));
+	}
+
+	public void testTreeHashIdentity() throws IOException {
+		// 10 chunks
+		int chunk = 256 * 1024;
+		byte[] data = new byte[10 * chunk - 1234];
+		new Random(12345).nextBytes(data);
+		List<ContentSHA> chunks = new ArrayList<ContentSHA>();
+		for (int i = 0; i < data.length; i += chunk) {
+			chunks.add(ContentSHA.calculate(data, i, Math.min(chunk,
+					data.length - i)));
+		}
+		ContentSHA tree = ContentSHA.calculateTreeHash(chunks);
+		assertTrue(tree.isTreeHash());
+		assertFalse(Hex.encodeHexString(DigestUtils.sha(data)).equals(
+				tree.getDigest()));
+
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setManifestFanout(4);
+		storage.setTreeHashIdentity(true);
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertTrue(pointer.isTreeHash());
+		assertEquals(tree.getDigest(), pointer.getDigest());
+		assertEquals(data.length, pointer.getLength());
+		assertEquals("tree", pointer.serialize().get("hash"));
+		assertFalse(pointer.contentEquals(ContentSHA.calculate(data)));
+
+		// 10 chunks -> 3 subtrees, also identified by tree hashes
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", pointer.getSHA());
+		assertEquals("tree", doc.get("hash"));
+		Object[] top = BSONUtils.values(doc, "base");
+		assertEquals(3, top.length);
+		assertEquals("tree", ((BSONObject) top[0]).get("hash"));
+		assertEquals(ContentSHA.calculateTreeHash(chunks.subList(8, 10))
+				.getDigest(), Hex.encodeHexString((byte[]) ((BSONObject) top[2])
+				.get("sha")));
+
+		Content content = storage.getContent(pointer);
+		assertEquals(data.length, content.getLength());
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(content
+				.getInputStream()));
+		// the pointer (with the marker) can be read back
+		StoredContent stored = StoredContent.deserialize(pointer.serialize());
+		assertTrue(stored.isTreeHash());
+		assertTrue(pointer.contentEquals(stored));
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storage
+				.getContent(stored.serialize()).getInputStream()));
+
+		// the same with pipelined ingest
+		MongoContentStorage pipelined = new MongoContentStorage(mongo
+				.getDB("test").getCollection("pipelined"));
+		pipelined.setManifestFanout(4);
+		pipelined.setTreeHashIdentity(true);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		pipelined.setIngestExecutor(executor, 4);
+		try {
+			assertEquals(tree.getDigest(), pipelined.storeContent(
+					new ByteArrayInputStream(data)).getDigest());
+		} finally {
+			executor.shutdown();
+		}
+
+		// small content is still identified by its SHA-1
+		byte[] small = ArrayUtils.subarray(data, 0, 1000);
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(small));
+		assertFalse(sha.isTreeHash());
+		assertEquals(DigestUtils.shaHex(small), sha.getDigest());
+
+		// the id of a tree hash cannot be the SHA-1 of any data
+		assertEquals(21, pointer.getSHA().length);
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		input.write("tree".getBytes());
+		for (ContentSHA c : chunks) {
+			input.write(c.getSHA());
+			input.write(ByteBuffer.allocate(8).putLong(c.getLength()).array());
+		}
+		ContentSHA fake = storage.storeContent(new ByteArrayInputStream(input
+				.toByteArray()));
+		assertFalse(fake.isTreeHash());
+		assertEquals(tree.getDigest().substring(2), fake.getDigest());
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storage
+				.getContent(pointer).getInputStream()));
+		assertEquals(DigestUtils.shaHex(input.toByteArray()), DigestUtils
+				.shaHex(storage.getContent(fake).getInputStream()));
+
+		// looking it up by a prefix keeps the marker
+		ContentSHA found = storage.findContentPointerByPrefix(ArrayUtils
+				.subarray(pointer.getSHA(), 0, 6));
+		assertTrue(found.isTreeHash());
+		assertTrue(pointer.contentEquals(found));
+		assertFalse(storage.findContentPointerByPrefix(fake.getSHA())
+				.isTreeHash());
+	}
+
+	public void testTreeHashMarkerChecked() throws IOException {
+		byte[] data = new byte[1000];
+		new Random(12345).nextBytes(data);
+		// stored with the marker (but the id of a SHA-1)
+		prepareMockData("test.v7files.content", new BasicBSONObject("_id",
+				DigestUtils.sha(data)).append("store", "cat").append("hash",
+				"tree").append("base", new Object[0]));
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		try {
+			storage.storeContent(new ByteArrayInputStream(data));
+			fail("stored content with another kind of hash");
+		} catch (IOException e) {
+		}
+	}
+
+	public void testRepeatedChunks() throws IOException {
+		// random, zeros, a repeated pattern, random (256 KB each)
+		int chunk = 256 * 1024;
+		byte[] data = new byte[4 * chunk];
+		Random random = new Random(12345);
+		random.nextBytes(data);
+		Arrays.fill(data, chunk, 2 * chunk, (byte) 0);
+		byte[] pattern = "a pattern ".getBytes();
+		for (int i = 2 * chunk; i < 3 * chunk; i++) {
+			data[i] = pattern[i % pattern.length];
+		}
+		byte[] sha = DigestUtils.sha(data);
+
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setMaxRepeatPeriod(64);
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertEquals(Hex.encodeHexString(sha), pointer.getDigest());
+		assertEquals(2, storage.getRepeatedChunks());
+
+		// only the two random chunks are stored
+		assertEquals(3, mongo.getDB("test").getCollection("v7files.content")
+				.count());
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", sha);
+		Object[] base = BSONUtils.values(doc, "base");
+		assertEquals(4, base.length);
+		assertTrue(Arrays.equals(new byte[1], (byte[]) ((BSONObject) base[1])
+				.get("in")));
+		assertEquals((long) chunk, ((BSONObject) base[1]).get("length"));
+		assertEquals(Hex.encodeHexString(sha), DigestUtils.shaHex(storage
+				.getContent(pointer).getInputStream()));
+
+		// the repeated parts are read without the chunks
+		mongo.getDB("test").getCollection("v7files.content").remove(
+				new BasicDBObject("in", new BasicDBObject("$exists", true)));
+		Content content = storage.getContent(pointer);
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, chunk + 10,
+				3 * chunk - 10), IOUtils.toByteArray(content.getInputStream(
+				chunk + 10, 2 * chunk - 20))));
+
+		// the same with batched ingest
+		MongoContentStorage batched = new MongoContentStorage(mongo.getDB(
+				"test").getCollection("batched"));
+		batched.setChunkBatchSize(4);
+		batched.setMaxRepeatPeriod(64);
+		assertEquals(Hex.encodeHexString(sha), batched.storeContent(
+				new ByteArrayInputStream(data)).getDigest());
+		assertEquals(3, mongo.getDB("test").getCollection("batched").count());
+		assertEquals(Hex.encodeHexString(sha), DigestUtils.shaHex(batched
+				.getContent(pointer).getInputStream()));
+
+		// content that is repeated throughout still has a document
+		byte[] zeros = new byte[3 * chunk];
+		ContentSHA empty = storage.storeContent(new ByteArrayInputStream(
+				zeros));
+		assertEquals(DigestUtils.shaHex(zeros), DigestUtils.shaHex(storage
+				.getContent(empty.getSHA()).getInputStream()));
+		byte[] small = new byte[chunk / 2];
+		assertEquals(DigestUtils.shaHex(small), DigestUtils.shaHex(storage
+				.getContent(
+						storage.storeContent(new ByteArrayInputStream(small))
+								.getSHA()).getInputStream()));
+	}
+
+	public void testCompressLargeContentDefinedChunks() throws IOException {
+		// compresses to about half, still more than 256 KB per chunk
+		byte[] data = new byte[2 * 1024 * 1024];
+		Random random = new Random(12345);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) random.nextInt(16);
+		}
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setContentDefinedChunking(new ContentDefinedChunking(
+				512 * 1024, 768 * 1024, 1024 * 1024));
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		Object[] base = BSONUtils.values(assertMockMongoContainsDocument(
+				"test.v7files.content", pointer.getSHA()), "base");
+		BSONObject first = assertMockMongoContainsDocument(
+				"test.v7files.content", (byte[]) ((BSONObject) base[0])
+						.get("sha"));
+		assertEquals("gz", first.get("store"));
+		assertTrue(((byte[]) first.get("zin")).length > 256 * 1024);
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storage
+				.getContent(pointer).getInputStream()));
+	}
+
+	public void testSaveWithContentDefinedChunking() throws IOException {
+
+		byte[] data = new byte[4 * 1024 * 1024];
+		new Random(12345).nextBytes(data);
+		byte[] edited = ArrayUtils.add(data, 1000, (byte) 42);
+
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setContentDefinedChunking(new ContentDefinedChunking(
+				64 * 1024, 256 * 1024, 1024 * 1024));
+
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertEquals(DigestUtils.shaHex(data), pointer.getDigest());
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storage
+				.getContent(pointer).getInputStream()));
+		int chunks = BSONUtils.values(
+				assertMockMongoContainsDocument("test.v7files.content",
+						pointer.getSHA()), "base").length;
+
+		ContentSHA again = storage.storeContent(new ByteArrayInputStream(
+				edited));
+		assertEquals(DigestUtils.shaHex(edited), DigestUtils.shaHex(storage
+				.getContent(again).getInputStream()));
+		Object[] base = BSONUtils.values(assertMockMongoContainsDocument(
+				"test.v7files.content", again.getSHA()), "base");
+		assertTrue(base.length >= chunks - 1);
+		// only the chunks around the inserted byte should be new
+		int shared = 0;
+		Object[] originalBase = BSONUtils.values(
+				assertMockMongoContainsDocument("test.v7files.content",
+						pointer.getSHA()), "base");
+		for (Object chunk : base) {
+			for (Object o : originalBase) {
+				if (Arrays.equals((byte[]) ((BSONObject) chunk).get("sha"),
+						(byte[]) ((BSONObject) o).get("sha")))
+					shared++;
+			}
+		}
+		assertTrue(shared >= base.length - 2);
+	}
+
+	public void testDeltaStorage() throws IOException {
+
+		byte[] data = new byte[500 * 1024];
+		new Random(12345).nextBytes(data);
+		byte[] edited = ArrayUtils.add(data, 1000, (byte) 42);
+
+		Mongo mongo = getMongo();
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setDeltaStorage(mongo.getDB("test").getCollection(
+				MongoContentStorage.DEFAULT_SKETCH_COLLECTION_NAME),
+				1024 * 1024);
+
+		ContentSHA pointer = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertEquals("cat", assertMockMongoContainsDocument(
+				"test.v7files.content", pointer.getSHA()).get("store"));
+
+		ContentSHA again = storage.storeContent(new ByteArrayInputStream(
+				edited));
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", again.getSHA());
+		assertEquals("delta", doc.get("store"));
+		assertTrue(((byte[]) doc.get("delta")).length < 100);
+
+		Content check = storage.getContent(again);
+		assertEquals(edited.length, check.getLength());
+		assertEquals(DigestUtils.shaHex(edited), DigestUtils.shaHex(check
+				.getInputStream()));
+		assertEquals(DigestUtils.shaHex(ArrayUtils.subarray(edited, 900,
+				300000)), DigestUtils.shaHex(check.getInputStream(900,
+				300000 - 900)));
+
+		// content that is not similar to anything
+		byte[] other = new byte[300 * 1024];
+		new Random(54321).nextBytes(other);
+		ContentSHA unrelated = storage.storeContent(new ByteArrayInputStream(
+				other));
+		assertEquals("cat", assertMockMongoContainsDocument(
+				"test.v7files.content", unrelated.getSHA()).get("store"));
+
+		// large content is not considered
+		byte[] large = new byte[2 * 1024 * 1024];
+		ContentSHA big = storage.storeContent(new ByteArrayInputStream(large));
+		assertEquals(DigestUtils.shaHex(large), DigestUtils.shaHex(storage
+				.getContent(big).getInputStream()));
+	}
+
+	public void testDeltaBaseClosestInLength() throws IOException {
+		byte[] data = new byte[100 * 1024];
+		new Random(12345).nextBytes(data);
+		byte[] tail = new byte[200 * 1024];
+		new Random(54382).nextBytes(tail);
+		byte[] longer = ArrayUtils.addAll(data, tail);
+		byte[] close = ArrayUtils.add(data, 1000, (byte) 1);
+		byte[] edited = ArrayUtils.add(data, 2000, (byte) 2);
+
+		Mongo mongo = getMongo();
+		DBCollection sketches = mongo.getDB("test").getCollection(
+				MongoContentStorage.DEFAULT_SKETCH_COLLECTION_NAME);
+		MongoContentStorage storage = new MongoContentStorage(mongo
+				.getDB("test"));
+		storage.setDeltaStorage(sketches, 1024 * 1024);
+		storage.storeContent(new ByteArrayInputStream(longer));
+		storage.storeContent(new ByteArrayInputStream(close));
+		// both are just as similar (as per the sketch)
+		List<Long> sketch = new ArrayList<Long>();
+		for (long f : Delta.sketch(edited, 0, edited.length)) {
+			sketch.add(f);
+		}
+		for (byte[] base : new byte[][] { longer, close }) {
+			sketches.update(new BasicDBObject("_id", DigestUtils.sha(base)),
+					new BasicDBObject("$set", new BasicDBObject("f", sketch)));
+		}
+
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(edited));
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", sha.getSHA());
+		assertEquals("delta", doc.get("store"));
+		assertEquals(DigestUtils.shaHex(close), Hex
+				.encodeHexString((byte[]) BSONUtils.get(doc, "base.sha")));
+
+		try {
+			storage.setDeltaStorage(sketches,
+					MongoContentStorage.MAX_DELTA_LENGTH + 1);
+			fail("no limit for delta storage");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testDeltaAgainstPreviousVersion() throws IOException {
+
+		byte[] data = new byte[300 * 1024];
+		new Random(12345).nextBytes(data);
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		// no sketches, only the hints
+		storage.setDeltaStorage(null, 1024 * 1024);
+		storage.setMaxDeltaChain(2);
+
+		ContentPointer previous = storage.storeContent(new ByteArrayInputStream(
+				data));
+		String[] expected = { "delta", "delta", "cat" };
+		for (int i = 0; i < expected.length; i++) {
+			data = ArrayUtils.add(data, 1000 * i, (byte) i);
+			ContentSHA version = storage.storeContent(new ByteArrayInputStream(
+					data), previous);
+			assertEquals(expected[i], assertMockMongoContainsDocument(
+					"test.v7files.content", version.getSHA()).get("store"));
+			assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storage
+					.getContent(version).getInputStream()));
+			previous = version;
+		}
+
+		// without a hint, or with an unrelated one
+		data = ArrayUtils.add(data, (byte) 42);
+		ContentSHA noHint = storage.storeContent(new ByteArrayInputStream(
+				data));
+		assertEquals("cat", assertMockMongoContainsDocument(
+				"test.v7files.content", noHint.getSHA()).get("store"));
+		byte[] other = new byte[300 * 1024];
+		new Random(54321).nextBytes(other);
+		ContentSHA unrelated = storage.storeContent(new ByteArrayInputStream(
+				other), previous);
+		assertEquals("cat", assertMockMongoContainsDocument(
+				"test.v7files.content", unrelated.getSHA()).get("store"));
+	}
+
+	public void testReadAhead() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(12345).nextBytes(data);
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		storage.setReadAhead(new ReadAhead(3, 10 * 1024 * 1024));
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(data));
+		assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(storage
+				.getContent(sha).getInputStream()));
+
+		ContentSHA missing = ContentSHA.calculate("missing".getBytes());
+		List<Content> contents = storage.getContents(Arrays.asList(sha,
+				missing, new InlineContent("inline".getBytes())));
+		assertEquals(data.length, contents.get(0).getLength());
+		assertNull(contents.get(1));
+		assertEquals("inline", IOUtils.toString(contents.get(2)
+				.getInputStream()));
+	}
+
+	public void testCompressionCodecs() throws IOException {
+		byte[] data = StringUtils.repeat("some text, some more text. ", 4000)
+				.getBytes();
+		CompressionCodec[] codecs = { new DeflatedContent(1),
+				new DeflatedContent(9), new LZContent() };
+		for (CompressionCodec codec : codecs) {
+			MongoContentStorage storage = new MongoContentStorage(getMongo()
+					.getDB(codec.getId()));
+			storage.setCompressionCodec(codec);
+			ContentSHA sha = storage.storeContent(new ByteArrayInputStream(
+					data));
+			BSONObject doc = assertMockMongoContainsDocument(codec.getId()
+					+ ".v7files.content", sha.getSHA());
+			assertEquals(codec.getId(), doc.get("store"));
+			assertTrue(((byte[]) doc.get("zin")).length < data.length / 10);
+
+			// readable without configuration
+			Content check = new MongoContentStorage(getMongo().getDB(
+					codec.getId())).getContent(sha);
+			assertTrue(Arrays.equals(data, IOUtils.toByteArray(check
+					.getInputStream())));
+			assertTrue(Arrays.equals(ArrayUtils.subarray(data, 1000, 1100),
+					IOUtils.toByteArray(check.getInputStream(1000, 100))));
+		}
+	}
+
+	public void testSkipCompression() throws IOException {
+		byte[] random = new byte[300 * 1024];
+		new Random(12345).nextBytes(random);
+		byte[] text = StringUtils.repeat("some text, ", 1000).getBytes();
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		storage.storeContent(new ByteArrayInputStream(random));
+		assertEquals(0, storage.getCompressedChunks());
+		assertEquals(2, storage.getCompressionSkippedByProbe());
+		assertEquals(0, storage.getCompressionFailures());
+
+		storage.storeContent(new ByteArrayInputStream(text));
+		assertEquals(1, storage.getCompressedChunks());
+
+		// text that claims to be a JPEG
+		ContentSHA jpeg = storage.storeContent(new ByteArrayInputStream(
+				ArrayUtils.add(text, (byte) 0)), null, "image/jpeg");
+		assertEquals(1, storage.getCompressionSkippedByContentType());
+		assertEquals(1, storage.getCompressedChunks());
+		assertNull(assertMockMongoContainsDocument("test.v7files.content",
+				jpeg.getSHA()).get("store"));
+	}
+
+	public void testDeferredCompression() throws IOException {
+		byte[] random = new byte[300 * 1024];
+		new Random(12345).nextBytes(random);
+		byte[] text = StringUtils.repeat("some text, ", 1000).getBytes();
+
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		storage.setDeferredCompression(getMongo().getDB("test").getCollection(
+				MongoContentStorage.DEFAULT_COMPRESSION_QUEUE_NAME));
+		storage.storeContent(new ByteArrayInputStream(random));
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(text));
+		assertEquals(0, storage.getCompressedChunks());
+		assertEquals(1, storage.getDeferredChunks());
+		assertEquals(text.length, ((byte[]) assertMockMongoContainsDocument(
+				"test.v7files.content", sha.getSHA()).get("in")).length);
+
+		CompressionWorker worker = new CompressionWorker(storage);
+		worker.setCpuBudget(0.5);
+		assertEquals(1, worker.getQueueLength());
+		assertEquals(1, worker.compressQueued());
+		assertEquals(0, worker.getQueueLength());
+		assertEquals(1, worker.getProcessedChunks());
+		assertTrue(worker.getBytesSaved() > text.length / 2);
+		assertEquals("gz", assertMockMongoContainsDocument(
+				"test.v7files.content", sha.getSHA()).get("store"));
+		assertEquals(new String(text), IOUtils.toString(storage.getContent(
+				sha).getInputStream()));
+
+		// re-encode with another codec (and try the random chunks again)
+		worker = new CompressionWorker(storage, new DeflatedContent());
+		assertEquals(3, worker.queueExisting());
+		assertEquals(1, worker.compressQueued());
+		assertEquals(3, worker.getProcessedChunks());
+		assertEquals("deflate", assertMockMongoContainsDocument(
+				"test.v7files.content", sha.getSHA()).get("store"));
+		assertEquals(new String(text), IOUtils.toString(storage.getContent(
+				sha).getInputStream()));
+	}
+
+	private static byte[] record(Random random, int i) {
+		return ("{\"id\": " + i + ", \"name\": \"user" + random.nextInt()
+				+ "\", \"email\": \"user" + random.nextInt()
+				+ "@example.com\", \"status\": \"active\", "
+				+ "\"created\": \"2012-0" + (1 + random.nextInt(9))
+				+ "-1" + random.nextInt(10) + "\", \"roles\": [\"reader\", "
+				+ "\"writer\"], \"preferences\": {\"language\": \"en\", "
+				+ "\"newsletter\": " + random.nextBoolean() + "}}").getBytes();
+	}
+
+	public void testDictionaryCompression() throws IOException {
+		Random random = new Random(1);
+		MongoContentStorage storage = new MongoContentStorage(getMongo()
+				.getDB("test"));
+		ContentSHA[] records = new ContentSHA[200];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = storage.storeContent(new ByteArrayInputStream(record(
+					random, i)));
+		}
+
+		DictionaryCompression job = new DictionaryCompression(storage, 4096);
+		DictionaryDeflatedContent codec = job.trainDictionary(100, 4096);
+		assertNotNull(codec);
+		assertEquals(records.length, job.recompress(codec));
+		assertTrue(job.getBytesSaved() > 0);
+		BSONObject doc = assertMockMongoContainsDocument(
+				"test.v7files.content", records[0].getSHA());
+		assertEquals("dict", doc.get("store"));
+		// but not the dictionary itself
+		assertNull(assertMockMongoContainsDocument("test.v7files.content",
+				codec.getDictionary().getSHA()).get("store"));
+		// nothing left to do
+		assertEquals(0, job.recompress(codec));
+
+		// readable without configuration
+		MongoContentStorage check = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		random = new Random(1);
+		for (int i = 0; i < records.length; i++) {
+			assertTrue(Arrays.equals(record(random, i), IOUtils
+					.toByteArray(check.getContent(records[i])
+							.getInputStream())));
+		}
+
+		// new content
+		storage.setCompressionCodec(codec);
+		byte[] data = record(random, 1000);
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(data));
+		doc = assertMockMongoContainsDocument("test.v7files.content", sha
+				.getSHA());
+		assertEquals("dict", doc.get("store"));
+		assertTrue(((byte[]) doc.get("zin")).length < data.length / 2);
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(check.getContent(
+				sha).getInputStream())));
+	}
+
 }
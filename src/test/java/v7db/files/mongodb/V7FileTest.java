@@ -16,10 +16,17 @@
  */
 package v7db.files.mongodb;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 import jmockmongo.MockMongoTestCaseSupport;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.bson.BasicBSONObject;
 
 public class V7FileTest extends MockMongoTestCaseSupport {
@@ -61,4 +68,37 @@ public class V7FileTest extends MockMongoTestCaseSupport {
 		assertNull(gridFS.getFile("root", "too-late"));
 	}
 
+	public void testGzipContents() throws IOException {
+		// small enough for a single chunk
+		byte[] text = StringUtils.repeat("some text, ", 1000).getBytes();
+		gridFS.addFile(text, "root", "small.txt", "text/plain");
+		V7File file = gridFS.getFile("root", "small.txt");
+		assertTrue(file.getGZipLength() < text.length);
+		assertTrue(Arrays.equals(text, gunzip(file
+				.getInputStreamWithGzipContents())));
+
+		// several gzipped chunks
+		text = StringUtils.repeat("some more text, ", 50000).getBytes();
+		gridFS.addFile(text, "root", "large.txt", "text/plain");
+		file = gridFS.getFile("root", "large.txt");
+		assertTrue(file.getGZipLength() < text.length);
+		assertTrue(Arrays.equals(text, gunzip(file
+				.getInputStreamWithGzipContents())));
+
+		// not compressible
+		byte[] random = new byte[1000];
+		new Random(12345).nextBytes(random);
+		gridFS.addFile(random, "root", "random.dat", "text/plain");
+		file = gridFS.getFile("root", "random.dat");
+		assertNull(file.getGZipLength());
+		assertNull(file.getInputStreamWithGzipContents());
+	}
+
+	private static byte[] gunzip(InputStream gzipped) throws IOException {
+		// GZIPInputStream only reads on to the next member if it can find
+		// out that there is more data (using available())
+		return IOUtils.toByteArray(new GZIPInputStream(
+				new ByteArrayInputStream(IOUtils.toByteArray(gzipped))));
+	}
+
 }
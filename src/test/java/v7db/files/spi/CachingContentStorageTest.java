@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.mongodb.MongoContentStorage;
+
+public class CachingContentStorageTest extends MockMongoTestCaseSupport {
+
+	public void testCacheChunks() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(12345).nextBytes(data);
+
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		ContentSHA sha = mongo.storeContent(new ByteArrayInputStream(data));
+
+		CachingContentStorage storage = new CachingContentStorage(mongo,
+				256 * 1024, 10 * 1024 * 1024, 0);
+		for (int i = 0; i < 3; i++) {
+			Content content = storage.getContent(sha);
+			assertEquals(data.length, content.getLength());
+			assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(content
+					.getInputStream()));
+		}
+		// the complete content is too big, but the four chunks are cached
+		assertEquals(4 * 2, storage.getHits());
+		assertEquals(3 + 4, storage.getMisses());
+		assertEquals(data.length, storage.getHeapBytes());
+		assertEquals(0, storage.getEvictions());
+	}
+
+	public void testOffHeapTier() throws IOException {
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		ContentSHA[] shas = new ContentSHA[3];
+		for (int i = 0; i < shas.length; i++) {
+			shas[i] = mongo.storeContent(new ByteArrayInputStream(
+					("content number " + i).getBytes()));
+		}
+
+		// room for two on the heap, one off the heap
+		CachingContentStorage storage = new CachingContentStorage(mongo,
+				100, 32, 16);
+		for (ContentSHA sha : shas) {
+			storage.getContent(sha);
+		}
+		assertEquals(1, storage.getEvictions());
+		assertEquals(32, storage.getHeapBytes());
+		assertEquals(16, storage.getOffHeapBytes());
+
+		Content first = storage.getContent(shas[0]);
+		assertEquals(1, storage.getOffHeapHits());
+		assertEquals("content number 0", IOUtils.toString(first
+				.getInputStream()));
+		assertEquals("number", IOUtils.toString(first.getInputStream(8, 6)));
+
+		assertNull(storage.getContent(ContentSHA.calculate("missing"
+				.getBytes()).getSHA()));
+	}
+
+}
@@ -18,9 +18,15 @@ package v7db.files.spi;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 
 public class ChunkedContentTest extends TestCase {
@@ -57,4 +63,146 @@ public class ChunkedContentTest extends TestCase {
 		}
 	}
 
+	public void testSkipAndBulkRead() throws IOException {
+		ChunkedContent c = new ChunkedContent(new InlineContent("first"
+				.getBytes()), new InlineContent(" second".getBytes()),
+				new InlineContent(" third".getBytes()));
+		InputStream is = c.getInputStream(1, 16);
+		byte[] buffer = new byte[100];
+		// never more than what is left in the current chunk
+		assertEquals(4, is.read(buffer));
+		assertEquals("irst", new String(buffer, 0, 4));
+		assertEquals(9, is.skip(9));
+		assertEquals("hir", IOUtils.toString(is));
+		assertEquals(0, is.skip(1));
+		assertEquals(-1, is.read(buffer));
+	}
+
+	public void testLargeContent() throws IOException {
+		long gigabyte = 1024 * 1024 * 1024;
+		ChunkedContent c = new ChunkedContent(new OffsetAndLength(
+				new InlineContent("abc".getBytes()), 0, 3 * gigabyte),
+				new InlineContent("XYZ".getBytes()), new OffsetAndLength(
+						new InlineContent("def".getBytes()), 0, 3 * gigabyte));
+		assertEquals(6 * gigabyte + 3, c.getLength());
+		assertEquals("abcXYZdefd", IOUtils.toString(c.getInputStream(
+				3 * gigabyte - 3, 10)));
+		InputStream is = c.getInputStream();
+		assertEquals(6 * gigabyte, is.skip(6 * gigabyte));
+		assertEquals("def", IOUtils.toString(is));
+	}
+
+	public void testEmptyChunks() throws IOException {
+		ChunkedContent c = new ChunkedContent(new InlineContent("ab"
+				.getBytes()), new InlineContent(new byte[0]),
+				new InlineContent("cd".getBytes()), new InlineContent(
+						new byte[0]));
+		assertEquals(4, c.getLength());
+		assertEquals("abcd", IOUtils.toString(c.getInputStream()));
+		assertEquals("cd", IOUtils.toString(c.getInputStream(2, 2)));
+		assertEquals("", IOUtils.toString(c.getInputStream(4, 0)));
+	}
+
+	public void testReadAhead() throws IOException {
+		final Map<String, Content> stored = new HashMap<String, Content>();
+		final int[] calls = new int[2];
+		ContentStorage storage = new ContentStorage() {
+
+			public Content getContent(ContentPointer pointer) {
+				calls[0]++;
+				return stored.get(Hex.encodeHexString(((StoredContent) pointer)
+						.getBaseSHA()));
+			}
+
+			public List<Content> getContents(
+					List<? extends ContentPointer> pointers) {
+				calls[1]++;
+				List<Content> result = new ArrayList<Content>();
+				for (ContentPointer p : pointers) {
+					result.add(stored.get(Hex.encodeHexString(((StoredContent) p)
+							.getBaseSHA())));
+				}
+				return result;
+			}
+
+			public Content getContent(byte[] sha) {
+				throw new UnsupportedOperationException();
+			}
+
+			public Content getContent(Map<String, Object> storageScheme) {
+				throw new UnsupportedOperationException();
+			}
+
+			public ContentSHA storeContent(InputStream data) {
+				throw new UnsupportedOperationException();
+			}
+
+			public ContentSHA storeContent(InputStream data,
+					ContentPointer similar, String contentType) {
+				throw new UnsupportedOperationException();
+			}
+
+			public ContentPointer storeContent(Map<String, Object> storageScheme) {
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		Content[] chunks = new Content[10];
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < chunks.length; i++) {
+			byte[] data = ("chunk " + i + ", ").getBytes();
+			StoredContent pointer = new StoredContent(DigestUtils.sha(data),
+					data.length);
+			stored.put(Hex.encodeHexString(pointer.getBaseSHA()),
+					new InlineContent(data));
+			chunks[i] = pointer.loadOrLazyLoad(storage, 0);
+			expected.append(new String(data));
+		}
+
+		// the first chunk is loaded alone, then three at a time
+		ChunkedContent c = new ChunkedContent(new ReadAhead(3, 1000), chunks);
+		assertEquals(expected.toString(), IOUtils.toString(c.getInputStream()));
+		assertEquals(1, calls[0]);
+		assertEquals(3, calls[1]);
+
+		// range inside a single chunk
+		calls[0] = calls[1] = 0;
+		assertEquals("chunk 5", IOUtils.toString(c.getInputStream(
+				expected.indexOf("chunk 5"), 7)));
+		assertEquals(1, calls[0]);
+		assertEquals(0, calls[1]);
+
+		// not enough memory to read ahead
+		calls[0] = calls[1] = 0;
+		c = new ChunkedContent(new ReadAhead(3, 10), chunks);
+		assertEquals(expected.toString(), IOUtils.toString(c.getInputStream()));
+		assertEquals(10, calls[0]);
+		assertEquals(0, calls[1]);
+
+		// a stream that is abandoned halfway through gives its reservation
+		// back once it has been garbage-collected
+		ReadAhead readAhead = new ReadAhead(3, 1000);
+		c = new ChunkedContent(readAhead, chunks);
+		InputStream in = c.getInputStream();
+		IOUtils.read(in, new byte[12]);
+		assertTrue(readAhead.getUsedBytes() > 0);
+		in = null;
+		for (int i = 0; i < 100 && readAhead.getUsedBytes() > 0; i++) {
+			System.gc();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		assertEquals(0, readAhead.getUsedBytes());
+
+		// and closing a stream gives it back immediately
+		in = c.getInputStream();
+		IOUtils.read(in, new byte[12]);
+		assertTrue(readAhead.getUsedBytes() > 0);
+		in.close();
+		assertEquals(0, readAhead.getUsedBytes());
+	}
+
 }
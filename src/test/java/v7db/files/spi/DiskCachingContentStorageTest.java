@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.mongodb.MongoContentStorage;
+
+public class DiskCachingContentStorageTest extends MockMongoTestCaseSupport {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("v7files", "test");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+	public void testCacheChunks() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(12345).nextBytes(data);
+
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		ContentSHA sha = mongo.storeContent(new ByteArrayInputStream(data));
+
+		DiskCachingContentStorage storage = new DiskCachingContentStorage(
+				mongo, dir, 256 * 1024, 10 * 1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			Content content = storage.getContent(sha);
+			assertEquals(data.length, content.getLength());
+			assertEquals(DigestUtils.shaHex(data), DigestUtils.shaHex(content
+					.getInputStream()));
+		}
+		// the complete content is too big, but the four chunks are cached
+		assertEquals(4 * 2, storage.getHits());
+		assertEquals(3 + 4, storage.getMisses());
+		assertEquals(data.length, storage.getBytes());
+		assertEquals(0, storage.getEvictions());
+	}
+
+	public void testRestartAndEvict() throws IOException {
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		ContentSHA[] shas = new ContentSHA[3];
+		for (int i = 0; i < shas.length; i++) {
+			shas[i] = mongo.storeContent(new ByteArrayInputStream(
+					("content number " + i).getBytes()));
+		}
+
+		// room for two
+		DiskCachingContentStorage storage = new DiskCachingContentStorage(
+				mongo, dir, 100, 32);
+		for (ContentSHA sha : shas) {
+			storage.getContent(sha);
+		}
+		assertEquals(1, storage.getEvictions());
+		assertEquals(32, storage.getBytes());
+
+		// after a restart, the cache is still there (no need for MongoDB)
+		MongoContentStorage empty = new MongoContentStorage(getMongo().getDB(
+				"empty"));
+		storage = new DiskCachingContentStorage(empty, dir, 100, 32);
+		assertEquals(32, storage.getBytes());
+		assertNull(storage.getContent(shas[0].getSHA()));
+		Content second = storage.getContent(shas[1]);
+		assertTrue(second instanceof DiskCachingContentStorage.CachedContent);
+		assertEquals("content number 1", IOUtils.toString(second
+				.getInputStream()));
+		assertEquals("number", IOUtils.toString(storage.getContent(
+				new StoredContent(shas[2].getSHA(), 8, 6)).getInputStream()));
+		assertEquals(2, storage.getHits());
+
+		// a smaller cache
+		storage = new DiskCachingContentStorage(empty, dir, 100, 16);
+		assertEquals(16, storage.getBytes());
+		assertEquals(1, storage.getEvictions());
+	}
+
+	public void testEvictedBeforeRead() throws IOException {
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		ContentSHA sha = mongo.storeContent(new ByteArrayInputStream(
+				"cached content".getBytes()));
+		DiskCachingContentStorage storage = new DiskCachingContentStorage(
+				mongo, dir, 100, 100);
+		storage.getContent(sha);
+		Content content = storage.getContent(sha);
+		assertEquals(1, storage.getHits());
+
+		// the file goes away before the content is read
+		FileUtils.forceDelete(new FileSystemContentStorage(dir).getFile(sha
+				.getSHA()));
+		assertEquals("cached content", IOUtils.toString(content
+				.getInputStream()));
+		assertEquals("content", IOUtils.toString(content.getInputStream(7, 7)));
+	}
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BasicBSONObject;
+
+import v7db.files.Delta;
+import v7db.files.mongodb.V7File;
+import v7db.files.mongodb.V7GridFS;
+
+public class FileSystemContentStorageTest extends MockMongoTestCaseSupport {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("v7files", "test");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+	public void testStoreAndRead() throws IOException {
+		byte[] data = new byte[300 * 1024];
+		new Random(12345).nextBytes(data);
+
+		FileSystemContentStorage storage = new FileSystemContentStorage(dir);
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(data));
+		assertEquals(DigestUtils.shaHex(data), sha.getDigest());
+		assertEquals(data.length, sha.getLength());
+		File file = new File(dir, sha.getDigest().substring(0, 2) + "/"
+				+ sha.getDigest().substring(2, 4) + "/" + sha.getDigest());
+		assertTrue(file.exists());
+
+		// again
+		assertEquals(sha.getDigest(), storage.storeContent(
+				new ByteArrayInputStream(data)).getDigest());
+		assertEquals(0, new File(dir, "tmp").list().length);
+
+		Content content = storage.getContent(sha.getSHA());
+		assertEquals(data.length, content.getLength());
+		assertEquals(sha.getDigest(), DigestUtils.shaHex(content
+				.getInputStream()));
+		// small range
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, 1000, 1100),
+				IOUtils.toByteArray(content.getInputStream(1000, 100))));
+		// large (mapped) range
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, 1000, 201000),
+				IOUtils.toByteArray(content.getInputStream(1000, 200000))));
+		// segment
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, 10, 20), IOUtils
+				.toByteArray(storage.getContent(
+						new StoredContent(sha.getSHA(), 10, 10))
+						.getInputStream())));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((FileContent) content).transferTo(5, 100000, Channels
+				.newChannel(out));
+		assertTrue(Arrays.equals(ArrayUtils.subarray(data, 5, 100005), out
+				.toByteArray()));
+
+		assertNull(storage.getContent(DigestUtils.sha("not there")));
+		assertNull(storage.getContents(
+				Arrays.asList(new StoredContent(DigestUtils.sha("not there"),
+						9))).get(0));
+	}
+
+	public void testStorageScheme() throws IOException {
+		FileSystemContentStorage storage = new FileSystemContentStorage(dir);
+		byte[] base = StringUtils.repeat("abcdefghij", 10).getBytes();
+		byte[] target = ArrayUtils.addAll(base, "klm".getBytes());
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(base));
+		Map<String, Object> delta = new HashMap<String, Object>();
+		delta.put("store", "delta");
+		delta.put("base", sha.serialize());
+		delta.put("delta", Delta.encode(base, target));
+		delta.put("length", target.length);
+		ContentPointer pointer = storage.storeContent(delta);
+		assertEquals(target.length, pointer.getLength());
+		assertTrue(Arrays.equals(target, IOUtils.toByteArray(storage
+				.getContent(pointer).getInputStream())));
+		assertTrue(Arrays.equals(target, IOUtils.toByteArray(storage
+				.getContent(DigestUtils.sha(target)).getInputStream())));
+	}
+
+	public void testWithV7GridFS() throws IOException {
+		prepareMockData("test.v7files.files",
+				new BasicBSONObject("_id", "root"));
+		FileSystemContentStorage storage = new FileSystemContentStorage(dir);
+		V7GridFS gridFS = new V7GridFS(getMongo().getDB("test"), storage);
+		byte[] data = StringUtils.repeat("some text, ", 100).getBytes();
+		gridFS.addFile(data, "root", "test.txt", "text/plain");
+
+		V7File file = gridFS.getFile("root", "test.txt");
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(file
+				.getInputStream())));
+		assertNotNull(storage.getContent(DigestUtils.sha(data)));
+	}
+}
@@ -17,6 +17,8 @@
 package v7db.files.spi;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -68,4 +70,16 @@ public class InlineContentTest extends TestCase {
 							content.length() - 2)));
 	}
 
+	public void testBinaryRepetition() throws IOException {
+		byte[] data = { (byte) 0xFF, 0, (byte) 0x80 };
+		InputStream is = new InlineContent(data, 0, 10).getInputStream();
+		assertEquals(0xFF, is.read());
+		assertEquals(3, is.skip(3));
+		byte[] buffer = new byte[10];
+		assertEquals(6, is.read(buffer));
+		assertTrue(Arrays.equals(new byte[] { 0, (byte) 0x80, (byte) 0xFF, 0,
+				(byte) 0x80, (byte) 0xFF }, Arrays.copyOf(buffer, 6)));
+		assertEquals(-1, is.read());
+	}
+
 }
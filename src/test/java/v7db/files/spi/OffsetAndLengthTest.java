@@ -17,6 +17,7 @@
 package v7db.files.spi;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import junit.framework.TestCase;
 
@@ -43,4 +44,18 @@ public class OffsetAndLengthTest extends TestCase {
 		assertEquals("eabcde", IOUtils.toString(doubled.getInputStream(1, 6)));
 		assertEquals(10l, doubled.getLength());
 	}
+
+	public void testSkipAndBulkRead() throws IOException {
+
+		Content repeated = new OffsetAndLength(new InlineContent("abcde"
+				.getBytes()), 3, 100);
+		InputStream is = repeated.getInputStream();
+		assertEquals(51, is.skip(51));
+		byte[] buffer = new byte[8];
+		assertEquals(8, IOUtils.read(is, buffer));
+		assertEquals("eabcdeab", new String(buffer));
+		assertEquals(41, is.skip(100));
+		assertEquals(-1, is.read(buffer));
+	}
+
 }
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012, Thilo Planz. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package v7db.files.spi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jmockmongo.MockMongoTestCaseSupport;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import v7db.files.mongodb.MongoContentStorage;
+
+import com.mongodb.DBCollection;
+
+public class WriteBehindContentStorageTest extends MockMongoTestCaseSupport {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("v7files", "test");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+	public void testWriteBehindAndRecovery() throws Exception {
+		byte[] data = new byte[600 * 1024];
+		new Random(12345).nextBytes(data);
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		DBCollection contents = getMongo().getDB("test").getCollection(
+				"v7files.content");
+
+		// an executor that does not get around to copying anything
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final CountDownLatch latch = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		WriteBehindContentStorage storage = new WriteBehindContentStorage(
+				mongo, dir, executor);
+		ContentSHA sha = storage.storeContent(new ByteArrayInputStream(data));
+		assertEquals(1, storage.getPending());
+		assertEquals(0, contents.count());
+		// read from the journal
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(storage
+				.getContent(sha).getInputStream())));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 20), IOUtils
+				.toByteArray(storage.getContents(
+						Arrays.asList(new StoredContent(sha.getSHA(), 10, 10)))
+						.get(0).getInputStream())));
+
+		// crash
+		executor.shutdownNow();
+
+		executor = Executors.newSingleThreadExecutor();
+		try {
+			storage = new WriteBehindContentStorage(mongo, dir, executor);
+			storage.flush();
+			assertEquals(0, storage.getPending());
+			assertNull(storage.getLastError());
+			// manifest and three chunks
+			assertEquals(4, contents.count());
+			assertTrue(Arrays.equals(data, IOUtils.toByteArray(mongo
+					.getContent(sha).getInputStream())));
+			assertTrue(Arrays.equals(data, IOUtils.toByteArray(storage
+					.getContent(sha).getInputStream())));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testRejectedCopy() throws Exception {
+		MongoContentStorage mongo = new MongoContentStorage(getMongo().getDB(
+				"test"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		WriteBehindContentStorage storage = new WriteBehindContentStorage(
+				mongo, dir, executor);
+		executor.shutdown();
+		try {
+			storage.storeContent(new ByteArrayInputStream("test".getBytes()));
+			fail("the executor should have rejected the copy");
+		} catch (IOException e) {
+		}
+		assertEquals(0, storage.getPending());
+		assertNotNull(storage.getLastError());
+		// does not wait for a copy that never runs
+		try {
+			storage.flush();
+			fail("the executor should have rejected the copy");
+		} catch (IOException e) {
+		}
+		assertEquals(0, storage.getPending());
+
+		// still in the journal, and copied when it is opened again
+		executor = Executors.newSingleThreadExecutor();
+		try {
+			storage = new WriteBehindContentStorage(mongo, dir, executor);
+			storage.flush();
+			assertEquals("test", IOUtils.toString(mongo.getContent(
+					DigestUtils.sha("test".getBytes())).getInputStream()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}